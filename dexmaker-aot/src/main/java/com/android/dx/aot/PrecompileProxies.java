@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.aot;
+
+import com.android.dx.stock.PrecompiledProxies;
+import com.android.dx.stock.ProxyBuilder;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool that writes a precompiled proxy jar for {@link PrecompiledProxies}.
+ *
+ * <pre>
+ * PrecompileProxies --output proxies.jar --classpath app.jar[:lib.jar...]
+ *         [--fast] [--compact] [--method-handlers] [--classes list.txt] [class...]
+ * </pre>
+ *
+ * Each class is given as {@code com.example.Base[:com.example.Interface,...]}. The list file
+ * contains one class per line, empty lines and lines starting with {@code #} are ignored.
+ * <p>
+ * The options must match the ones used by the {@link ProxyBuilder} at runtime, otherwise the
+ * precompiled proxies are not used. Mocks created by the dexmaker mock maker use no options.
+ */
+public final class PrecompileProxies {
+    private PrecompileProxies() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File output = null;
+        List<URL> classpath = new ArrayList<>();
+        boolean fast = false;
+        boolean compact = false;
+        boolean methodHandlers = false;
+        List<String> classes = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--output":
+                    output = new File(value(args, ++i));
+                    break;
+                case "--classpath":
+                    for (String path : value(args, ++i).split(File.pathSeparator)) {
+                        classpath.add(toUrl(path));
+                    }
+                    break;
+                case "--fast":
+                    fast = true;
+                    break;
+                case "--compact":
+                    compact = true;
+                    break;
+                case "--method-handlers":
+                    methodHandlers = true;
+                    break;
+                case "--classes":
+                    for (String line : Files.readAllLines(new File(value(args, ++i)).toPath(),
+                            StandardCharsets.UTF_8)) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) {
+                            classes.add(line);
+                        }
+                    }
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        usage("unknown option " + args[i]);
+                    }
+                    classes.add(args[i]);
+                    break;
+            }
+        }
+        if (output == null || classes.isEmpty()) {
+            usage(null);
+        }
+
+        ClassLoader classLoader = new URLClassLoader(classpath.toArray(new URL[0]),
+                PrecompileProxies.class.getClassLoader());
+        List<ProxyBuilder<?>> builders = new ArrayList<>();
+        for (String spec : classes) {
+            String[] parts = spec.split(":", 2);
+            ProxyBuilder<?> builder = ProxyBuilder.forClass(
+                    Class.forName(parts[0], false, classLoader));
+            if (parts.length > 1) {
+                List<Class<?>> interfaces = new ArrayList<>();
+                for (String name : parts[1].split(",")) {
+                    interfaces.add(Class.forName(name.trim(), false, classLoader));
+                }
+                builder.implementing(interfaces.toArray(new Class<?>[0]));
+            }
+            if (fast) {
+                builder.withFastInvocationHandler();
+            }
+            if (compact) {
+                builder.withCompactLayout();
+            }
+            if (methodHandlers) {
+                builder.withMethodHandlers();
+            }
+            builders.add(builder);
+        }
+
+        PrecompiledProxies.write(builders, output);
+        System.out.println("Wrote " + builders.size() + " proxies to " + output);
+    }
+
+    /**
+     * Returns the value of the option before {@code i}, or exits if it is missing.
+     */
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            usage(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    private static URL toUrl(String path) {
+        try {
+            return new File(path).toURI().toURL();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(path, e);
+        }
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("usage: PrecompileProxies --output <jar> [--classpath <path>]"
+                + " [--fast] [--compact] [--method-handlers] [--classes <file>] [class...]");
+        System.exit(1);
+    }
+}
@@ -16,24 +16,40 @@
 
 package com.android.dx.mockito.inline;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * Called by method entry hooks. Dispatches these hooks to the {@code MockMethodAdvice}.
+ *
+ * <p>The advice is loaded by the app's class loader and hence cannot be referenced directly from
+ * here. Its methods are looked up once when the advice is {@link #set} and then called through
+ * handles bound to the advice instance.
  */
 @SuppressWarnings("unused")
 public class MockMethodDispatcher {
-    // An instance of {@code MockMethodAdvice}
-    private Object mAdvice;
+    // Handles to the methods of the advice. The static advice only implements the methods its
+    // hooks call, hence the handles of the other methods can be {@code null}.
+    private final MethodHandle mHandle;
+    private final MethodHandle mIsMock;
+    private final MethodHandle mIsMocked;
+    private final MethodHandle mIsOverridden;
+    private final MethodHandle mGetOrigin;
 
     // All dispatchers for various identifiers
     private static final ConcurrentMap<String, MockMethodDispatcher> INSTANCE =
             new ConcurrentHashMap<>();
 
+    /**
+     * Number of mock instances that might still be alive. While this is zero no instance can be
+     * a mock, hence the entry hooks read it first and skip everything else. Only changed via
+     * {@link #updateNumMocks}.
+     */
+    public static volatile int sNumMocks;
+
     /**
      * Get the dispatcher for a identifier.
      *
@@ -57,7 +73,94 @@ public class MockMethodDispatcher {
      * @param advice Advice the dispatcher should call
      */
     private MockMethodDispatcher(Object advice) {
-        mAdvice = advice;
+        mHandle = bind(advice, "handle", Object.class, Object.class, Method.class,
+                Object[].class);
+        mIsMock = bindOptional(advice, "isMock", boolean.class, Object.class);
+        mIsMocked = bindOptional(advice, "isMocked", boolean.class, Object.class);
+        mIsOverridden = bindOptional(advice, "isOverridden", boolean.class, Object.class,
+                Method.class);
+        mGetOrigin = bind(advice, "getOrigin", Method.class, Object.class, int.class);
+    }
+
+    /**
+     * Get a handle to a public method of the advice bound to the advice instance.
+     *
+     * @return the handle
+     *
+     * @throws IllegalStateException if the advice does not have such a method
+     */
+    private static MethodHandle bind(Object advice, String name, Class<?> returnType,
+                                     Class<?>... parameterTypes) {
+        MethodHandle handle = bindOptional(advice, name, returnType, parameterTypes);
+        if (handle == null) {
+            throw new IllegalStateException(advice.getClass().getName() + " does not implement "
+                    + describe(name, returnType, parameterTypes));
+        }
+
+        return handle;
+    }
+
+    /**
+     * Same as {@link #bind}, but returns {@code null} if the advice does not have such a method.
+     */
+    private static MethodHandle bindOptional(Object advice, String name, Class<?> returnType,
+                                             Class<?>... parameterTypes) {
+        Method method;
+        try {
+            method = advice.getClass().getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+
+        if (method.getReturnType() != returnType) {
+            return null;
+        }
+
+        // The advice class itself is not public
+        method.setAccessible(true);
+        try {
+            return MethodHandles.lookup().unreflect(method).bindTo(advice);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String describe(String name, Class<?> returnType,
+                                   Class<?>... parameterTypes) {
+        StringBuilder description = new StringBuilder(returnType.getName()).append(' ')
+                .append(name).append('(');
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                description.append(", ");
+            }
+            description.append(parameterTypes[i].getName());
+        }
+
+        return description.append(')').toString();
+    }
+
+    /**
+     * Throw if an optional method of the advice was called but it does not implement it.
+     */
+    private static MethodHandle checkBound(MethodHandle handle, String name) {
+        if (handle == null) {
+            throw new IllegalStateException("The advice does not implement " + name);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Throw an exception thrown by the advice, wrapping it if it is checked.
+     */
+    private static IllegalStateException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            return new IllegalStateException(t);
+        }
     }
 
     /**
@@ -71,15 +174,21 @@ public class MockMethodDispatcher {
     }
 
     /**
-     * Calls {@code MockMethodAdvice#handle}
+     * Adjust {@link #sNumMocks}. Called whenever mocks are added to or removed from the map of
+     * mocks the {@code MockMethodAdvice} consults.
+     *
+     * @param delta number of mocks added (positive) or removed (negative)
      */
-    public Callable<?> handle(Object instance, Method origin, Object[] arguments) throws Throwable {
-        try {
-            return (Callable<?>) mAdvice.getClass().getMethod("handle", Object.class, Method.class,
-                    Object[].class).invoke(mAdvice, instance, origin, arguments);
-        } catch (InvocationTargetException e) {
-            throw e.getCause();
-        }
+    public static synchronized void updateNumMocks(int delta) {
+        sNumMocks += delta;
+    }
+
+    /**
+     * Calls {@code MockMethodAdvice#handle} and returns the result of the intercepted method. Only
+     * called after {@link #getOrigin} returned a method.
+     */
+    public Object handle(Object instance, Method origin, Object[] arguments) throws Throwable {
+        return (Object) mHandle.invokeExact(instance, origin, arguments);
     }
 
     /**
@@ -87,10 +196,9 @@ public class MockMethodDispatcher {
      */
     public boolean isMock(Object instance) {
         try {
-            return (Boolean) mAdvice.getClass().getMethod("isMock", Object.class).invoke(mAdvice,
-                    instance);
-        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-            throw new IllegalStateException(e);
+            return (boolean) checkBound(mIsMock, "isMock").invokeExact(instance);
+        } catch (Throwable t) {
+            throw rethrow(t);
         }
     }
 
@@ -99,10 +207,9 @@ public class MockMethodDispatcher {
      */
     public boolean isMocked(Object instance) {
         try {
-            return (Boolean) mAdvice.getClass().getMethod("isMocked", Object.class).invoke(mAdvice,
-                    instance);
-        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-            throw new IllegalStateException(e);
+            return (boolean) checkBound(mIsMocked, "isMocked").invokeExact(instance);
+        } catch (Throwable t) {
+            throw rethrow(t);
         }
     }
 
@@ -111,19 +218,17 @@ public class MockMethodDispatcher {
      */
     public boolean isOverridden(Object instance, Method origin) {
         try {
-            return (Boolean) mAdvice.getClass().getMethod("isOverridden", Object.class,
-                    Method.class).invoke(mAdvice, instance, origin);
-        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-            throw new IllegalStateException(e);
+            return (boolean) checkBound(mIsOverridden, "isOverridden").invokeExact(instance,
+                    origin);
+        } catch (Throwable t) {
+            throw rethrow(t);
         }
     }
 
     /**
      * Calls {@code MockMethodAdvice#getOrigin}
      */
-    public Method getOrigin(Object mock, String instrumentedMethodWithTypeAndSignature)
-            throws Throwable {
-        return (Method) mAdvice.getClass().getMethod("getOrigin", Object.class,
-                String.class).invoke(mAdvice, mock, instrumentedMethodWithTypeAndSignature);
+    public Method getOrigin(Object mock, int methodId) throws Throwable {
+        return (Method) mGetOrigin.invokeExact(mock, methodId);
     }
 }
@@ -21,6 +21,7 @@ import android.content.ContentResolver;
 import android.provider.Settings;
 
 import org.junit.Test;
+import org.mockito.Mock;
 import org.mockito.MockitoSession;
 import org.mockito.exceptions.misusing.UnnecessaryStubbingException;
 import org.mockito.quality.Strictness;
@@ -28,12 +29,35 @@ import org.mockito.quality.Strictness;
 import static android.provider.Settings.Global.DEVICE_NAME;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.when;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 
 public class StaticMockitoSession {
+    public static class Greeter {
+        public String greet() {
+            return "hello";
+        }
+
+        public static String defaultGreeting() {
+            return "hello";
+        }
+    }
+
+    public static class Farewell {
+        public static String say() {
+            return "bye";
+        }
+    }
+
+    @Mock
+    private Greeter greeter;
+
+    @Mock
+    private Greeter otherGreeter;
 
     @Test
     public void strictUnnecessaryStubbing() {
@@ -81,4 +105,32 @@ public class StaticMockitoSession {
             .startMocking()
             .finishMocking();
     }
+
+    @Test
+    public void instanceAndStaticMocksOfOneSession() {
+        // The classes of the @Mock fields and the static mocks are transformed together when the
+        // session starts
+        MockitoSession session = mockitoSession()
+                .initMocks(this)
+                .spyStatic(Greeter.class)
+                .mockStatic(Farewell.class)
+                .startMocking();
+        try {
+            when(greeter.greet()).thenReturn("hi");
+            when(otherGreeter.greet()).thenReturn("hey");
+            doReturn("howdy").when(Greeter::defaultGreeting);
+            doReturn("ciao").when(Farewell::say);
+
+            assertEquals("hi", greeter.greet());
+            assertEquals("hey", otherGreeter.greet());
+            assertEquals("howdy", Greeter.defaultGreeting());
+            assertEquals("ciao", Farewell.say());
+            assertEquals("hello", new Greeter().greet());
+        } finally {
+            session.finishMocking();
+        }
+
+        assertEquals("hello", Greeter.defaultGreeting());
+        assertEquals("bye", Farewell.say());
+    }
 }
@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -98,6 +99,14 @@ public final class InlineStaticMockMaker implements MockMaker {
             } catch (InvocationTargetException e) {
                 throw e.getCause();
             }
+
+            // The agent looks up the hooked methods via MethodIds, which needs to see the
+            // blacklisted ones too.
+            try {
+                allowHiddenApiReflectionFrom.invoke(null, MethodIds.class);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
         } catch (Throwable throwable) {
             agent = null;
             initializationError = throwable;
@@ -147,19 +156,24 @@ public final class InlineStaticMockMaker implements MockMaker {
 
         classTransformer.mockClass(MockFeatures.withMockFeatures(typeToMock, interfacesSet));
 
-        Instantiator instantiator = Mockito.framework().getPlugins().getDefaultPlugin
-                (InstantiatorProvider2.class).getInstantiator(settings);
-
         T mock;
         try {
-            mock = instantiator.newInstance(typeToMock);
-        } catch (org.mockito.creation.instance.InstantiationException e) {
-            throw new MockitoException("Unable to create mock instance of type '" + typeToMock
-                    .getSimpleName() + "'", e);
-        }
+            Instantiator instantiator = Mockito.framework().getPlugins().getDefaultPlugin
+                    (InstantiatorProvider2.class).getInstantiator(settings);
+
+            try {
+                mock = instantiator.newInstance(typeToMock);
+            } catch (org.mockito.creation.instance.InstantiationException e) {
+                throw new MockitoException("Unable to create mock instance of type '" + typeToMock
+                        .getSimpleName() + "'", e);
+            }
 
-        if (classToMarker.containsKey(typeToMock)) {
-            throw new MockitoException(typeToMock + " is already mocked");
+            if (classToMarker.containsKey(typeToMock)) {
+                throw new MockitoException(typeToMock + " is already mocked");
+            }
+        } catch (RuntimeException | Error e) {
+            classTransformer.unmockClasses(Collections.<Class<?>>singletonList(typeToMock));
+            throw e;
         }
         classToMarker.put(typeToMock, mock);
 
@@ -174,6 +188,10 @@ public final class InlineStaticMockMaker implements MockMaker {
             if (mockingInProgressClass.get() == mock.getClass()) {
                 markerToHandler.remove(mock);
                 classToMarker.remove(mock.getClass());
+
+                // Restore the original byte code unless the class is still needed by another mock
+                classTransformer.unmockClasses(Collections.<Class<?>>singletonList(
+                        mock.getClass()));
             } else {
                 adapter.setHandler(newHandler);
             }
@@ -22,11 +22,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.security.ProtectionDomain;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Adds entry hooks (that eventually call into
@@ -41,22 +39,10 @@ import java.util.Set;
  * <li>{@link StaticJvmtiAgent#runTransformers(ClassLoader, String, Class, ProtectionDomain,
  *      byte[])}</li>
  * <li>{@link #transform(Class, byte[])}</li>
- * <li>{@link #nativeRedefine(String, byte[])}</li>
+ * <li>{@link #nativeRedefine(String, Class, byte[])}</li>
  * </ol>
  */
 class StaticClassTransformer {
-    // Some classes are so deeply optimized inside the runtime that they cannot be transformed
-    private static final Set<Class<? extends java.io.Serializable>> EXCLUDES = new HashSet<>(
-            Arrays.asList(Class.class,
-                    Boolean.class,
-                    Byte.class,
-                    Short.class,
-                    Character.class,
-                    Integer.class,
-                    Long.class,
-                    Float.class,
-                    Double.class,
-                    String.class));
     /**
      * We can only have a single transformation going on at a time, hence synchronize the
      * transformation process via this lock.
@@ -71,9 +57,9 @@ class StaticClassTransformer {
     private final StaticJvmtiAgent agent;
 
     /**
-     * Types that have already be transformed
+     * Number of mocks that need each type to be transformed
      */
-    private final Set<Class<?>> mockedTypes;
+    private final MockedTypes mockedTypes = new MockedTypes();
 
     /**
      * A unique identifier that is baked into the transformed classes. The entry hooks will then
@@ -90,7 +76,6 @@ class StaticClassTransformer {
                            Map<Object, InvocationHandlerAdapter> markerToHandler, Map<Class, Object>
                                    classToMarker) {
         this.agent = agent;
-        mockedTypes = Collections.synchronizedSet(new HashSet<Class<?>>());
         identifier = String.valueOf(System.identityHashCode(this));
         StaticMockMethodAdvice advice = new StaticMockMethodAdvice(markerToHandler, classToMarker);
 
@@ -122,32 +107,42 @@ class StaticClassTransformer {
         }
 
         synchronized (lock) {
-            Set<Class<?>> types = new HashSet<>();
-            Class<?> type = features.mockedType;
+            List<Class<?>> types = mockedTypes.add(features.mockedType);
 
-            do {
-                boolean wasAdded = mockedTypes.add(type);
-
-                if (wasAdded) {
-                    if (!EXCLUDES.contains(type)) {
-                        types.add(type);
-                    }
+            if (!types.isEmpty()) {
+                try {
+                    ClassTransformer.retransformClasses(agent, types);
+                } catch (UnmodifiableClassException exception) {
+                    mockedTypes.undoAdd(features.mockedType);
 
-                    type = type.getSuperclass();
-                } else {
-                    break;
+                    throw new MockitoException("Could not modify all classes " + types, exception);
                 }
-            } while (type != null && !type.isInterface());
+            }
+        }
+    }
+
+    /**
+     * Undo {@link #mockClass(MockFeatures)} once for each of the types. Classes that are not
+     * needed by any mock anymore are restored to their original byte code, all in a single
+     * retransformation.
+     *
+     * @param mockedTypes types previously passed to {@link #mockClass(MockFeatures)}
+     */
+    void unmockClasses(Collection<Class<?>> mockedTypes) {
+        if (mockedTypes.isEmpty()) {
+            return;
+        }
+
+        synchronized (lock) {
+            List<Class<?>> types = this.mockedTypes.remove(mockedTypes);
 
             if (!types.isEmpty()) {
                 try {
-                    agent.requestTransformClasses(types.toArray(new Class<?>[types.size()]));
+                    // As the types are not mocked anymore transform() leaves them alone
+                    ClassTransformer.retransformClasses(agent, types);
                 } catch (UnmodifiableClassException exception) {
-                    for (Class<?> failed : types) {
-                        mockedTypes.remove(failed);
-                    }
-
-                    throw new MockitoException("Could not modify all classes " + types, exception);
+                    throw new MockitoException("Could not restore all classes " + types,
+                            exception);
                 }
             }
         }
@@ -169,7 +164,7 @@ class StaticClassTransformer {
             return null;
         } else {
             try {
-                return nativeRedefine(identifier, classfileBuffer);
+                return nativeRedefine(identifier, classBeingRedefined, classfileBuffer);
             } catch (Throwable throwable) {
                 throw new IllegalClassFormatException();
             }
@@ -186,5 +181,6 @@ class StaticClassTransformer {
         return classBeingRedefined != null && mockedTypes.contains(classBeingRedefined);
     }
 
-    private native byte[] nativeRedefine(String identifier, byte[] original);
+    private native byte[] nativeRedefine(String identifier, Class<?> classBeingRedefined,
+                                         byte[] original);
 }
@@ -29,7 +29,7 @@ import dalvik.system.BaseDexClassLoader;
 /**
  * Interface to the native jvmti agent in agent.cc
  */
-class StaticJvmtiAgent {
+class StaticJvmtiAgent implements TransformingAgent {
     private static final String AGENT_LIB_NAME = "libstaticjvmtiagent.so";
 
     private static final Object lock = new Object();
@@ -79,7 +79,8 @@ class StaticJvmtiAgent {
      * @param classes The classes to transform
      * @throws UnmodifiableClassException If one of the classes can not be transformed
      */
-    void requestTransformClasses(Class<?>[] classes) throws UnmodifiableClassException {
+    @Override
+    public void requestTransformClasses(Class<?>[] classes) throws UnmodifiableClassException {
         synchronized (lock) {
             try {
                 nativeRetransformClasses(classes);
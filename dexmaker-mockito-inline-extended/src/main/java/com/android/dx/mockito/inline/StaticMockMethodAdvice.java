@@ -5,7 +5,8 @@
 
 package com.android.dx.mockito.inline;
 
-import java.lang.ref.WeakReference;
+import com.android.dx.stock.ClassMetadataCache;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -13,10 +14,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.function.BiConsumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static com.android.dx.mockito.inline.InlineStaticMockMaker.onMethodCallDuringStubbing;
 import static com.android.dx.mockito.inline.InlineStaticMockMaker.onMethodCallDuringVerification;
@@ -26,10 +24,6 @@ import static com.android.dx.mockito.inline.InlineStaticMockMaker.onMethodCallDu
  * be ignored.
  */
 class StaticMockMethodAdvice {
-    /**
-     * Pattern to decompose a instrumentedMethodWithTypeAndSignature
-     */
-    private final static Pattern methodPattern = Pattern.compile("(.*)#(.*)\\((.*)\\)");
     private final Map<Object, InvocationHandlerAdapter> markersToHandler;
     private final Map<Class, Object> classToMarker;
     @SuppressWarnings("ThreadLocalUsage")
@@ -58,53 +52,6 @@ class StaticMockMethodAdvice {
         }
     }
 
-    private static Class<?> classForTypeName(String name) throws ClassNotFoundException {
-        if (name.endsWith("[]")) {
-            return Class.forName("[L" + name.substring(0, name.length() - 2) + ";");
-        } else {
-            return Class.forName(name);
-        }
-    }
-
-    private static Class nameToType(String name) throws ClassNotFoundException {
-        switch (name) {
-            case "byte":
-                return Byte.TYPE;
-            case "short":
-                return Short.TYPE;
-            case "int":
-                return Integer.TYPE;
-            case "long":
-                return Long.TYPE;
-            case "char":
-                return Character.TYPE;
-            case "float":
-                return Float.TYPE;
-            case "double":
-                return Double.TYPE;
-            case "boolean":
-                return Boolean.TYPE;
-            case "byte[]":
-                return byte[].class;
-            case "short[]":
-                return short[].class;
-            case "int[]":
-                return int[].class;
-            case "long[]":
-                return long[].class;
-            case "char[]":
-                return char[].class;
-            case "float[]":
-                return float[].class;
-            case "double[]":
-                return double[].class;
-            case "boolean[]":
-                return boolean[].class;
-            default:
-                return classForTypeName(name);
-        }
-    }
-
     /**
      * Would a call to SubClass.method handled by SuperClass.method ?
      * <p>This is the case when subclass or any intermediate parent does not override method.
@@ -115,7 +62,6 @@ class StaticMockMethodAdvice {
      * @param methodParameters Parameter of method
      * @return {code true} iff the method would have be handled by superClass
      */
-    @SuppressWarnings("ReturnValueIgnored")
     private static boolean isMethodDefinedBySuperClass(Class<?> subclass, Class<?> superClass,
                                                        String methodName,
                                                        Class<?>[] methodParameters) {
@@ -126,15 +72,13 @@ class StaticMockMethodAdvice {
                 return true;
             }
 
-            try {
-                subclass.getDeclaredMethod(methodName, methodParameters);
-
+            if (ClassMetadataCache.forClass(subclass).declaresMethod(methodName,
+                    methodParameters)) {
                 // method is overridden is sub-class. hence the call could not have handled by
                 // the super-class.
                 return false;
-            } catch (NoSuchMethodException e) {
-                subclass = subclass.getSuperclass();
             }
+            subclass = subclass.getSuperclass();
         } while (subclass != null);
 
         // Subclass is not a sub class of superClass
@@ -153,11 +97,11 @@ class StaticMockMethodAdvice {
         return subclasses;
     }
 
-    private synchronized static native String nativeGetCalledClassName(Thread currentThread);
+    private synchronized static native String nativeGetCalledClassName(Thread currentThread,
+                                                                       Method origin);
 
-    private Class<?> getClassMethodWasCalledOn(MethodDesc methodDesc) throws ClassNotFoundException,
-            NoSuchMethodException {
-        Class<?> classDeclaringMethod = classForTypeName(methodDesc.className);
+    private Class<?> getClassMethodWasCalledOn(Method origin) {
+        Class<?> classDeclaringMethod = origin.getDeclaringClass();
 
         /* If a sub-class does not override a static method, the super-classes method is called
          * directly. Hence 'classDeclaringMethod' will be the super class. As the mocking of
@@ -165,42 +109,50 @@ class StaticMockMethodAdvice {
          * was actually called.
          */
         if (Modifier.isFinal(classDeclaringMethod.getModifiers())
-                || Modifier.isFinal(classDeclaringMethod.getDeclaredMethod(methodDesc.methodName,
-                methodDesc.methodParamTypes).getModifiers())) {
+                || Modifier.isFinal(origin.getModifiers())) {
             return classDeclaringMethod;
         } else {
-            boolean mightBeMocked = false;
+            ArrayList<Class<?>> mightBeCalled = new ArrayList<>();
             // if neither the defining class nor any subclass of it is mocked, no point of
             // trying to figure out the called class as isMocked will soon be checked.
             for (Class<?> subClass : getAllSubclasses(classDeclaringMethod, classToMarker.keySet())) {
                 if (isMethodDefinedBySuperClass(subClass, classDeclaringMethod,
-                        methodDesc.methodName, methodDesc.methodParamTypes)) {
-                    mightBeMocked = true;
-                    break;
+                        origin.getName(), origin.getParameterTypes())) {
+                    mightBeCalled.add(subClass);
                 }
             }
 
-            if (!mightBeMocked) {
+            if (mightBeCalled.isEmpty()) {
                 return null;
             }
 
-            String calledClassName = nativeGetCalledClassName(Thread.currentThread());
-            return Class.forName(calledClassName);
+            // Only mocked classes matter, so the called class does not need to be loaded by name.
+            String calledClassName = nativeGetCalledClassName(Thread.currentThread(), origin);
+            for (Class<?> candidate : mightBeCalled) {
+                if (candidate.getName().equals(calledClassName)) {
+                    return candidate;
+                }
+            }
+            return null;
         }
     }
 
     /**
-     * Get the method specified by {@code methodWithTypeAndSignature}.
+     * Get the method specified by {@code methodId}.
      *
      * @param ignored
-     * @param methodWithTypeAndSignature the description of the method
-     * @return method {@code methodWithTypeAndSignature} refer to
+     * @param methodId id the {@link MethodIds} assigned to the method
+     * @return method {@code methodId} refers to, or {@code null} if the call should not be
+     * intercepted
      */
     @SuppressWarnings("unused")
-    public Method getOrigin(Object ignored, String methodWithTypeAndSignature) throws Throwable {
-        MethodDesc methodDesc = new MethodDesc(methodWithTypeAndSignature);
+    public Method getOrigin(Object ignored, int methodId) throws Throwable {
+        Method origin = MethodIds.get(methodId);
+        if (origin == null) {
+            return null;
+        }
 
-        Class clazz = getClassMethodWasCalledOn(methodDesc);
+        Class clazz = getClassMethodWasCalledOn(origin);
         if (clazz == null) {
             return null;
         }
@@ -210,28 +162,27 @@ class StaticMockMethodAdvice {
             return null;
         }
 
-        return Class.forName(methodDesc.className).getDeclaredMethod(methodDesc.methodName,
-                methodDesc.methodParamTypes);
+        return origin;
     }
 
     /**
-     * Handle a method entry hook.
+     * Handle a method entry hook. Only called if {@link #getOrigin(Object, int)} returned a
+     * method.
      *
      * @param origin    method that contains the hook
-     * @param arguments arguments to the method
-     * @return A callable that can be called to get the mocked result or null if the method is not
-     * mocked.
+     * @param arguments arguments to the method, {@code null} if it has none
+     * @return the mocked result, or the result of the real method if the class stopped being
+     * mocked since {@link #getOrigin(Object, int)} was called.
      */
     @SuppressWarnings("unused")
-    public Callable<?> handle(Object methodDescStr, Method origin, Object[] arguments) throws
-            Throwable {
-        MethodDesc methodDesc = new MethodDesc((String) methodDescStr);
-        Class clazz = getClassMethodWasCalledOn(methodDesc);
+    public Object handle(Object ignored, Method origin, Object[] arguments) throws Throwable {
+        Class clazz = getClassMethodWasCalledOn(origin);
 
         Object marker = classToMarker.get(clazz);
+        SuperMethodCall superMethod = new SuperMethodCall(selfCallInfo, origin, marker, arguments);
         InvocationHandlerAdapter interceptor = markersToHandler.get(marker);
         if (interceptor == null) {
-            return null;
+            return superMethod.call();
         }
 
         // extended.StaticCapableStubber#whenInt
@@ -246,8 +197,7 @@ class StaticMockMethodAdvice {
             onVerify.accept(clazz, origin);
         }
 
-        return new ReturnValueWrapper(interceptor.interceptEntryHook(marker, origin, arguments,
-                new SuperMethodCall(selfCallInfo, origin, marker, arguments)));
+        return interceptor.interceptEntryHook(marker, origin, arguments, superMethod);
     }
 
     /**
@@ -268,51 +218,20 @@ class StaticMockMethodAdvice {
         return selfCallInfo.shouldMockMethod(marker) && isMarker(marker);
     }
 
-    private static class MethodDesc {
-        final String className;
-        final String methodName;
-        final Class<?>[] methodParamTypes;
-
-        private MethodDesc(String methodWithTypeAndSignature) throws ClassNotFoundException {
-            Matcher methodComponents = methodPattern.matcher(methodWithTypeAndSignature);
-            boolean wasFound = methodComponents.find();
-            if (!wasFound) {
-                throw new IllegalArgumentException();
-            }
-
-            className = methodComponents.group(1);
-            methodName = methodComponents.group(2);
-            String methodParamTypeNames[] = methodComponents.group(3).split(",");
-
-            ArrayList<Class<?>> methodParamTypesList = new ArrayList<>(methodParamTypeNames.length);
-            for (String methodParamName : methodParamTypeNames) {
-                if (!methodParamName.equals("")) {
-                    methodParamTypesList.add(nameToType(methodParamName));
-                }
-            }
-            methodParamTypes = methodParamTypesList.toArray(new Class<?>[]{});
-        }
-
-        @Override
-        public String toString() {
-            return className + "#" + methodName;
-        }
-    }
-
     /**
      * Used to call the real (non mocked) method.
      */
     private static class SuperMethodCall implements InvocationHandlerAdapter.SuperMethod {
         private final SelfCallInfo selfCallInfo;
         private final Method origin;
-        private final WeakReference<Object> marker;
+        private final Object marker;
         private final Object[] arguments;
 
         private SuperMethodCall(SelfCallInfo selfCallInfo, Method origin, Object marker,
                                 Object[] arguments) {
             this.selfCallInfo = selfCallInfo;
             this.origin = origin;
-            this.marker = new WeakReference(marker);
+            this.marker = marker;
             this.arguments = arguments;
         }
 
@@ -323,7 +242,7 @@ class StaticMockMethodAdvice {
          * @throws Throwable thrown by the read method
          */
         @Override
-        public Object invoke() throws Throwable {
+        public Object call() throws Throwable {
             if (!Modifier.isPublic(origin.getDeclaringClass().getModifiers()
                     & origin.getModifiers())) {
                 origin.setAccessible(true);
@@ -331,36 +250,19 @@ class StaticMockMethodAdvice {
 
             // By setting instance in the the selfCallInfo, once single method call on this instance
             // and thread will call the read method as isMocked will return false.
-            selfCallInfo.set(marker.get());
+            selfCallInfo.set(marker);
             return tryInvoke(origin, arguments);
         }
 
     }
 
-    /**
-     * Stores a return value of {@link #handle(Object, Method, Object[])} and returns in on
-     * {@link #call()}.
-     */
-    private static class ReturnValueWrapper implements Callable<Object> {
-        private final Object returned;
-
-        private ReturnValueWrapper(Object returned) {
-            this.returned = returned;
-        }
-
-        @Override
-        public Object call() {
-            return returned;
-        }
-    }
-
     /**
      * Used to call the original method. If a instance is {@link #set(Object)}
      * {@link #shouldMockMethod(Object)} returns false for this instance once.
      * <p>This is {@link ThreadLocal}, so a thread can {@link #set(Object)} and instance and then
      * call {@link #shouldMockMethod(Object)} without interference.
      *
-     * @see SuperMethodCall#invoke()
+     * @see SuperMethodCall#call()
      * @see #isMocked(Object)
      */
     private static class SelfCallInfo extends ThreadLocal<Object> {
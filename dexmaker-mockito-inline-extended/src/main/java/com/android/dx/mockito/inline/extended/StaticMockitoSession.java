@@ -23,6 +23,8 @@ import org.mockito.quality.Strictness;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import static com.android.dx.mockito.inline.InlineDexmakerMockMaker.beginTransformationBatch;
+import static com.android.dx.mockito.inline.InlineDexmakerMockMaker.flushTransformationBatch;
 import static com.android.dx.mockito.inline.InlineStaticMockMaker.mockingInProgressClass;
 
 /**
@@ -65,20 +67,40 @@ public class StaticMockitoSession implements MockitoSession {
      */
     @Override
     public void finishMocking(Throwable failure) {
+        // Restore the classes of all static mocks at once
+        Throwable finishFailure = null;
+
+        beginTransformationBatch();
         try {
-            instanceSession.finishMocking(failure);
-        } finally {
-            for (Class<?> clazz : staticMocks) {
-                mockingInProgressClass.set(clazz);
-                try {
-                    Mockito.reset(ExtendedMockito.staticMockMarker(clazz));
-                } finally {
-                    mockingInProgressClass.remove();
+            try {
+                instanceSession.finishMocking(failure);
+            } finally {
+                for (Class<?> clazz : staticMocks) {
+                    mockingInProgressClass.set(clazz);
+                    try {
+                        Mockito.reset(ExtendedMockito.staticMockMarker(clazz));
+                    } finally {
+                        mockingInProgressClass.remove();
+                    }
+                    classToMarker.remove(clazz);
                 }
-                classToMarker.remove(clazz);
+
+                ExtendedMockito.removeSession(this);
             }
+        } catch (Throwable t) {
+            finishFailure = t;
+            throw t;
+        } finally {
+            try {
+                flushTransformationBatch();
+            } catch (Throwable t) {
+                if (finishFailure == null) {
+                    throw t;
+                }
 
-            ExtendedMockito.removeSession(this);
+                // Do not hide the original failure
+                finishFailure.addSuppressed(t);
+            }
         }
     }
 
@@ -26,6 +26,8 @@ import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
 
+import static com.android.dx.mockito.inline.InlineDexmakerMockMaker.beginTransformationBatch;
+import static com.android.dx.mockito.inline.InlineDexmakerMockMaker.flushTransformationBatch;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.withSettings;
 
@@ -137,19 +139,46 @@ public class StaticMockitoSessionBuilder implements MockitoSessionBuilder {
 
     @Override
     public StaticMockitoSession startMocking() throws UnfinishedMockingSessionException {
-        StaticMockitoSession session
-                = new StaticMockitoSession(instanceSessionBuilder.startMocking());
+        StaticMockitoSession session = null;
+        Throwable failure = null;
+
+        // Transform the classes of all mocks created by the instance session (e.g. @Mock fields)
+        // and all static mocks at once
+        beginTransformationBatch();
         try {
-            for (StaticMocking mocking : staticMockings) {
-                session.mockStatic((StaticMocking<?>) mocking);
+            session = new StaticMockitoSession(instanceSessionBuilder.startMocking());
+            try {
+                for (StaticMocking mocking : staticMockings) {
+                    session.mockStatic((StaticMocking<?>) mocking);
+                }
+            } catch (Throwable t) {
+                try {
+                    session.finishMocking();
+                } catch (Throwable ignored) {
+                    // suppress all failures
+                }
+                throw t;
             }
         } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
             try {
-                session.finishMocking();
-            } catch (Throwable ignored) {
-                // suppress all failures
+                flushTransformationBatch();
+            } catch (Throwable t) {
+                if (failure != null) {
+                    // Do not hide the original failure
+                    failure.addSuppressed(t);
+                } else {
+                    // The mocks of the session do not work, hence do not leave it running
+                    try {
+                        session.finishMocking();
+                    } catch (Throwable ignored) {
+                        // suppress all failures
+                    }
+                    throw t;
+                }
             }
-            throw t;
         }
 
         return session;
@@ -267,12 +267,49 @@ namespace com_android_dx_mockito_inline {
                            == 0));
     }
 
+    // Get the id MethodIds assigned to a method of 'clazz'. Returns -1 if MethodIds cannot find
+    // the method, i.e. throws an IllegalArgumentException, which is cleared. Any other exception
+    // is left pending.
+    static jint
+    getMethodId(JNIEnv* env, jclass methodIds, jmethodID getId, jclass clazz,
+                ir::EncodedMethod *method) {
+        jstring name = env->NewStringUTF(method->decl->name->c_str());
+        jstring descriptor = env->NewStringUTF(method->decl->prototype->Signature().c_str());
+
+        jint methodId = env->CallStaticIntMethod(methodIds, getId, clazz, name, descriptor);
+
+        env->DeleteLocalRef(name);
+        env->DeleteLocalRef(descriptor);
+
+        jthrowable exception = env->ExceptionOccurred();
+        if (exception != nullptr) {
+            env->ExceptionClear();
+
+            jclass illegalArgument = env->FindClass("java/lang/IllegalArgumentException");
+            if (illegalArgument == nullptr) {
+                env->DeleteLocalRef(exception);
+                return -1;
+            }
+
+            if (!env->IsInstanceOf(exception, illegalArgument)) {
+                env->Throw(exception);
+            }
+
+            env->DeleteLocalRef(illegalArgument);
+            env->DeleteLocalRef(exception);
+            return -1;
+        }
+
+        return methodId;
+    }
+
     // Transforms the classes to add the mockito hooks
     // - equals and hashcode are handled in a special way
     extern "C" JNIEXPORT jbyteArray JNICALL
     Java_com_android_dx_mockito_inline_StaticClassTransformer_nativeRedefine(JNIEnv* env,
                                                                            jobject generator,
                                                                            jstring idStr,
+                                                                           jclass clazz,
                                                                            jbyteArray originalArr) {
         unsigned char* original = (unsigned char*)env->GetByteArrayElements(originalArr, 0);
 
@@ -281,11 +318,11 @@ namespace com_android_dx_mockito_inline {
         std::shared_ptr<ir::DexFile> dex_ir = reader.GetIr();
         ir::Builder b(dex_ir);
 
+        ir::Type* intScalarT = b.GetType("I");
         ir::Type* objectT = b.GetType("Ljava/lang/Object;");
         ir::Type* objectArrayT = b.GetType("[Ljava/lang/Object;");
         ir::Type* stringT = b.GetType("Ljava/lang/String;");
         ir::Type* methodT = b.GetType("Ljava/lang/reflect/Method;");
-        ir::Type* callableT = b.GetType("Ljava/util/concurrent/Callable;");
         ir::Type* dispatcherT = b.GetType("Lcom/android/dx/mockito/inline/MockMethodDispatcher;");
 
         // Add id to dex file
@@ -293,6 +330,18 @@ namespace com_android_dx_mockito_inline {
         ir::String* id = b.GetAsciiString(idNative);
         env->ReleaseStringUTFChars(idStr, idNative);
 
+        jclass methodIds = env->FindClass("com/android/dx/mockito/inline/MethodIds");
+        if (methodIds == nullptr) {
+            return nullptr;
+        }
+
+        jmethodID getId = env->GetStaticMethodID(methodIds, "getId",
+                                                 "(Ljava/lang/Class;Ljava/lang/String;"
+                                                 "Ljava/lang/String;)I");
+        if (getId == nullptr) {
+            return nullptr;
+        }
+
         for (auto& method : dex_ir->encoded_methods) {
             if (!canBeTransformed(method.get())) {
                 continue;
@@ -315,10 +364,10 @@ namespace com_android_dx_mockito_inline {
                 // }
                 if-eqz v0, original_method
 
-                // Method origin = dispatcher.getOrigin(this, methodDesc);
-                const-string v1 "fully.qualified.ClassName#original_method(int, long, String)"
+                // Method origin = dispatcher.getOrigin(null, methodId);
+                const v1, 42             # id MethodIds assigned to original_method
                 const v2, 0
-                invoke-virtual {v0, v2, v1}, MockMethodDispatcher.getOrigin(Object, String):Method
+                invoke-virtual {v0, v2, v1}, MockMethodDispatcher.getOrigin(Object, int):Method
                 move-result-object v1
 
                 // if (origin == null) {
@@ -326,7 +375,8 @@ namespace com_android_dx_mockito_inline {
                 // }
                 if-eqz v1, original_method
 
-                // Create an array with Objects of all parameters.
+                // Create an array with Objects of all parameters. Methods without parameters pass
+                // null instead.
 
                 //     Object[] arguments = new Object[3]
                 const v3, 3
@@ -359,32 +409,22 @@ namespace com_android_dx_mockito_inline {
                                                # high registers and ARG3 might be high
                 aput-object v3, v2, v4
 
-                // Callable<?> mocked = dispatcher.handle(methodDesc --as this parameter--,
-                //                                        origin, arguments);
-                const-string v3 "fully.qualified.ClassName#original_method(int, long, String)"
+                // Object ret = dispatcher.handle(null, origin, arguments);
+                const v3, 0
                 invoke-virtual {v0,v3,v1,v2}, MockMethodDispatcher.handle(Object, Method,
-                                                                          Object[]):Callable
+                                                                          Object[]):Object
                 move-result-object v0
 
-                //  if (mocked != null) {
-                if-eqz v0, original_method
-
-                //      Object ret = mocked.call();
-                invoke-interface {v0}, Callable.call():Object
-                move-result-object v0
-
-                //      Long retLong = (Long)ret
+                // Long retLong = (Long)ret
                 check-cast v0, Long
 
-                //      long retlong = retLong.longValue();
+                // long retlong = retLong.longValue();
                 invoke-virtual {v0}, Long.longValue():long
                 move-result-wide v0:v1
 
-                //      return retlong;
+                // return retlong;
                 return-wide v0:v1
 
-                //  }
-
             original_method:
                 // Move all method arguments down so that they match what the original code expects.
                 // Let's assume three arguments, one int, one long, one String and the and used to
@@ -399,6 +439,16 @@ namespace com_android_dx_mockito_inline {
             }
             */
 
+            // Methods MethodIds cannot find keep their original code, e.g. methods hidden from
+            // reflection.
+            jint methodId = getMethodId(env, methodIds, getId, clazz, method.get());
+            if (env->ExceptionCheck()) {
+                return nullptr;
+            }
+            if (methodId == -1) {
+                continue;
+            }
+
             CodeIr c(method.get(), dex_ir);
 
             // Make sure there are at least 5 local registers to use
@@ -412,25 +462,6 @@ namespace com_android_dx_mockito_inline {
 
             lir::Instruction* fi = *(c.instructions.begin());
 
-            // Add methodDesc to dex file
-            std::stringstream ss;
-            ss << method->decl->parent->Decl() << "#" << method->decl->name->c_str() << "(" ;
-            bool first = true;
-            if (method->decl->prototype->param_types != nullptr) {
-                for (const auto& type : method->decl->prototype->param_types->types) {
-                    if (first) {
-                        first = false;
-                    } else {
-                        ss << ",";
-                    }
-
-                    ss << type->Decl().c_str();
-                }
-            }
-            ss << ")";
-            std::string methodDescStr = ss.str();
-            ir::String* methodDesc = b.GetAsciiString(methodDescStr.c_str());
-
             size_t numParams = getNumParams(method.get());
 
             Label* originalMethodLabel = c.Alloc<Label>(0);
@@ -447,18 +478,20 @@ namespace com_android_dx_mockito_inline {
                     {0, 1});
             addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v0});
             addInstr(c, fi, OP_IF_EQZ, {v0, originalMethod});
-            addInstr(c, fi, OP_CONST_STRING,
-                     {v1, c.Alloc<String>(methodDesc, methodDesc->orig_index)});
+            addInstr(c, fi, OP_CONST, {v1, c.Alloc<Const32>(methodId)});
             addInstr(c, fi, OP_CONST, {v2, c.Alloc<Const32>(0)});
             addCall(b, c, fi, OP_INVOKE_VIRTUAL, dispatcherT, "getOrigin", methodT,
-                    {objectT, stringT}, {0, 2, 1});
+                    {objectT, intScalarT}, {0, 2, 1});
             addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v1});
             addInstr(c, fi, OP_IF_EQZ, {v1, originalMethod});
-            addInstr(c, fi, OP_CONST, {v3, c.Alloc<Const32>(numParams)});
-            addInstr(c, fi, OP_NEW_ARRAY, {v2, v3, c.Alloc<Type>(objectArrayT,
-                                                                 objectArrayT->orig_index)});
+            if (numParams == 0) {
+                // Methods without arguments pass null instead of a new empty array
+                addInstr(c, fi, OP_CONST, {v2, c.Alloc<Const32>(0)});
+            } else {
+                addInstr(c, fi, OP_CONST, {v3, c.Alloc<Const32>(numParams)});
+                addInstr(c, fi, OP_NEW_ARRAY, {v2, v3, c.Alloc<Type>(objectArrayT,
+                                                                     objectArrayT->orig_index)});
 
-            if (numParams > 0) {
                 int argReg = firstArg;
 
                 for (int argNum = 0; argNum < numParams; argNum++) {
@@ -500,15 +533,11 @@ namespace com_android_dx_mockito_inline {
                 }
             }
 
-            // NASTY Hack: Push in method name as "mock"
-            addInstr(c, fi, OP_CONST_STRING,
-                     {v3, c.Alloc<String>(methodDesc, methodDesc->orig_index)});
-            addCall(b, c, fi, OP_INVOKE_VIRTUAL, dispatcherT, "handle", callableT,
+            // Static methods have no instance to pass
+            addInstr(c, fi, OP_CONST, {v3, c.Alloc<Const32>(0)});
+            addCall(b, c, fi, OP_INVOKE_VIRTUAL, dispatcherT, "handle", objectT,
                     {objectT, methodT, objectArrayT}, {0, 3, 1, 2});
             addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v0});
-            addInstr(c, fi, OP_IF_EQZ, {v0, originalMethod});
-            addCall(b, c, fi, OP_INVOKE_INTERFACE, callableT, "call", objectT, {}, {0});
-            addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v0});
 
             ir::Type *returnType = method->decl->prototype->return_type;
             BoxingInfo boxingInfo = getBoxingInfo(b, returnType->descriptor->c_str()[0]);
@@ -739,16 +768,39 @@ namespace com_android_dx_mockito_inline {
         goto label; \
     }
 
-// stack frame of the caller if method was called directly
-#define DIRECT_CALL_STACK_FRAME (6)
+// number of stack frames searched for the caller of the hooked method
+#define MAX_STACK_FRAMES (64)
 
-// stack frame of the caller if method was called as 'real method'
-#define REALMETHOD_CALL_STACK_FRAME (23)
+    // Returns the number of the frame calling the innermost frame of 'method' at or above frame
+    // 'start', or -1 if there is none.
+    static jint FindCallingFrame(const jvmtiFrameInfo* frameInfo, jint numFrames, jint start,
+                                 jmethodID method) {
+        for (jint i = start; i < numFrames - 1; i++) {
+            if (frameInfo[i].method == method) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    static bool IsReflectiveCall(jvmtiEnv* jvmtiEnv, jmethodID method) {
+        char *methodName;
+        jvmtiError error = jvmtiEnv->GetMethodName(method, &methodName, nullptr, nullptr);
+        if (error != JVMTI_ERROR_NONE) {
+            return false;
+        }
+
+        bool isInvoke = strcmp(methodName, "invoke") == 0;
+        jvmtiEnv->Deallocate(reinterpret_cast<unsigned char*>(methodName));
+        return isInvoke;
+    }
 
     extern "C" JNIEXPORT jstring JNICALL
     Java_com_android_dx_mockito_inline_StaticMockMethodAdvice_nativeGetCalledClassName(JNIEnv* env,
                                                                             jclass klass,
-                                                                            jthread currentThread) {
+                                                                            jthread currentThread,
+                                                                            jobject origin) {
 
         JavaVM *vm;
         jint jvmError = env->GetJavaVM(&vm);
@@ -773,30 +825,32 @@ namespace com_android_dx_mockito_inline {
         memset(&cb, 0, sizeof(cb));
         cb.ClassFileLoadHook = InspectClass;
 
-        jvmtiFrameInfo frameInfo[REALMETHOD_CALL_STACK_FRAME + 1];
+        jvmtiFrameInfo frameInfo[MAX_STACK_FRAMES];
         jint numFrames;
-        error = jvmtiEnv->GetStackTrace(nullptr, 0, REALMETHOD_CALL_STACK_FRAME + 1, frameInfo,
-                                        &numFrames);
+        error = jvmtiEnv->GetStackTrace(nullptr, 0, MAX_STACK_FRAMES, frameInfo, &numFrames);
         GOTO_ON_ERROR(unregister_env_and_exit);
 
         // Method might be called directly or as 'real method' (see
-        // StaticMockMethodAdvice.SuperMethodCall#invoke). Hence the real caller might be in stack
-        // frame DIRECT_CALL_STACK_FRAME for a direct call or REALMETHOD_CALL_STACK_FRAME for a
-        // call through the 'real method' mechanism.
-        int callingFrameNum;
-        if (numFrames < REALMETHOD_CALL_STACK_FRAME) {
-            callingFrameNum = DIRECT_CALL_STACK_FRAME;
-        } else {
-            char *directCallMethodName;
-
-            jvmtiEnv->GetMethodName(frameInfo[DIRECT_CALL_STACK_FRAME].method,
-                                    &directCallMethodName, nullptr, nullptr);
-            if (strcmp(directCallMethodName, "invoke") == 0) {
-                callingFrameNum = REALMETHOD_CALL_STACK_FRAME;
-            } else {
-                callingFrameNum = DIRECT_CALL_STACK_FRAME;
+        // StaticMockMethodAdvice.SuperMethodCall#call). A real method is called via Method#invoke
+        // by the advice handling the intercepted call, hence the real caller is the one of the
+        // intercepted frame further up the stack. The frames are searched as the number of frames
+        // of the dispatcher, the advice and Mockito in between is not fixed.
+        jmethodID hookedMethod;
+        hookedMethod = env->FromReflectedMethod(origin);
+
+        jint callingFrameNum;
+        callingFrameNum = FindCallingFrame(frameInfo, numFrames, 0, hookedMethod);
+        if (callingFrameNum >= 0 && IsReflectiveCall(jvmtiEnv, frameInfo[callingFrameNum].method)) {
+            jint realMethodCallingFrameNum = FindCallingFrame(frameInfo, numFrames,
+                                                              callingFrameNum, hookedMethod);
+            if (realMethodCallingFrameNum >= 0) {
+                callingFrameNum = realMethodCallingFrameNum;
             }
         }
+        if (callingFrameNum < 0) {
+            error = JVMTI_ERROR_NO_MORE_FRAMES;
+            goto unregister_env_and_exit;
+        }
 
         jclass callingClass;
         error = jvmtiEnv->GetMethodDeclaringClass(frameInfo[callingFrameNum].method, &callingClass);
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.framework;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ClearMocks {
+    private static class Base {
+        String base() {
+            return "base";
+        }
+    }
+
+    private static final class Sub extends Base {
+        String sub() {
+            return "sub";
+        }
+    }
+
+    private static final class Unrelated {
+        String unrelated() {
+            return "unrelated";
+        }
+    }
+
+    @After
+    public void clearMocks() {
+        framework().clearInlineMocks();
+    }
+
+    @Test
+    public void clearedMockCallsRealMethods() throws Exception {
+        Unrelated mock = mock(Unrelated.class);
+        when(mock.unrelated()).thenReturn("fake");
+        assertEquals("fake", mock.unrelated());
+
+        framework().clearInlineMock(mock);
+
+        // The class has no live mocks anymore, so it got its original byte code back
+        assertFalse(mockingDetails(mock).isMock());
+        assertEquals("unrelated", mock.unrelated());
+        assertEquals("unrelated", new Unrelated().unrelated());
+    }
+
+    @Test
+    public void classIsTransformedAgainForNewMock() throws Exception {
+        framework().clearInlineMock(mock(Unrelated.class));
+
+        Unrelated mock = mock(Unrelated.class);
+        assertNull(mock.unrelated());
+        when(mock.unrelated()).thenReturn("fake");
+        assertEquals("fake", mock.unrelated());
+    }
+
+    @Test
+    public void mockOfSameClassKeepsWorkingWhenOtherMockIsCleared() throws Exception {
+        Unrelated cleared = mock(Unrelated.class);
+        Unrelated kept = mock(Unrelated.class);
+        when(kept.unrelated()).thenReturn("fake");
+
+        framework().clearInlineMock(cleared);
+
+        assertEquals("fake", kept.unrelated());
+        assertEquals("unrelated", cleared.unrelated());
+    }
+
+    @Test
+    public void mockOfSubClassKeepsWorkingWhenMockOfSuperClassIsCleared() throws Exception {
+        Base base = mock(Base.class);
+        Sub sub = mock(Sub.class);
+        when(sub.base()).thenReturn("fake base");
+        when(sub.sub()).thenReturn("fake sub");
+
+        // Base is still needed by the mock of Sub
+        framework().clearInlineMock(base);
+
+        assertEquals("fake base", sub.base());
+        assertEquals("fake sub", sub.sub());
+        assertEquals("base", base.base());
+    }
+
+    @Test
+    public void spyOfSuperClassKeepsWorkingWhenMockOfSubClassIsCleared() throws Exception {
+        Base spied = spy(new Base());
+        Sub sub = mock(Sub.class);
+        when(spied.base()).thenReturn("fake base");
+
+        framework().clearInlineMock(sub);
+
+        assertEquals("fake base", spied.base());
+        assertEquals("sub", sub.sub());
+        assertEquals("base", new Sub().base());
+    }
+
+    @Test
+    public void restoredClassGetsNewMethodIds() throws Exception {
+        framework().clearInlineMock(mock(Unrelated.class));
+
+        // The ids released by Unrelated are handed out to Base now, Unrelated gets other ones
+        Base base = mock(Base.class);
+        Unrelated unrelated = mock(Unrelated.class);
+        when(base.base()).thenReturn("fake base");
+        when(unrelated.unrelated()).thenReturn("fake");
+
+        assertEquals("fake base", base.base());
+        assertEquals("fake", unrelated.unrelated());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.framework;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public class ConcurrentMocks {
+    private static final int NUM_MOCKS = 2000;
+
+    private static final class Mocked {
+        String returnA() {
+            return "A";
+        }
+    }
+
+    @After
+    public void clearMocks() {
+        framework().clearInlineMocks();
+    }
+
+    @Test
+    public void lookupsWhileMocksAreAddedAndRemoved() throws Throwable {
+        final List<Mocked> stable = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Mocked mock = mock(Mocked.class);
+            when(mock.returnA()).thenReturn("fake" + i);
+            stable.add(mock);
+        }
+        final Mocked notMocked = new Mocked();
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        for (int i = 0; i < stable.size(); i++) {
+                            assertTrue(mockingDetails(stable.get(i)).isMock());
+                            assertEquals("fake" + i, stable.get(i).returnA());
+                        }
+                        assertFalse(mockingDetails(notMocked).isMock());
+                        assertEquals("A", notMocked.returnA());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+
+        try {
+            // Adding this many mocks resizes the table of mocks several times
+            List<Mocked> transientMocks = new ArrayList<>();
+            for (int i = 0; i < NUM_MOCKS; i++) {
+                transientMocks.add(mock(Mocked.class));
+                if (i % 2 == 1) {
+                    framework().clearInlineMock(transientMocks.get(i - 1));
+                }
+            }
+            for (int i = 0; i < NUM_MOCKS; i++) {
+                assertEquals(i % 2 == 1, mockingDetails(transientMocks.get(i)).isMock());
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.InlineDexmakerMockMaker;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+@RunWith(AndroidJUnit4.class)
+public class Dispatcher {
+    private static final class Mocked {
+        String returnA() {
+            return "A";
+        }
+    }
+
+    /** Implements everything but {@code handle} */
+    public static class IncompleteAdvice {
+        public Method getOrigin(Object instance, int methodId) {
+            return null;
+        }
+
+        public boolean isMock(Object instance) {
+            return false;
+        }
+    }
+
+    @Test
+    public void adviceWithoutHandleIsRejected() throws Exception {
+        // Sets up the dispatcher
+        Mocked mock = mock(Mocked.class);
+        when(mock.returnA()).thenReturn("fakeA");
+
+        Method set = InlineDexmakerMockMaker.DISPATCHER_CLASS.getMethod("set", String.class,
+                Object.class);
+        try {
+            set.invoke(null, Dispatcher.class.getName(), new IncompleteAdvice());
+            fail();
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(
+                    "handle(java.lang.Object, java.lang.reflect.Method, [Ljava.lang.Object;)"));
+        }
+
+        // The dispatcher of the mock maker is unaffected
+        assertEquals("fakeA", mock.returnA());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public class EntryHooks {
+    private static final class AllReturnTypes {
+        boolean z() {
+            return true;
+        }
+
+        byte b() {
+            return 1;
+        }
+
+        char c() {
+            return 'c';
+        }
+
+        short s() {
+            return 2;
+        }
+
+        int i() {
+            return 3;
+        }
+
+        long j() {
+            return 4;
+        }
+
+        float f() {
+            return 5;
+        }
+
+        double d() {
+            return 6;
+        }
+
+        String l() {
+            return "l";
+        }
+
+        int[] a() {
+            return new int[] {7};
+        }
+
+        void v() {
+            throw new IllegalStateException("real");
+        }
+
+        int add(int a, int b) {
+            return a + b;
+        }
+    }
+
+    @Test
+    public void mockReturnsDefaultsForAllReturnTypes() throws Exception {
+        AllReturnTypes mock = mock(AllReturnTypes.class);
+
+        assertFalse(mock.z());
+        assertEquals(0, mock.b());
+        assertEquals(0, mock.c());
+        assertEquals(0, mock.s());
+        assertEquals(0, mock.i());
+        assertEquals(0, mock.j());
+        assertEquals(0, mock.f(), 0);
+        assertEquals(0, mock.d(), 0);
+        assertNull(mock.l());
+        assertNull(mock.a());
+        mock.v();
+        assertEquals(0, mock.add(1, 2));
+    }
+
+    @Test
+    public void mockReturnsStubbedValuesForAllReturnTypes() throws Exception {
+        AllReturnTypes mock = mock(AllReturnTypes.class);
+
+        when(mock.z()).thenReturn(true);
+        when(mock.b()).thenReturn((byte) -1);
+        when(mock.c()).thenReturn('x');
+        when(mock.s()).thenReturn((short) -2);
+        when(mock.i()).thenReturn(-3);
+        when(mock.j()).thenReturn(Long.MAX_VALUE);
+        when(mock.f()).thenReturn(-5f);
+        when(mock.d()).thenReturn(Double.MIN_VALUE);
+        when(mock.l()).thenReturn("fake");
+        when(mock.add(anyInt(), anyInt())).thenReturn(42);
+
+        assertTrue(mock.z());
+        assertEquals(-1, mock.b());
+        assertEquals('x', mock.c());
+        assertEquals(-2, mock.s());
+        assertEquals(-3, mock.i());
+        assertEquals(Long.MAX_VALUE, mock.j());
+        assertEquals(-5f, mock.f(), 0);
+        assertEquals(Double.MIN_VALUE, mock.d(), 0);
+        assertEquals("fake", mock.l());
+        assertEquals(42, mock.add(1, 2));
+    }
+
+    @Test
+    public void spyCallsRealMethodsWithAndWithoutArguments() throws Exception {
+        AllReturnTypes spy = spy(new AllReturnTypes());
+
+        assertTrue(spy.z());
+        assertEquals(3, spy.i());
+        assertEquals(4, spy.j());
+        assertEquals(6, spy.d(), 0);
+        assertEquals(7, spy.a()[0]);
+        assertEquals(5, spy.add(2, 3));
+        try {
+            spy.v();
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("real", expected.getMessage());
+        }
+
+        verify(spy).add(2, 3);
+    }
+
+    @Test
+    public void stubbedExceptionIsThrownFromVoidMethod() throws Exception {
+        AllReturnTypes mock = mock(AllReturnTypes.class);
+        doThrow(new UnsupportedOperationException("fake")).when(mock).v();
+
+        try {
+            mock.v();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            assertEquals("fake", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void storedInvocationCallsRealMethodLater() throws Throwable {
+        AllReturnTypes spy = spy(new AllReturnTypes());
+        final AtomicReference<InvocationOnMock> stored = new AtomicReference<>();
+        doAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                stored.set(invocation);
+                return -1;
+            }
+        }).when(spy).add(1, 2);
+
+        assertEquals(-1, spy.add(1, 2));
+        // Other intercepted calls in between must not affect the stored invocation
+        assertEquals(9, spy.add(4, 5));
+        assertEquals(3, spy.i());
+
+        assertEquals(3, stored.get().callRealMethod());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.framework;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class LiveMocks {
+    private static final class Mocked {
+        private final String a;
+
+        Mocked(String a) {
+            this.a = a;
+        }
+
+        String returnA() {
+            return a;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Mocked && ((Mocked) other).a.equals(a);
+        }
+
+        @Override
+        public int hashCode() {
+            return a.hashCode();
+        }
+    }
+
+    @After
+    public void clearMocks() {
+        framework().clearInlineMocks();
+    }
+
+    @Test
+    public void instancesWorkAfterAllMocksAreCleared() throws Exception {
+        Mocked mock = mock(Mocked.class);
+        when(mock.returnA()).thenReturn("fake");
+        assertEquals("fake", mock.returnA());
+
+        framework().clearInlineMocks();
+
+        Mocked real = new Mocked("A");
+        assertEquals("A", real.returnA());
+        assertTrue(real.equals(new Mocked("A")));
+        assertFalse(real.equals(new Mocked("B")));
+        assertEquals("A".hashCode(), real.hashCode());
+    }
+
+    @Test
+    public void newMockInterceptsAfterAllMocksWereCleared() throws Exception {
+        mock(Mocked.class);
+        framework().clearInlineMocks();
+
+        // The first mock after a period without mocks enables the entry hooks again
+        Mocked mock = mock(Mocked.class);
+        assertNull(mock.returnA());
+        when(mock.returnA()).thenReturn("fake");
+        assertEquals("fake", mock.returnA());
+
+        // equals and hashCode of mocks use identity, also after the hooks were skipped
+        Mocked other = mock(Mocked.class);
+        assertTrue(mock.equals(mock));
+        assertFalse(mock.equals(other));
+        assertEquals(System.identityHashCode(mock), mock.hashCode());
+    }
+
+    @Test
+    public void spyInterceptsWhileOtherMocksComeAndGo() throws Exception {
+        Mocked spied = spy(new Mocked("A"));
+        when(spied.returnA()).thenReturn("fakeA");
+
+        for (int i = 0; i < 10; i++) {
+            Mocked transientMock = mock(Mocked.class);
+            framework().clearInlineMock(transientMock);
+
+            assertEquals("fakeA", spied.returnA());
+            assertEquals("B", new Mocked("B").returnA());
+        }
+    }
+}
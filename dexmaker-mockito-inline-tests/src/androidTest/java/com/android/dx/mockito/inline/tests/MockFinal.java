@@ -74,6 +74,22 @@ public class MockFinal {
         assertSame(fakeBinder, mockService.onBind(new Intent()));
     }
 
+    @Test
+    public void spyAndroidFrameworkClass() throws Exception {
+        // Intent has methods that are hidden from reflection. These keep their original code,
+        // which must not prevent the other methods from being spied on.
+        Intent spied = spy(new Intent("action"));
+
+        assertEquals("action", spied.getAction());
+        assertEquals("action", spied.cloneFilter().getAction());
+
+        when(spied.getAction()).thenReturn("fakeAction");
+        assertEquals("fakeAction", spied.getAction());
+
+        // Other instances are unaffected
+        assertEquals("action", new Intent("action").getAction());
+    }
+
     private static final class FinalNonDefaultConstructorClass {
         public FinalNonDefaultConstructorClass(int i) {
         }
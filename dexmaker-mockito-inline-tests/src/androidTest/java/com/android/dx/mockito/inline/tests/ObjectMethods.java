@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ObjectMethods {
+    public interface DeclaresObjectMethods {
+        boolean equals(Object other);
+
+        int hashCode();
+
+        boolean equals(String other);
+
+        int hashCode(int seed);
+    }
+
+    public static abstract class AbstractObjectMethods {
+        @Override
+        public abstract boolean equals(Object other);
+
+        @Override
+        public abstract int hashCode();
+    }
+
+    @Test
+    public void proxiedEqualsAndHashCodeUseIdentity() throws Exception {
+        DeclaresObjectMethods mock = mock(DeclaresObjectMethods.class);
+        DeclaresObjectMethods other = mock(DeclaresObjectMethods.class);
+
+        assertTrue(mock.equals((Object) mock));
+        assertFalse(mock.equals((Object) other));
+        assertEquals(System.identityHashCode(mock), mock.hashCode());
+    }
+
+    @Test
+    public void abstractEqualsAndHashCodeUseIdentity() throws Exception {
+        AbstractObjectMethods mock = mock(AbstractObjectMethods.class);
+
+        assertTrue(mock.equals(mock));
+        assertFalse(mock.equals(mock(AbstractObjectMethods.class)));
+        assertEquals(System.identityHashCode(mock), mock.hashCode());
+    }
+
+    @Test
+    public void overloadsOfObjectMethodsAreMocked() throws Exception {
+        DeclaresObjectMethods mock = mock(DeclaresObjectMethods.class);
+
+        when(mock.equals("A")).thenReturn(true);
+        when(mock.hashCode(42)).thenReturn(7);
+
+        assertTrue(mock.equals("A"));
+        assertFalse(mock.equals("B"));
+        assertEquals(7, mock.hashCode(42));
+        assertEquals(0, mock.hashCode(1));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class Overloads {
+    private static final class Overloaded {
+        String call() {
+            return "()";
+        }
+
+        String call(int i) {
+            return "(int)";
+        }
+
+        String call(long l) {
+            return "(long)";
+        }
+
+        String call(Integer i) {
+            return "(Integer)";
+        }
+
+        String call(Object o) {
+            return "(Object)";
+        }
+
+        String call(int[] a) {
+            return "(int[])";
+        }
+
+        String call(Object[] a) {
+            return "(Object[])";
+        }
+
+        String call(String[][] a) {
+            return "(String[][])";
+        }
+
+        int call(int i, long l) {
+            return 1;
+        }
+
+        long call(long l, int i) {
+            return 2;
+        }
+    }
+
+    @Test
+    public void mockedOverloadsResolveToTheirOwnMethod() throws Exception {
+        Overloaded mock = mock(Overloaded.class);
+
+        when(mock.call()).thenReturn("fake ()");
+        when(mock.call(anyInt())).thenReturn("fake (int)");
+        when(mock.call(anyLong())).thenReturn("fake (long)");
+        when(mock.call(any(Integer.class))).thenReturn("fake (Integer)");
+        when(mock.call(any(Object.class))).thenReturn("fake (Object)");
+        when(mock.call(any(int[].class))).thenReturn("fake (int[])");
+        when(mock.call(any(Object[].class))).thenReturn("fake (Object[])");
+        when(mock.call(any(String[][].class))).thenReturn("fake (String[][])");
+        when(mock.call(anyInt(), anyLong())).thenReturn(-1);
+        when(mock.call(anyLong(), anyInt())).thenReturn(-2L);
+
+        assertEquals("fake ()", mock.call());
+        assertEquals("fake (int)", mock.call(1));
+        assertEquals("fake (long)", mock.call(1L));
+        assertEquals("fake (Integer)", mock.call(Integer.valueOf(1)));
+        assertEquals("fake (Object)", mock.call(new Object()));
+        assertEquals("fake (int[])", mock.call(new int[0]));
+        assertEquals("fake (Object[])", mock.call(new Object[0]));
+        assertEquals("fake (String[][])", mock.call(new String[0][]));
+        assertEquals(-1, mock.call(1, 1L));
+        assertEquals(-2L, mock.call(1L, 1));
+    }
+
+    @Test
+    public void spiedOverloadsCallTheirOwnRealMethod() throws Exception {
+        Overloaded spy = spy(new Overloaded());
+
+        assertEquals("()", spy.call());
+        assertEquals("(int)", spy.call(1));
+        assertEquals("(long)", spy.call(1L));
+        assertEquals("(Integer)", spy.call(Integer.valueOf(1)));
+        assertEquals("(Object)", spy.call(new Object()));
+        assertEquals("(int[])", spy.call(new int[0]));
+        assertEquals("(Object[])", spy.call(new Object[0]));
+        assertEquals("(String[][])", spy.call(new String[0][]));
+        assertEquals(1, spy.call(1, 1L));
+        assertEquals(2L, spy.call(1L, 1));
+
+        verify(spy).call(1);
+        verify(spy).call(1L);
+        verify(spy).call(any(String[][].class));
+    }
+}
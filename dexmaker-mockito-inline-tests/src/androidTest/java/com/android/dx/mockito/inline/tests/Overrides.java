@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class Overrides {
+    private static class Base {
+        String overridden() {
+            return "base";
+        }
+
+        String inherited() {
+            return "inherited";
+        }
+    }
+
+    private static class Derived extends Base {
+        @Override
+        String overridden() {
+            return "derived " + super.overridden();
+        }
+    }
+
+    private static class DerivedAgain extends Derived {
+    }
+
+    @Test
+    public void superCallOfSpyIsNotInterceptedAgain() throws Exception {
+        Derived spied = spy(new Derived());
+
+        assertEquals("derived base", spied.overridden());
+        assertEquals("inherited", spied.inherited());
+
+        verify(spied, times(1)).overridden();
+        verify(spied, times(1)).inherited();
+    }
+
+    @Test
+    public void mocksOfEachTypeInTheHierarchyAreIntercepted() throws Exception {
+        Base base = mock(Base.class);
+        Derived derived = mock(Derived.class);
+        DerivedAgain derivedAgain = mock(DerivedAgain.class);
+
+        when(base.overridden()).thenReturn("fake base");
+        when(derived.overridden()).thenReturn("fake derived");
+        when(derivedAgain.inherited()).thenReturn("fake inherited");
+
+        // Call the same origin methods on the different runtime types repeatedly
+        for (int i = 0; i < 3; i++) {
+            assertEquals("fake base", base.overridden());
+            assertEquals("fake derived", derived.overridden());
+            assertNull(derivedAgain.overridden());
+            assertNull(base.inherited());
+            assertNull(derived.inherited());
+            assertEquals("fake inherited", derivedAgain.inherited());
+        }
+    }
+
+    @Test
+    public void spiesOfEachTypeInTheHierarchyCallTheirRealMethod() throws Exception {
+        Base base = spy(new Base());
+        Derived derived = spy(new Derived());
+        DerivedAgain derivedAgain = spy(new DerivedAgain());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("base", base.overridden());
+            assertEquals("derived base", derived.overridden());
+            assertEquals("derived base", derivedAgain.overridden());
+        }
+
+        verify(base, times(3)).overridden();
+        verify(derived, times(3)).overridden();
+        verify(derivedAgain, times(3)).overridden();
+    }
+}
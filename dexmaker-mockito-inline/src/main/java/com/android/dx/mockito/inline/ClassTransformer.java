@@ -22,9 +22,11 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.security.ProtectionDomain;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -41,29 +43,16 @@ import java.util.Set;
  * <li>agent.cc::Transform</li>
  * <li>{@link JvmtiAgent#runTransformers(ClassLoader, String, Class, ProtectionDomain, byte[])}</li>
  * <li>{@link #transform(Class, byte[])}</li>
- * <li>{@link #nativeRedefine(String, byte[])}</li>
+ * <li>{@link #nativeRedefine(String, Class, byte[])}</li>
  * </ol>
  *
  */
 class ClassTransformer {
-    // Some classes are so deeply optimized inside the runtime that they cannot be transformed
-    private static final Set<Class<? extends java.io.Serializable>> EXCLUDES = new HashSet<>(
-            Arrays.asList(Class.class,
-                    Boolean.class,
-                    Byte.class,
-                    Short.class,
-                    Character.class,
-                    Integer.class,
-                    Long.class,
-                    Float.class,
-                    Double.class,
-                    String.class));
-
     /** Jvmti agent responsible for triggering transformation s*/
     private final JvmtiAgent agent;
 
-    /** Types that have already be transformed */
-    private final Set<Class<?>> mockedTypes;
+    /** Number of mocks that need each type to be transformed */
+    private final MockedTypes mockedTypes = new MockedTypes();
 
     /**
      * A unique identifier that is baked into the transformed classes. The entry hooks will then
@@ -81,6 +70,13 @@ class ClassTransformer {
      */
     private final static Object lock = new Object();
 
+    /**
+     * Retransformations deferred by the current thread.
+     *
+     * @see #beginBatch()
+     */
+    private static final ThreadLocal<Batch> batch = new ThreadLocal<>();
+
     /**
      * Create a new generator.
      *
@@ -96,7 +92,6 @@ class ClassTransformer {
     ClassTransformer(JvmtiAgent agent, Class dispatcherClass,
                      Map<Object, InvocationHandlerAdapter> mocks) {
         this.agent = agent;
-        mockedTypes = Collections.synchronizedSet(new HashSet<Class<?>>());
         identifier = String.valueOf(System.identityHashCode(this));
         MockMethodAdvice advice = new MockMethodAdvice(mocks);
 
@@ -128,37 +123,185 @@ class ClassTransformer {
         }
 
         synchronized (lock) {
-            Set<Class<?>> types = new HashSet<>();
-            Class<?> type = features.mockedType;
+            List<Class<?>> types = mockedTypes.add(features.mockedType);
 
-            do {
-                boolean wasAdded = mockedTypes.add(type);
-
-                if (wasAdded) {
-                    if (!EXCLUDES.contains(type)) {
-                        types.add(type);
-                    }
+            if (!types.isEmpty()) {
+                try {
+                    retransformClasses(agent, types);
+                } catch (UnmodifiableClassException exception) {
+                    mockedTypes.undoAdd(features.mockedType);
 
-                    type = type.getSuperclass();
-                } else {
-                    break;
+                    throw new MockitoException("Could not modify all classes " + types, exception);
                 }
-            } while (type != null && !type.isInterface());
+            }
+        }
+    }
+
+    /**
+     * Undo {@link #mockClass(MockFeatures)} once for each of the types. Classes that are not
+     * needed by any mock anymore are restored to their original byte code, all in a single
+     * retransformation.
+     *
+     * @param mockedTypes types previously passed to {@link #mockClass(MockFeatures)}
+     */
+    void unmockClasses(Collection<Class<?>> mockedTypes) {
+        if (mockedTypes.isEmpty()) {
+            return;
+        }
+
+        synchronized (lock) {
+            List<Class<?>> types = this.mockedTypes.remove(mockedTypes);
 
             if (!types.isEmpty()) {
                 try {
-                    agent.requestTransformClasses(types.toArray(new Class<?>[types.size()]));
+                    // As the types are not mocked anymore transform() leaves them alone
+                    retransformClasses(agent, types);
                 } catch (UnmodifiableClassException exception) {
-                    for (Class<?> failed : types) {
-                        mockedTypes.remove(failed);
-                    }
+                    throw new MockitoException("Could not restore all classes " + types,
+                            exception);
+                }
+            }
+        }
+    }
 
-                    throw new MockitoException("Could not modify all classes " + types, exception);
+    /**
+     * Retransform classes, or defer this until the end of the batch if the current thread is
+     * inside a {@link #beginBatch() batch}.
+     *
+     * @param agent agent to retransform the classes with
+     * @param types classes to retransform
+     *
+     * @throws UnmodifiableClassException If one of the classes can not be transformed
+     */
+    static void retransformClasses(TransformingAgent agent, Collection<Class<?>> types)
+            throws UnmodifiableClassException {
+        Batch currentBatch = batch.get();
+
+        if (currentBatch == null) {
+            agent.requestTransformClasses(types.toArray(new Class<?>[types.size()]));
+        } else {
+            if (currentBatch.agent == null) {
+                currentBatch.agent = agent;
+            }
+            currentBatch.types.addAll(types);
+        }
+    }
+
+    /**
+     * Remember that a type was mocked inside the current thread's batch, so that this can be
+     * {@link MockedTypes#rollBack rolled back} if the batch cannot be flushed. Does nothing
+     * outside of a batch.
+     *
+     * @param owner mocked types of the transformer that mocked the type
+     * @param mockedType type passed to {@link MockedTypes#add(Class)}
+     */
+    static void deferMockClass(MockedTypes owner, Class<?> mockedType) {
+        Batch currentBatch = batch.get();
+
+        if (currentBatch != null) {
+            List<Class<?>> mockedTypes = currentBatch.mockedTypes.get(owner);
+            if (mockedTypes == null) {
+                mockedTypes = new ArrayList<>();
+                currentBatch.mockedTypes.put(owner, mockedTypes);
+            }
+            mockedTypes.add(mockedType);
+        }
+    }
+
+    /**
+     * Undo {@link #deferMockClass(MockedTypes, Class)} as a mocked type was released
+     * before the end of the batch.
+     *
+     * @param owner mocked types of the transformer that mocked the type
+     * @param mockedType type passed to {@link MockedTypes#add(Class)}
+     */
+    static void forgetMockClass(MockedTypes owner, Class<?> mockedType) {
+        Batch currentBatch = batch.get();
+
+        if (currentBatch != null) {
+            List<Class<?>> mockedTypes = currentBatch.mockedTypes.get(owner);
+            if (mockedTypes != null) {
+                mockedTypes.remove(mockedType);
+            }
+        }
+    }
+
+    /**
+     * Start deferring the retransformations triggered by the current thread, for both instance
+     * and static mocks, until the matching {@link #flush()}. The collected classes are then
+     * retransformed in a single call.
+     *
+     * <p>Mocks created inside a batch do not intercept any calls before the batch is flushed.
+     * Batches can be nested, only the outermost {@link #flush()} retransforms.
+     */
+    static void beginBatch() {
+        Batch currentBatch = batch.get();
+
+        if (currentBatch == null) {
+            currentBatch = new Batch();
+            batch.set(currentBatch);
+        }
+        currentBatch.depth++;
+    }
+
+    /**
+     * End the batch started by the matching {@link #beginBatch()}. If this is the outermost batch,
+     * retransform all classes whose transformation was deferred.
+     *
+     * <p>If the classes cannot be retransformed, all types mocked inside the batch are
+     * {@link MockedTypes#rollBack rolled back}, so that later mocks of these types
+     * retransform them again.
+     */
+    static void flush() {
+        Batch currentBatch = batch.get();
+
+        if (currentBatch == null) {
+            throw new IllegalStateException("No batch to flush");
+        }
+
+        if (--currentBatch.depth > 0) {
+            return;
+        }
+        batch.remove();
+
+        if (!currentBatch.types.isEmpty()) {
+            try {
+                // The transformers decide based on the current state of the mocks, hence it
+                // does not matter if a class was mocked and unmocked again inside the batch.
+                currentBatch.agent.requestTransformClasses(currentBatch.types.toArray(
+                        new Class<?>[currentBatch.types.size()]));
+            } catch (UnmodifiableClassException exception) {
+                for (Map.Entry<MockedTypes, List<Class<?>>> mockedTypes
+                        : currentBatch.mockedTypes.entrySet()) {
+                    mockedTypes.getKey().rollBack(mockedTypes.getValue());
                 }
+
+                throw new MockitoException("Could not modify all classes " + currentBatch.types,
+                        exception);
             }
         }
     }
 
+    /**
+     * Retransformations deferred by a thread.
+     */
+    private static class Batch {
+        /** Number of nested {@link #beginBatch()} calls that were not flushed yet */
+        int depth;
+
+        /**
+         * Agent to retransform {@link #types} with. As a retransformation runs the transformers
+         * of all agents, it does not matter which agent deferred a class.
+         */
+        TransformingAgent agent;
+
+        /** Classes to retransform at the end of the batch */
+        final Set<Class<?>> types = new LinkedHashSet<>();
+
+        /** Types mocked inside the batch, by the {@link MockedTypes} they were added to */
+        final Map<MockedTypes, List<Class<?>>> mockedTypes = new HashMap<>();
+    }
+
     /**
      * Add entry hooks to all methods of a class.
      *
@@ -177,7 +320,7 @@ class ClassTransformer {
             return null;
         } else {
             try {
-                return nativeRedefine(identifier, classfileBuffer);
+                return nativeRedefine(identifier, classBeingRedefined, classfileBuffer);
             } catch (Throwable throwable) {
                 throw new IllegalClassFormatException();
             }
@@ -195,5 +338,6 @@ class ClassTransformer {
         return classBeingRedefined != null && mockedTypes.contains(classBeingRedefined);
     }
 
-    private native byte[] nativeRedefine(String identifier, byte[] original);
+    private native byte[] nativeRedefine(String identifier, Class<?> classBeingRedefined,
+                                         byte[] original);
 }
@@ -16,10 +16,10 @@
 
 package com.android.dx.mockito.inline;
 
-import android.os.AsyncTask;
 import android.os.Build;
 import android.util.ArraySet;
 
+import com.android.dx.stock.ClassMetadataCache;
 import com.android.dx.stock.ProxyBuilder;
 import com.android.dx.stock.ProxyBuilder.MethodSetEntry;
 
@@ -43,11 +43,14 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Generates mock instances on Android's runtime that can mock final methods.
@@ -150,6 +153,15 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
             } catch (InvocationTargetException e) {
                 throw e.getCause();
             }
+
+            // The agent asks MethodIds for the id of each method it adds a hook to. MethodIds
+            // finds the method via reflection, which only sees blacklisted methods if it is
+            // trusted.
+            try {
+                allowHiddenApiReflectionFrom.invoke(null, MethodIds.class);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
         } catch (Throwable throwable) {
             agent = null;
             initializationError = throwable;
@@ -165,7 +177,7 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
      * modified, some are not. This list helps the {@link MockMethodAdvice} help figure out if a
      * object's method calls should be intercepted.
      */
-    private final Map<Object, InvocationHandlerAdapter> mocks;
+    private final MockMap mocks;
 
     /**
      * Class doing the actual byte code transformation.
@@ -184,10 +196,30 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
                     + "Device: " + Build.BRAND + " " + Build.MODEL, INITIALIZATION_ERROR);
         }
 
-        mocks = new MockMap();
+        mocks = new MockMap(DISPATCHER_CLASS);
         classTransformer = new ClassTransformer(AGENT, DISPATCHER_CLASS, mocks);
     }
 
+    /**
+     * Defer the byte code transformations of all mocks created or reset by the current thread
+     * until the matching {@link #flushTransformationBatch()}, so that the classes of many mocks
+     * are transformed at once. Mocks do not work before the batch is flushed.
+     *
+     * <p>Each call needs to be followed by a call to {@link #flushTransformationBatch()}, usually
+     * in a {@code finally} block. Batches can be nested.
+     */
+    public static void beginTransformationBatch() {
+        ClassTransformer.beginBatch();
+    }
+
+    /**
+     * End the batch started by {@link #beginTransformationBatch()}. If it is the outermost batch
+     * all deferred transformations are executed.
+     */
+    public static void flushTransformationBatch() {
+        ClassTransformer.flush();
+    }
+
     /**
      * Get methods to proxy.
      *
@@ -204,12 +236,14 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
 
         Class<?> superClass = settings.getTypeToMock();
         while (superClass != null) {
-            for (Method method : superClass.getDeclaredMethods()) {
-                if (Modifier.isAbstract(method.getModifiers())
-                        && !nonAbstractMethods.contains(new MethodSetEntry(method))) {
-                    abstractMethods.add(new MethodSetEntry(method));
+            ClassMetadataCache metadata = ClassMetadataCache.forClass(superClass);
+            Set<MethodSetEntry> declaredAbstractMethods = metadata.getAbstractMethods();
+            for (MethodSetEntry entry : metadata.getDeclaredMethodEntries()) {
+                if (declaredAbstractMethods.contains(entry)
+                        && !nonAbstractMethods.contains(entry)) {
+                    abstractMethods.add(entry);
                 } else {
-                    nonAbstractMethods.add(new MethodSetEntry(method));
+                    nonAbstractMethods.add(entry);
                 }
             }
 
@@ -217,19 +251,11 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
         }
 
         for (Class<?> i : settings.getTypeToMock().getInterfaces()) {
-            for (Method method : i.getMethods()) {
-                if (!nonAbstractMethods.contains(new MethodSetEntry(method))) {
-                    abstractMethods.add(new MethodSetEntry(method));
-                }
-            }
+            addInterfaceMethods(i, nonAbstractMethods, abstractMethods);
         }
 
         for (Class<?> i : settings.getExtraInterfaces()) {
-            for (Method method : i.getMethods()) {
-                if (!nonAbstractMethods.contains(new MethodSetEntry(method))) {
-                    abstractMethods.add(new MethodSetEntry(method));
-                }
-            }
+            addInterfaceMethods(i, nonAbstractMethods, abstractMethods);
         }
 
         Method[] methodsToProxy = new Method[abstractMethods.size()];
@@ -241,6 +267,15 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
         return methodsToProxy;
     }
 
+    private static void addInterfaceMethods(Class<?> i, Set<MethodSetEntry> nonAbstractMethods,
+            Set<MethodSetEntry> abstractMethods) {
+        for (MethodSetEntry entry : ClassMetadataCache.forClass(i).getMethodEntries()) {
+            if (!nonAbstractMethods.contains(entry)) {
+                abstractMethods.add(entry);
+            }
+        }
+    }
+
     @Override
     public <T> T createMock(MockCreationSettings<T> settings, MockHandler handler) {
         Class<T> typeToMock = settings.getTypeToMock();
@@ -249,6 +284,7 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
         InvocationHandlerAdapter handlerAdapter = new InvocationHandlerAdapter(handler);
 
         T mock;
+        Class<?> transformedType = null;
         if (typeToMock.isInterface()) {
             // support interfaces via java.lang.reflect.Proxy
             Class[] classesToMock = new Class[extraInterfaces.length + 1];
@@ -264,57 +300,85 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
 
             // Add entry hooks to non-abstract methods.
             classTransformer.mockClass(MockFeatures.withMockFeatures(typeToMock, interfacesSet));
+            transformedType = typeToMock;
+
+            try {
+                mock = createClassMock(settings, typeToMock, extraInterfaces, subclassingRequired,
+                        handlerAdapter);
+            } catch (RuntimeException | Error e) {
+                classTransformer.unmockClasses(Collections.singletonList(transformedType));
+                throw e;
+            }
+        }
 
-            Class<? extends T> proxyClass;
+        mocks.put(mock, handlerAdapter, transformedType);
+        restoreUnmockedClasses();
+        return mock;
+    }
 
-            Instantiator instantiator = Mockito.framework().getPlugins()
-                    .getDefaultPlugin(InstantiatorProvider2.class).getInstantiator(settings);
+    /**
+     * Create a mock of a class whose methods already have entry hooks.
+     */
+    private <T> T createClassMock(MockCreationSettings<T> settings, Class<T> typeToMock,
+                                  Class<?>[] extraInterfaces, boolean subclassingRequired,
+                                  InvocationHandlerAdapter handlerAdapter) {
+        T mock;
+        Class<? extends T> proxyClass;
 
-            if (subclassingRequired) {
-                try {
-                    // support abstract methods via dexmaker's ProxyBuilder
-                    ProxyBuilder builder = ProxyBuilder.forClass(typeToMock).implementing
-                            (extraInterfaces)
-                            .onlyMethods(getMethodsToProxy(settings)).withSharedClassLoader();
+        Instantiator instantiator = Mockito.framework().getPlugins()
+                .getDefaultPlugin(InstantiatorProvider2.class).getInstantiator(settings);
 
-                    if (Build.VERSION.SDK_INT >= 28) {
-                        builder.markTrusted();
-                    }
+        if (subclassingRequired) {
+            try {
+                // support abstract methods via dexmaker's ProxyBuilder
+                ProxyBuilder builder = ProxyBuilder.forClass(typeToMock).implementing
+                        (extraInterfaces)
+                        .onlyMethods(getMethodsToProxy(settings)).withSharedClassLoader();
 
-                    proxyClass = builder.buildProxyClass();
-                } catch (RuntimeException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new MockitoException("Failed to mock " + typeToMock, e);
+                if (Build.VERSION.SDK_INT >= 28) {
+                    builder.markTrusted();
                 }
 
+                proxyClass = builder.buildProxyClass();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new MockitoException("Failed to mock " + typeToMock, e);
+            }
+
+            try {
+                mock = instantiator.newInstance(proxyClass);
+            } catch (org.mockito.creation.instance.InstantiationException e) {
+                throw new MockitoException("Unable to create mock instance of type '"
+                        + proxyClass.getSuperclass().getSimpleName() + "'", e);
+            }
+
+            ProxyBuilder.setInvocationHandler(mock, handlerAdapter);
+        } else {
+            if (settings.getSpiedInstance() != null
+                    && onSpyInProgressInstance.get() == settings.getSpiedInstance()) {
+                mock = (T) onSpyInProgressInstance.get();
+            } else {
                 try {
-                    mock = instantiator.newInstance(proxyClass);
+                    mock = instantiator.newInstance(typeToMock);
                 } catch (org.mockito.creation.instance.InstantiationException e) {
                     throw new MockitoException("Unable to create mock instance of type '"
-                            + proxyClass.getSuperclass().getSimpleName() + "'", e);
-                }
-
-                ProxyBuilder.setInvocationHandler(mock, handlerAdapter);
-            } else {
-                if (settings.getSpiedInstance() != null
-                        && onSpyInProgressInstance.get() == settings.getSpiedInstance()) {
-                    mock = (T) onSpyInProgressInstance.get();
-                } else {
-                    try {
-                        mock = instantiator.newInstance(typeToMock);
-                    } catch (org.mockito.creation.instance.InstantiationException e) {
-                        throw new MockitoException("Unable to create mock instance of type '"
-                                + typeToMock.getSimpleName() + "'", e);
-                    }
+                            + typeToMock.getSimpleName() + "'", e);
                 }
             }
         }
 
-        mocks.put(mock, handlerAdapter);
         return mock;
     }
 
+    /**
+     * Restore the original byte code of classes that are not needed by any mock anymore, i.e.
+     * whose mocks were cleared or garbage collected.
+     */
+    private void restoreUnmockedClasses() {
+        classTransformer.unmockClasses(mocks.takeReleasedTypes());
+    }
+
     @Override
     public void resetMock(Object mock, MockHandler newHandler, MockCreationSettings settings) {
         InvocationHandlerAdapter adapter = getInvocationHandlerAdapter(mock);
@@ -349,11 +413,13 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
     @Override
     public void clearMock(Object mock) {
         mocks.remove(mock);
+        restoreUnmockedClasses();
     }
 
     @Override
     public void clearAllMocks() {
         mocks.clear();
+        restoreUnmockedClasses();
     }
 
     @Override
@@ -378,336 +444,378 @@ public final class InlineDexmakerMockMaker implements InlineMockMaker {
     }
 
     /**
-     * A map mock -> adapter that holds weak references to the mocks and cleans them up when a
-     * stale reference is found.
+     * A map mock -> adapter that holds weak references to the mocks and compares them by identity.
+     *
+     * <p>Every call of a method of a transformed class looks up the instance in this map, on any
+     * thread. Lookups therefore neither lock nor allocate: they read the current table and walk
+     * the chain of its bucket. Changes are rare and serialized by a lock. They only ever publish
+     * fully constructed entries, so a concurrent lookup sees either the old or the new chain.
+     *
+     * <p>Entries of collected mocks are queued by the garbage collector. Each change removes a
+     * few of them, so stale entries are drained incrementally without a background task. Lookups
+     * that miss drain them too every now and then, as there might be no further changes once the
+     * last mock is gone.
+     *
+     * <p>The number of entries is mirrored into {@code MockMethodDispatcher#sNumMocks} which lets
+     * the entry hooks skip all of this while there are no mocks.
+     *
+     * <p>Entries remember the type the {@link ClassTransformer} added entry hooks to for their
+     * mock. Once an entry is gone, for whatever reason, its type is queued so that the mock maker
+     * can {@link ClassTransformer#unmockClasses release} it.
      */
     private static class MockMap extends ReferenceQueue<Object>
             implements Map<Object, InvocationHandlerAdapter> {
-        private static final int MIN_CLEAN_INTERVAL_MILLIS = 16000;
-        private static final int MAX_GET_WITHOUT_CLEAN = 16384;
+        private static final int INITIAL_CAPACITY = 64;
 
-        private final Object lock = new Object();
-        private StrongKey cachedKey;
+        /** Maximum number of stale entries removed by a single change. */
+        private static final int MAX_DRAIN = 32;
 
-        private HashMap<WeakKey, InvocationHandlerAdapter> adapters = new HashMap<>();
+        /** Number of lookups that miss before stale entries are drained. */
+        private static final int MISSES_PER_DRAIN = 1024;
 
-        /**
-         * The time we issues the last cleanup
-         */
-        long mLastCleanup = 0;
+        private final Object lock = new Object();
 
-        /**
-         * If {@link #cleanStaleReferences} is currently cleaning stale references out of
-         * {@link #adapters}
-         */
-        private boolean isCleaning = false;
+        /** Buckets of entries. Replaced, never modified, when resized. */
+        private volatile AtomicReferenceArray<WeakEntry> table =
+                new AtomicReferenceArray<>(INITIAL_CAPACITY);
 
-        /**
-         * The number of time {@link #get} was called without cleaning up stale references.
-         * {@link #get} is a method that is called often.
-         *
-         * We need to do periodic cleanups as we might never look at mocks at higher indexes and
-         * hence never realize that their references are stale.
-         */
-        private int getCount = 0;
+        /** Number of entries, including stale ones that were not drained yet. */
+        private volatile int size;
 
-        /**
-         * Try to get a recycled cached key.
-         *
-         * @param obj the reference the key wraps
-         *
-         * @return The recycled cached key or a new one
-         */
-        private StrongKey createStrongKey(Object obj) {
-            synchronized (lock) {
-                if (cachedKey == null) {
-                    cachedKey = new StrongKey();
-                }
+        /** Lookups that missed since the last drain. Updated racily, it is only a heuristic. */
+        private int misses;
 
-                cachedKey.obj = obj;
-                StrongKey newKey = cachedKey;
-                cachedKey = null;
+        /** {@code MockMethodDispatcher#updateNumMocks} */
+        private final Method updateNumMocks;
 
-                return newKey;
+        /** Transformed types of entries that are gone. Only accessed while holding the lock */
+        private ArrayList<Class<?>> releasedTypes = new ArrayList<>();
+
+        MockMap(Class<?> dispatcherClass) {
+            try {
+                updateNumMocks = dispatcherClass.getMethod("updateNumMocks", int.class);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
             }
         }
 
+        private static int indexFor(int hash, int length) {
+            return hash & (length - 1);
+        }
+
         /**
-         * Recycle a key. The key should not be used afterwards
-         *
-         * @param key The key to recycle
+         * Find the live entry for {@code mock}. Does not lock.
          */
-        private void recycleStrongKey(StrongKey key) {
-            synchronized (lock) {
-                cachedKey = key;
+        private WeakEntry getEntry(Object mock) {
+            if (mock == null) {
+                return null;
             }
+
+            int hash = System.identityHashCode(mock);
+            AtomicReferenceArray<WeakEntry> tab = table;
+            for (WeakEntry e = tab.get(indexFor(hash, tab.length())); e != null; e = e.next) {
+                if (e.hash == hash && e.get() == mock) {
+                    return e;
+                }
+            }
+
+            return null;
         }
 
         @Override
         public int size() {
-            return adapters.size();
+            return size;
         }
 
         @Override
         public boolean isEmpty() {
-            return adapters.isEmpty();
+            return size == 0;
         }
 
-        @SuppressWarnings("CollectionIncompatibleType")
         @Override
         public boolean containsKey(Object mock) {
-            synchronized (lock) {
-                StrongKey key = createStrongKey(mock);
-                boolean containsKey = adapters.containsKey(key);
-                recycleStrongKey(key);
+            if (getEntry(mock) != null) {
+                return true;
+            }
 
-                return containsKey;
+            if (++misses >= MISSES_PER_DRAIN && size > 0) {
+                misses = 0;
+                synchronized (lock) {
+                    drainStaleEntries();
+                }
             }
+
+            return false;
         }
 
         @Override
         public boolean containsValue(Object adapter) {
-            synchronized (lock) {
-                return adapters.containsValue(adapter);
-            }
+            return values().contains(adapter);
         }
 
-        @SuppressWarnings("CollectionIncompatibleType")
         @Override
         public InvocationHandlerAdapter get(Object mock) {
-            synchronized (lock) {
-                if (getCount > MAX_GET_WITHOUT_CLEAN) {
-                    cleanStaleReferences();
-                    getCount = 0;
-                } else {
-                    getCount++;
-                }
-
-                StrongKey key = createStrongKey(mock);
-                InvocationHandlerAdapter adapter = adapters.get(key);
-                recycleStrongKey(key);
+            WeakEntry e = getEntry(mock);
+            return e != null ? e.value : null;
+        }
 
-                return adapter;
-            }
+        @Override
+        public InvocationHandlerAdapter put(Object mock, InvocationHandlerAdapter adapter) {
+            return put(mock, adapter, null);
         }
 
         /**
-         * Remove entries that reference a stale mock from {@link #adapters}.
+         * Same as {@link #put(Object, InvocationHandlerAdapter)}, but also records the type entry
+         * hooks were added to for this mock.
+         *
+         * @param transformedType type passed to {@link ClassTransformer#mockClass}, or
+         *                        {@code null} if no class was transformed for the mock
          */
-        private void cleanStaleReferences() {
+        InvocationHandlerAdapter put(Object mock, InvocationHandlerAdapter adapter,
+                                     Class<?> transformedType) {
             synchronized (lock) {
-                if (!isCleaning) {
-                    if (System.currentTimeMillis() - MIN_CLEAN_INTERVAL_MILLIS < mLastCleanup) {
-                        return;
-                    }
-
-                    isCleaning = true;
+                drainStaleEntries();
 
-                    AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            synchronized (lock) {
-                                while (true) {
-                                    Reference<?> ref = MockMap.this.poll();
-                                    if (ref == null) {
-                                        break;
-                                    }
+                WeakEntry existing = getEntry(mock);
+                if (existing != null) {
+                    InvocationHandlerAdapter oldValue = existing.value;
+                    existing.value = adapter;
 
-                                    adapters.remove(ref);
-                                }
+                    // The existing entry already holds on to its own type
+                    if (transformedType != null) {
+                        releasedTypes.add(transformedType);
+                    }
+                    return oldValue;
+                }
 
-                                mLastCleanup = System.currentTimeMillis();
-                                isCleaning = false;
-                            }
-                        }
-                    });
+                AtomicReferenceArray<WeakEntry> tab = table;
+                if (size >= tab.length() * 3 / 4) {
+                    tab = resize(tab);
                 }
-            }
-        }
 
-        @Override
-        public InvocationHandlerAdapter put(Object mock, InvocationHandlerAdapter adapter) {
-            synchronized (lock) {
-                InvocationHandlerAdapter oldValue = remove(mock);
-                adapters.put(new WeakKey(mock), adapter);
+                int hash = System.identityHashCode(mock);
+                int index = indexFor(hash, tab.length());
+                tab.set(index, new WeakEntry(mock, hash, adapter, transformedType, tab.get(index),
+                        this));
+                setSize(size + 1);
 
-                return oldValue;
+                return null;
             }
         }
 
-        @SuppressWarnings("CollectionIncompatibleType")
         @Override
         public InvocationHandlerAdapter remove(Object mock) {
             synchronized (lock) {
-                StrongKey key = createStrongKey(mock);
-                InvocationHandlerAdapter adapter = adapters.remove(key);
-                recycleStrongKey(key);
+                drainStaleEntries();
 
-                return adapter;
-            }
-        }
-
-        @Override
-        public void putAll(Map<?, ? extends InvocationHandlerAdapter> map) {
-            synchronized (lock) {
-                for (Entry<?, ? extends InvocationHandlerAdapter> entry : map.entrySet()) {
-                    put(entry.getKey(), entry.getValue());
+                WeakEntry e = getEntry(mock);
+                if (e == null) {
+                    return null;
                 }
-            }
-        }
 
-        @Override
-        public void clear() {
-            synchronized (lock) {
-                adapters.clear();
+                unlink(e);
+                return e.value;
             }
         }
 
-        @Override
-        public Set<Object> keySet() {
-            synchronized (lock) {
-                Set<Object> mocks = new ArraySet<>(adapters.size());
-
-                boolean hasStaleReferences = false;
-                for (WeakKey key : adapters.keySet()) {
-                    Object mock = key.get();
-
-                    if (mock == null) {
-                        hasStaleReferences = true;
+        /**
+         * Remove an entry from its bucket. Concurrent lookups that are currently at the entry can
+         * still continue along its chain.
+         */
+        private void unlink(WeakEntry entry) {
+            AtomicReferenceArray<WeakEntry> tab = table;
+            int index = indexFor(entry.hash, tab.length());
+
+            WeakEntry prev = null;
+            for (WeakEntry e = tab.get(index); e != null; prev = e, e = e.next) {
+                if (e == entry) {
+                    if (prev == null) {
+                        tab.set(index, e.next);
                     } else {
-                        mocks.add(mock);
+                        prev.next = e.next;
                     }
+                    setSize(size - 1);
+                    release(e);
+                    return;
                 }
+            }
+        }
 
-                if (hasStaleReferences) {
-                    cleanStaleReferences();
-                }
+        /**
+         * Change the number of entries and tell the dispatcher about it. Called with the lock held.
+         */
+        private void setSize(int newSize) {
+            int delta = newSize - size;
+            size = newSize;
 
-                return mocks;
+            if (delta != 0) {
+                try {
+                    updateNumMocks.invoke(null, delta);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new IllegalStateException(e);
+                }
             }
         }
 
-        @Override
-        public Collection<InvocationHandlerAdapter> values() {
-            synchronized (lock) {
-                return adapters.values();
+        /**
+         * Queue the transformed type of an entry that was removed. Called with the lock held.
+         */
+        private void release(WeakEntry entry) {
+            if (entry.transformedType != null) {
+                releasedTypes.add(entry.transformedType);
             }
         }
 
-        @Override
-        public Set<Entry<Object, InvocationHandlerAdapter>> entrySet() {
+        /**
+         * Get and forget the transformed types of all entries removed since the last call.
+         *
+         * @return one element per removed entry, hence a type might be contained multiple times
+         */
+        List<Class<?>> takeReleasedTypes() {
             synchronized (lock) {
-                Set<Entry<Object, InvocationHandlerAdapter>> entries = new ArraySet<>(
-                        adapters.size());
-
-                boolean hasStaleReferences = false;
-                for (Entry<WeakKey, InvocationHandlerAdapter> entry : adapters.entrySet()) {
-                    Object mock = entry.getKey().get();
-
-                    if (mock == null) {
-                        hasStaleReferences = true;
-                    } else {
-                        entries.add(new AbstractMap.SimpleEntry<>(mock, entry.getValue()));
-                    }
+                if (releasedTypes.isEmpty()) {
+                    return Collections.emptyList();
                 }
 
-                if (hasStaleReferences) {
-                    cleanStaleReferences();
+                List<Class<?>> types = releasedTypes;
+                releasedTypes = new ArrayList<>();
+                return types;
+            }
+        }
+
+        /**
+         * Remove entries of mocks that were garbage collected. Called with the lock held.
+         */
+        private void drainStaleEntries() {
+            for (int i = 0; i < MAX_DRAIN; i++) {
+                Reference<?> ref = poll();
+                if (ref == null) {
+                    return;
                 }
 
-                return entries;
+                // Entries dropped by a resize are not in the table any more and are ignored.
+                unlink((WeakEntry) ref);
             }
         }
 
         /**
-         * A weakly referencing wrapper to a mock.
-         *
-         * Only equals other weak or strong keys where the mock is the same.
+         * Copy all live entries into a table twice the size. Called with the lock held.
          */
-        private class WeakKey extends WeakReference<Object> {
-            private final int hashCode;
+        private AtomicReferenceArray<WeakEntry> resize(AtomicReferenceArray<WeakEntry> oldTab) {
+            AtomicReferenceArray<WeakEntry> newTab = new AtomicReferenceArray<>(
+                    oldTab.length() * 2);
+
+            int newSize = 0;
+            for (int i = 0; i < oldTab.length(); i++) {
+                // Entries are copied as concurrent lookups might still walk the old chains.
+                for (WeakEntry e = oldTab.get(i); e != null; e = e.next) {
+                    Object mock = e.get();
+                    if (mock != null) {
+                        int index = indexFor(e.hash, newTab.length());
+                        newTab.set(index, new WeakEntry(mock, e.hash, e.value, e.transformedType,
+                                newTab.get(index), this));
+                        newSize++;
+                    } else {
+                        release(e);
+                    }
+                }
+            }
 
-            private WeakKey(/*@NonNull*/ Object obj) {
-                super(obj, MockMap.this);
+            table = newTab;
+            setSize(newSize);
+            return newTab;
+        }
 
-                // Cache the hashcode as the referenced object might disappear
-                hashCode = System.identityHashCode(obj);
+        @Override
+        public void putAll(Map<?, ? extends InvocationHandlerAdapter> map) {
+            synchronized (lock) {
+                for (Entry<?, ? extends InvocationHandlerAdapter> entry : map.entrySet()) {
+                    put(entry.getKey(), entry.getValue());
+                }
             }
+        }
 
-            @Override
-            public boolean equals(Object other) {
-                if (other == this) {
-                    return true;
+        @Override
+        public void clear() {
+            synchronized (lock) {
+                AtomicReferenceArray<WeakEntry> oldTab = table;
+                for (int i = 0; i < oldTab.length(); i++) {
+                    for (WeakEntry e = oldTab.get(i); e != null; e = e.next) {
+                        release(e);
+                    }
                 }
 
-                if (other == null) {
-                    return false;
-                }
+                table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+                setSize(0);
 
-                // Checking hashcode is cheap
-                if (other.hashCode() != hashCode) {
-                    return false;
+                while (poll() != null) {
+                    // All queued entries belong to the old table.
                 }
+            }
+        }
 
-                Object obj = get();
+        @Override
+        public Set<Object> keySet() {
+            Set<Object> mocks = new ArraySet<>(size);
+            for (Entry<Object, InvocationHandlerAdapter> entry : entrySet()) {
+                mocks.add(entry.getKey());
+            }
 
-                if (obj == null) {
-                    cleanStaleReferences();
-                    return false;
-                }
+            return mocks;
+        }
 
-                if (other instanceof WeakKey) {
-                    Object otherObj = ((WeakKey) other).get();
+        @Override
+        public Collection<InvocationHandlerAdapter> values() {
+            ArrayList<InvocationHandlerAdapter> adapters = new ArrayList<>(size);
+            for (Entry<Object, InvocationHandlerAdapter> entry : entrySet()) {
+                adapters.add(entry.getValue());
+            }
 
-                    if (otherObj == null) {
-                        cleanStaleReferences();
-                        return false;
-                    }
+            return adapters;
+        }
 
-                    return obj == otherObj;
-                } else if (other instanceof StrongKey) {
-                    Object otherObj = ((StrongKey) other).obj;
-                    return obj == otherObj;
-                } else {
-                    return false;
+        @Override
+        public Set<Entry<Object, InvocationHandlerAdapter>> entrySet() {
+            synchronized (lock) {
+                drainStaleEntries();
+
+                Set<Entry<Object, InvocationHandlerAdapter>> entries = new ArraySet<>(size);
+                AtomicReferenceArray<WeakEntry> tab = table;
+                for (int i = 0; i < tab.length(); i++) {
+                    for (WeakEntry e = tab.get(i); e != null; e = e.next) {
+                        Object mock = e.get();
+                        if (mock != null) {
+                            entries.add(new AbstractMap.SimpleEntry<>(mock, e.value));
+                        }
+                    }
                 }
-            }
 
-            @Override
-            public int hashCode() {
-                return hashCode;
+                return entries;
             }
         }
 
         /**
-         * A strongly referencing wrapper to a mock.
-         *
-         * Only equals other weak or strong keys where the mock is the same.
+         * An entry of the map. Weakly references the mock and is queued once it is collected.
          */
-        private class StrongKey {
-            /*@NonNull*/ private Object obj;
+        private static class WeakEntry extends WeakReference<Object> {
+            /** Identity hash code of the mock, kept as the mock might disappear. */
+            final int hash;
 
-            @Override
-            public boolean equals(Object other) {
-                if (other instanceof WeakKey) {
-                    Object otherObj = ((WeakKey) other).get();
+            volatile InvocationHandlerAdapter value;
 
-                    if (otherObj == null) {
-                        cleanStaleReferences();
-                        return false;
-                    }
+            /** Type transformed for the mock, {@code null} if none */
+            final Class<?> transformedType;
 
-                    return obj == otherObj;
-                } else if (other instanceof StrongKey) {
-                    return this.obj == ((StrongKey)other).obj;
-                } else {
-                    return false;
-                }
-            }
+            volatile WeakEntry next;
 
-            @Override
-            public int hashCode() {
-                return System.identityHashCode(obj);
+            private WeakEntry(Object mock, int hash, InvocationHandlerAdapter value,
+                              Class<?> transformedType, WeakEntry next,
+                              ReferenceQueue<Object> queue) {
+                super(mock, queue);
+                this.hash = hash;
+                this.value = value;
+                this.transformedType = transformedType;
+                this.next = next;
             }
         }
     }
@@ -33,23 +33,22 @@ import static org.mockito.Mockito.withSettings;
  * {@link InlineDexmakerMockMaker#createMock(MockCreationSettings, MockHandler)}
  */
 final class InvocationHandlerAdapter implements InvocationHandler {
+    /** Passed to Mockito for methods without arguments. Empty, so it cannot be modified. */
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
     private MockHandler handler;
 
+    /**
+     * Settings of the mocked type, built by the first invocation. Entry hooks and proxied methods
+     * pass different types.
+     */
+    private volatile MockCreationSettings<?> entryHookSettings;
+    private volatile MockCreationSettings<?> proxySettings;
+
     InvocationHandlerAdapter(MockHandler handler) {
         this.handler = handler;
     }
 
-    private static boolean isEqualsMethod(Method method) {
-        return method.getName().equals("equals")
-                && method.getParameterTypes().length == 1
-                && method.getParameterTypes()[0] == Object.class;
-    }
-
-    private static boolean isHashCodeMethod(Method method) {
-        return method.getName().equals("hashCode")
-                && method.getParameterTypes().length == 0;
-    }
-
     /**
      * Intercept a method call. Called <u>before</u> a method is called by the method entry hook.
      *
@@ -59,26 +58,21 @@ final class InvocationHandlerAdapter implements InvocationHandler {
      * @param mock mocked object
      * @param method method that was called
      * @param rawArgs arguments to the method
-     * @param superMethod The super method
+     * @param superMethod The super method, passed to Mockito as is
      *
      * @return mocked result
      * @throws Throwable An exception if thrown
      */
-    Object interceptEntryHook(final Object mock, final Method method, final Object[] rawArgs,
-                              final SuperMethod superMethod) throws Throwable {
+    Object interceptEntryHook(Object mock, Method method, Object[] rawArgs,
+                              SuperMethod superMethod) throws Throwable {
         // args can be null if the method invoked has no arguments, but Mockito expects a non-null
         Object[] args = rawArgs;
         if (rawArgs == null) {
-            args = new Object[0];
+            args = NO_ARGUMENTS;
         }
 
         return handler.handle(Mockito.framework().getInvocationFactory().createInvocation(mock,
-                withSettings().build(mock.getClass()), method, new RealMethodBehavior() {
-                    @Override
-                    public Object call() throws Throwable {
-                        return superMethod.invoke();
-                    }
-                }, args));
+                getEntryHookSettings(mock.getClass()), method, superMethod, args));
     }
 
     /**
@@ -100,7 +94,7 @@ final class InvocationHandlerAdapter implements InvocationHandler {
         // args can be null if the method invoked has no arguments, but Mockito expects a non-null
         Object[] args = rawArgs;
         if (rawArgs == null) {
-            args = new Object[0];
+            args = NO_ARGUMENTS;
         }
 
         if (isEqualsMethod(method)) {
@@ -110,7 +104,7 @@ final class InvocationHandlerAdapter implements InvocationHandler {
         }
 
         return handler.handle(Mockito.framework().getInvocationFactory().createInvocation(proxy,
-                withSettings().build(proxy.getClass().getSuperclass()), method,
+                getProxySettings(proxy.getClass().getSuperclass()), method,
                 new RealMethodBehavior() {
                     @Override
                     public Object call() throws Throwable {
@@ -119,6 +113,25 @@ final class InvocationHandlerAdapter implements InvocationHandler {
                 }, args));
     }
 
+    // Concurrent first invocations build equal settings, it does not matter which is kept.
+    private MockCreationSettings<?> getEntryHookSettings(Class<?> mockedType) {
+        MockCreationSettings<?> settings = entryHookSettings;
+        if (settings == null) {
+            settings = withSettings().build(mockedType);
+            entryHookSettings = settings;
+        }
+        return settings;
+    }
+
+    private MockCreationSettings<?> getProxySettings(Class<?> mockedType) {
+        MockCreationSettings<?> settings = proxySettings;
+        if (settings == null) {
+            settings = withSettings().build(mockedType);
+            proxySettings = settings;
+        }
+        return settings;
+    }
+
     /**
      * Get the handler registered with this adapter.
      *
@@ -135,10 +148,22 @@ final class InvocationHandlerAdapter implements InvocationHandler {
         this.handler = handler;
     }
 
+    private static boolean isEqualsMethod(Method method) {
+        if (!method.getName().equals("equals")) {
+            return false;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        return parameterTypes.length == 1 && parameterTypes[0] == Object.class;
+    }
+
+    private static boolean isHashCodeMethod(Method method) {
+        return method.getName().equals("hashCode") && method.getParameterTypes().length == 0;
+    }
+
     /**
-     * Interface used to describe a supermethod that can be called.
+     * Interface used to describe a supermethod that can be called. Implementations are handed to
+     * Mockito directly, so intercepting a call does not allocate a wrapper around them.
      */
-    interface SuperMethod {
-        Object invoke() throws Throwable;
+    interface SuperMethod extends RealMethodBehavior {
     }
 }
@@ -33,7 +33,7 @@ import dalvik.system.BaseDexClassLoader;
 /**
  * Interface to the native jvmti agent in agent.cc
  */
-class JvmtiAgent {
+class JvmtiAgent implements TransformingAgent {
     private static final String AGENT_LIB_NAME = "libdexmakerjvmtiagent.so";
 
     private static final Object lock = new Object();
@@ -159,7 +159,8 @@ class JvmtiAgent {
      *
      * @throws UnmodifiableClassException If one of the classes can not be transformed
      */
-    void requestTransformClasses(Class<?>[] classes) throws UnmodifiableClassException {
+    @Override
+    public void requestTransformClasses(Class<?>[] classes) throws UnmodifiableClassException {
         synchronized (lock) {
             try {
                 nativeRetransformClasses(classes);
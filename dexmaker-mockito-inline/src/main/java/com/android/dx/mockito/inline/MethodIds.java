@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers the methods that get method entry hooks. The agents look up the id of each method while
+ * transforming its class and bake it into the hook as a constant. At runtime the hook hands the id
+ * to the advice which then finds the origin method with a single array read. Data the advice
+ * caches per method is kept {@link Entry next to the id}.
+ *
+ * <p>The {@link MockedTypes} {@link #retain(Class) retain} a class while it is transformed. All
+ * methods of a class get their ids when the first one is looked up, so re-transforming a retained
+ * class yields the same ids again. Once no transformer needs a class anymore its ids are
+ * {@link #release(Class) released}, so that restored classes and their class loaders can be
+ * garbage collected. Released ids are handed out again later.
+ */
+final class MethodIds {
+    private static final Object lock = new Object();
+
+    /** Retained classes. Only accessed while holding {@link #lock} */
+    private static final Map<Class<?>, TypeIds> types = new HashMap<>();
+
+    /** Id -> entry, {@code null} for free ids. Replaced whenever it needs to grow */
+    private static volatile Entry[] entries = new Entry[64];
+
+    /** Released ids. Only accessed while holding {@link #lock} */
+    private static final ArrayList<Integer> freeIds = new ArrayList<>();
+
+    /** Number of ids handed out so far. Only accessed while holding {@link #lock} */
+    private static int numIds;
+
+    private MethodIds() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the method for an id.
+     *
+     * @param id id previously returned by {@link #getId}
+     *
+     * @return the method with this id, or {@code null} if the class of the method was released.
+     *         Hooks of released classes only run until the class is restored.
+     */
+    static Method get(int id) {
+        Entry entry = entries[id];
+        return entry == null ? null : entry.method;
+    }
+
+    /**
+     * Get the entry for an id.
+     *
+     * @param id id previously returned by {@link #getId}
+     *
+     * @return the entry with this id, or {@code null} if the class of the method was released
+     */
+    static Entry getEntry(int id) {
+        return entries[id];
+    }
+
+    /**
+     * Start using the ids of a class. Each call needs to be followed by a call to
+     * {@link #release(Class)} once the class does not need to be transformed anymore.
+     *
+     * @param type class that is going to be transformed
+     */
+    static void retain(Class<?> type) {
+        synchronized (lock) {
+            TypeIds typeIds = types.get(type);
+            if (typeIds == null) {
+                typeIds = new TypeIds();
+                types.put(type, typeIds);
+            }
+
+            typeIds.numUsers++;
+        }
+    }
+
+    /**
+     * Stop using the ids of a class. Releases the ids if no-one else {@link #retain(Class) retains}
+     * the class.
+     *
+     * @param type class that does not need to be transformed anymore
+     */
+    static void release(Class<?> type) {
+        synchronized (lock) {
+            TypeIds typeIds = types.get(type);
+            if (--typeIds.numUsers > 0) {
+                return;
+            }
+            types.remove(type);
+
+            if (typeIds.ids != null) {
+                Entry[] table = entries;
+                for (int id : typeIds.ids.values()) {
+                    table[id] = null;
+                    freeIds.add(id);
+                }
+                // Always write the volatile field, so that readers see the released entries
+                entries = table;
+            }
+        }
+    }
+
+    /**
+     * Get the id of a method. Called by the agents while transforming {@code type}.
+     *
+     * @param type retained class declaring the method
+     * @param name name of the method
+     * @param descriptor dex descriptor of the method, e.g. {@code (IJLjava/lang/String;)J}
+     *
+     * @return id of the method
+     *
+     * @throws IllegalArgumentException if the method cannot be found, e.g. because it is hidden
+     *                                  from reflection. The agents then leave it unhooked.
+     */
+    @SuppressWarnings("unused")
+    static int getId(Class<?> type, String name, String descriptor) {
+        synchronized (lock) {
+            TypeIds typeIds = types.get(type);
+            if (typeIds == null) {
+                throw new IllegalStateException(type.getName() + " is not retained");
+            }
+
+            if (typeIds.ids == null) {
+                // Look up all methods at once, the agent asks for all of them anyway
+                typeIds.ids = new HashMap<>();
+                for (Method method : type.getDeclaredMethods()) {
+                    typeIds.ids.put(method.getName() + getDescriptor(method), newId(method));
+                }
+            }
+
+            Integer id = typeIds.ids.get(name + descriptor);
+            if (id == null) {
+                throw new IllegalArgumentException("Cannot find " + type.getName() + "#" + name
+                        + descriptor);
+            }
+
+            return id;
+        }
+    }
+
+    /**
+     * Hand out an id for a method. Called with {@link #lock} held.
+     */
+    private static int newId(Method method) {
+        Entry[] table = entries;
+        int id;
+
+        if (!freeIds.isEmpty()) {
+            id = freeIds.remove(freeIds.size() - 1);
+        } else {
+            if (numIds == table.length) {
+                Entry[] grown = new Entry[table.length * 2];
+                System.arraycopy(table, 0, grown, 0, table.length);
+                table = grown;
+            }
+
+            id = numIds++;
+        }
+
+        table[id] = new Entry(method);
+        // Always write the volatile field, so that readers see the new entry
+        entries = table;
+
+        return id;
+    }
+
+    private static String getDescriptor(Method method) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            appendDescriptor(descriptor, parameterType);
+        }
+        descriptor.append(')');
+        appendDescriptor(descriptor, method.getReturnType());
+
+        return descriptor.toString();
+    }
+
+    private static void appendDescriptor(StringBuilder descriptor, Class<?> type) {
+        if (type.isArray()) {
+            descriptor.append(type.getName().replace('.', '/'));
+        } else if (type.isPrimitive()) {
+            if (type == boolean.class) {
+                descriptor.append('Z');
+            } else if (type == byte.class) {
+                descriptor.append('B');
+            } else if (type == char.class) {
+                descriptor.append('C');
+            } else if (type == short.class) {
+                descriptor.append('S');
+            } else if (type == int.class) {
+                descriptor.append('I');
+            } else if (type == long.class) {
+                descriptor.append('J');
+            } else if (type == float.class) {
+                descriptor.append('F');
+            } else if (type == double.class) {
+                descriptor.append('D');
+            } else {
+                descriptor.append('V');
+            }
+        } else {
+            descriptor.append('L').append(type.getName().replace('.', '/')).append(';');
+        }
+    }
+
+    /**
+     * Ids of the methods of a retained class.
+     */
+    private static class TypeIds {
+        /** Number of {@link #retain(Class)} calls that were not released yet */
+        int numUsers;
+
+        /** Name and descriptor of each method -> id. {@code null} until the first lookup */
+        Map<String, Integer> ids;
+    }
+
+    /**
+     * A method that has an id.
+     */
+    static final class Entry {
+        final Method method;
+
+        /** Results of {@code MockMethodAdvice#isOverridden} for {@link #method} */
+        final OverrideCache overrides = new OverrideCache();
+
+        private Entry(Method method) {
+            this.method = method;
+        }
+    }
+}
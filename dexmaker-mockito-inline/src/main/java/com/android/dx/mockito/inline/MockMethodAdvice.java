@@ -5,16 +5,12 @@
 
 package com.android.dx.mockito.inline;
 
-import java.lang.ref.WeakReference;
+import com.android.dx.stock.ClassMetadataCache;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.ArrayList;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.Callable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Backend for the method entry hooks. Checks if the hooks should cause an interception or should
@@ -23,12 +19,6 @@ import java.util.regex.Pattern;
 class MockMethodAdvice {
     private final Map<Object, InvocationHandlerAdapter> interceptors;
 
-    /** Pattern to decompose a instrumentedMethodWithTypeAndSignature */
-    private final Pattern methodPattern = Pattern.compile("(.*)#(.*)\\((.*)\\)");
-
-    /** Pattern to verifies types description is ending only with array type */
-    private static final Pattern ARRAY_PATTERN = Pattern.compile("(\\[\\])+");
-
     @SuppressWarnings("ThreadLocalUsage")
     private final SelfCallInfo selfCallInfo = new SelfCallInfo();
 
@@ -90,148 +80,52 @@ class MockMethodAdvice {
         }
     }
 
-    private static final Map<String, String> PRIMITIVE_CLASS_TO_SIGNATURE =
-            Map.of(
-                    "byte", "B",
-                    "short", "S",
-                    "int", "I",
-                    "long", "J",
-                    "char", "C",
-                    "float", "F",
-                    "double", "D",
-                    "boolean", "Z");
-
-    /**
-     * Convert a type signature of an array to the corresponding class
-     *
-     * <p>It parse "foo[][][][]" into a jni signature "[[[[Lfoo;" and rely on Class.forName to do
-     * the conversion. Primivite type are converted using {@code PRIMITIVE_CLASS_TO_SIGNATURE}.
-     *
-     * @param argTypeName the type description (e.g: byte[])
-     * @return the class wrapped in Optional on success, or empty if the conversion failed
-     */
-    private static Optional<Class<?>> parseTypeName(String argTypeName) {
-        int index = argTypeName.indexOf("[");
-        if (index == -1) {
-            // not an Array type
-            return Optional.empty();
-        }
-
-        String typeName = argTypeName.substring(0, index);
-        String rest = argTypeName.substring(index, argTypeName.length());
-
-        if (!ARRAY_PATTERN.matcher(rest).matches()) {
-            return Optional.empty();
-        }
-        int dimensionCount = (int) argTypeName.chars().filter(ch -> ch == '[').count();
-
-        String classSignature =
-                PRIMITIVE_CLASS_TO_SIGNATURE.getOrDefault(typeName, "L" + typeName + ";");
-
-        // String.repeat would be better, but this is available only starting java 11
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < dimensionCount; i++) {
-            sb.append("[");
-        }
-        sb.append(classSignature);
-        String fullTypeSignature = sb.toString();
-        try {
-            return Optional.of(Class.forName(fullTypeSignature));
-        } catch (ClassNotFoundException e) {
-            return Optional.empty();
-        }
-    }
-
     /**
-     * Get the method of {@code instance} specified by {@code methodWithTypeAndSignature}.
+     * Get the method of {@code instance} specified by {@code methodId}.
      *
      * @param instance instance the method belongs to
-     * @param methodWithTypeAndSignature the description of the method
+     * @param methodId id the {@link MethodIds} assigned to the method
      *
-     * @return method {@code methodWithTypeAndSignature} refer to
+     * @return method {@code methodId} refers to, or {@code null} if the call should not be
+     *         intercepted
      */
     @SuppressWarnings("unused")
-    public Method getOrigin(Object instance, String methodWithTypeAndSignature) throws Throwable {
+    public Method getOrigin(Object instance, int methodId) {
         if (!isMocked(instance)) {
             return null;
         }
 
-        Matcher methodComponents = methodPattern.matcher(methodWithTypeAndSignature);
-        boolean wasFound = methodComponents.find();
-        if (!wasFound) {
-            throw new IllegalArgumentException();
-        }
-        String argTypeNames[] = methodComponents.group(3).split(",");
-
-        ArrayList<Class<?>> argTypes = new ArrayList<>(argTypeNames.length);
-        for (String argTypeName : argTypeNames) {
-            if (!argTypeName.equals("")) {
-                switch (argTypeName) {
-                    case "byte":
-                        argTypes.add(Byte.TYPE);
-                        break;
-                    case "short":
-                        argTypes.add(Short.TYPE);
-                        break;
-                    case "int":
-                        argTypes.add(Integer.TYPE);
-                        break;
-                    case "long":
-                        argTypes.add(Long.TYPE);
-                        break;
-                    case "char":
-                        argTypes.add(Character.TYPE);
-                        break;
-                    case "float":
-                        argTypes.add(Float.TYPE);
-                        break;
-                    case "double":
-                        argTypes.add(Double.TYPE);
-                        break;
-                    case "boolean":
-                        argTypes.add(Boolean.TYPE);
-                        break;
-                    default:
-                        Optional<Class<?>> arrayClass = parseTypeName(argTypeName);
-                        if (arrayClass.isPresent()) {
-                            argTypes.add(arrayClass.get());
-                        } else {
-                            argTypes.add(Class.forName(argTypeName));
-                        }
-                        break;
-                }
-            }
-        }
-
-        Method origin = Class.forName(methodComponents.group(1)).getDeclaredMethod(
-                methodComponents.group(2), argTypes.toArray(new Class<?>[]{}));
+        MethodIds.Entry entry = MethodIds.getEntry(methodId);
 
-        if (isOverridden(instance, origin)) {
+        if (entry == null || isOverridden(instance, entry.method, entry.overrides)) {
             return null;
         } else {
-            return origin;
+            return entry.method;
         }
     }
 
     /**
-     * Handle a method entry hook.
+     * Handle a method entry hook. Only called if {@link #getOrigin(Object, int)} returned a
+     * method.
      *
      * @param instance instance that is mocked
      * @param origin method that contains the hook
-     * @param arguments arguments to the method
+     * @param arguments arguments to the method, {@code null} if it has none
      *
-     * @return A callable that can be called to get the mocked result or null if the method is not
-     *         mocked.
+     * @return the mocked result, or the result of the real method if {@code instance} stopped
+     *         being a mock since {@link #getOrigin(Object, int)} was called.
      */
     @SuppressWarnings("unused")
-    public Callable<?> handle(Object instance, Method origin, Object[] arguments) throws Throwable {
+    public Object handle(Object instance, Method origin, Object[] arguments) throws Throwable {
+        SuperMethodCall superMethod = new SuperMethodCall(selfCallInfo, origin, instance,
+                arguments);
+
         InvocationHandlerAdapter interceptor = interceptors.get(instance);
         if (interceptor == null) {
-            return null;
+            return superMethod.call();
         }
 
-        return new ReturnValueWrapper(interceptor.interceptEntryHook(instance, origin, arguments,
-                new SuperMethodCall(selfCallInfo, origin, instance, arguments)));
+        return interceptor.interceptEntryHook(instance, origin, arguments, superMethod);
     }
 
     /**
@@ -269,34 +163,70 @@ class MockMethodAdvice {
      * @return {@code true} iff the method is overridden
      */
     public boolean isOverridden(Object instance, Method origin) {
-        Class<?> currentType = instance.getClass();
-
-        do {
-            try {
-                return !origin.equals(currentType.getDeclaredMethod(origin.getName(),
-                        origin.getParameterTypes()));
-            } catch (NoSuchMethodException ignored) {
-                currentType = currentType.getSuperclass();
+        return isOverridden(instance.getClass(), origin);
+    }
+
+    /**
+     * Check if a method is overridden, using the results cached for the method.
+     *
+     * @param instance mocked instance
+     * @param origin method that might be overridden
+     * @param overrides results cached next to the {@link MethodIds id} of {@code origin}
+     *
+     * @return {@code true} iff the method is overridden
+     */
+    private static boolean isOverridden(Object instance, Method origin, OverrideCache overrides) {
+        Class<?> type = instance.getClass();
+
+        Boolean isOverridden = overrides.get(type);
+        if (isOverridden == null) {
+            isOverridden = isOverridden(type, origin);
+            overrides.put(type, isOverridden);
+        }
+
+        return isOverridden;
+    }
+
+    /**
+     * Check if a method is overridden by a class or any of its super classes.
+     *
+     * @param type runtime type of a mocked instance
+     * @param origin method that might be overridden
+     *
+     * @return {@code true} iff the method is overridden
+     */
+    private static boolean isOverridden(Class<?> type, Method origin) {
+        String name = origin.getName();
+        Class<?>[] parameterTypes = origin.getParameterTypes();
+
+        for (Class<?> currentType = type; currentType != null;
+                currentType = currentType.getSuperclass()) {
+            if (ClassMetadataCache.forClass(currentType).declaresMethod(name, parameterTypes)) {
+                // Bridge methods are never instrumented, so a class declaring origin resolves
+                // calls to origin itself
+                return currentType != origin.getDeclaringClass();
             }
-        } while (currentType != null);
+        }
 
         return true;
     }
 
     /**
-     * Used to call the read (non mocked) method.
+     * Used to call the read (non mocked) method. This is the only object allocated by
+     * {@link #handle(Object, Method, Object[])} itself. It does not need to reference the instance
+     * weakly, as Mockito's invocation references it strongly anyway.
      */
     private static class SuperMethodCall implements InvocationHandlerAdapter.SuperMethod {
         private final SelfCallInfo selfCallInfo;
         private final Method origin;
-        private final WeakReference<Object> instance;
+        private final Object instance;
         private final Object[] arguments;
 
         private SuperMethodCall(SelfCallInfo selfCallInfo, Method origin, Object instance,
                                 Object[] arguments) {
             this.selfCallInfo = selfCallInfo;
             this.origin = origin;
-            this.instance = new WeakReference<>(instance);
+            this.instance = instance;
             this.arguments = arguments;
         }
 
@@ -307,7 +237,7 @@ class MockMethodAdvice {
          * @throws Throwable thrown by the read method
          */
         @Override
-        public Object invoke() throws Throwable {
+        public Object call() throws Throwable {
             if (!Modifier.isPublic(origin.getDeclaringClass().getModifiers()
                     & origin.getModifiers())) {
                 origin.setAccessible(true);
@@ -315,27 +245,10 @@ class MockMethodAdvice {
 
             // By setting instance in the the selfCallInfo, once single method call on this instance
             // and thread will call the read method as isMocked will return false.
-            selfCallInfo.set(instance.get());
-            return tryInvoke(origin, instance.get(), arguments);
-        }
-
-    }
-
-    /**
-     * Stores a return value of {@link #handle(Object, Method, Object[])} and returns in on
-     * {@link #call()}.
-     */
-    private static class ReturnValueWrapper implements Callable<Object> {
-        private final Object returned;
-
-        private ReturnValueWrapper(Object returned) {
-            this.returned = returned;
+            selfCallInfo.set(instance);
+            return tryInvoke(origin, instance, arguments);
         }
 
-        @Override
-        public Object call() {
-            return returned;
-        }
     }
 
     /**
@@ -345,7 +258,7 @@ class MockMethodAdvice {
      * <p>This is {@link ThreadLocal}, so a thread can {@link #set(Object)} and instance and then
      * call {@link #shouldMockMethod(Object)} without interference.
      *
-     * @see SuperMethodCall#invoke()
+     * @see SuperMethodCall#call()
      * @see #isMocked(Object)
      */
     private static class SelfCallInfo extends ThreadLocal<Object> {
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Number of mocks that need each type to be transformed. A mock needs its type and all super
+ * classes of it, hence only the first mock of a type requires a retransformation and only the
+ * release of the last mock of a type allows to restore it. The {@link MethodIds} of a type are
+ * retained while it is needed.
+ *
+ * <p>Shared bookkeeping of the {@link ClassTransformer} and the {@code StaticClassTransformer}.
+ * The transformers serialize all changes, only {@link #contains(Class)} is called concurrently.
+ */
+class MockedTypes {
+    // Some classes are so deeply optimized inside the runtime that they cannot be transformed
+    private static final Set<Class<? extends java.io.Serializable>> EXCLUDES = new HashSet<>(
+            Arrays.asList(Class.class,
+                    Boolean.class,
+                    Byte.class,
+                    Short.class,
+                    Character.class,
+                    Integer.class,
+                    Long.class,
+                    Float.class,
+                    Double.class,
+                    String.class));
+
+    /** Number of mocks that need each type to be transformed */
+    private final Map<Class<?>, Integer> numMocks = new ConcurrentHashMap<>();
+
+    /**
+     * Number of mocks of each type that were {@link #rollBack rolled back} as their batch failed.
+     * Releasing these mocks later must not change {@link #numMocks} again.
+     */
+    private final Map<Class<?>, Integer> rolledBackTypes = new HashMap<>();
+
+    /**
+     * Count a new mock of a type.
+     *
+     * <p>If this happens inside a {@link ClassTransformer#beginBatch() batch}, the mock is rolled
+     * back if the batch cannot be flushed.
+     *
+     * @param mockedType type of the mock
+     *
+     * @return the types that need to be transformed now
+     */
+    synchronized List<Class<?>> add(Class<?> mockedType) {
+        ArrayList<Class<?>> types = new ArrayList<>();
+        Class<?> type = mockedType;
+
+        do {
+            Integer numTypeMocks = numMocks.get(type);
+
+            if (numTypeMocks == null) {
+                numMocks.put(type, 1);
+                MethodIds.retain(type);
+
+                if (!EXCLUDES.contains(type)) {
+                    types.add(type);
+                }
+            } else {
+                numMocks.put(type, numTypeMocks + 1);
+            }
+
+            type = type.getSuperclass();
+        } while (type != null && !type.isInterface());
+
+        ClassTransformer.deferMockClass(this, mockedType);
+
+        return types;
+    }
+
+    /**
+     * Undo {@link #add(Class)} as the transformation of the types it returned failed.
+     *
+     * @param mockedType type previously passed to {@link #add(Class)}
+     */
+    synchronized void undoAdd(Class<?> mockedType) {
+        ClassTransformer.forgetMockClass(this, mockedType);
+        release(mockedType, new ArrayList<Class<?>>());
+    }
+
+    /**
+     * Undo {@link #add(Class)} once for each of the types.
+     *
+     * @param mockedTypes types previously passed to {@link #add(Class)}
+     *
+     * @return the types that are not needed by any mock anymore and should be restored
+     */
+    synchronized List<Class<?>> remove(Collection<Class<?>> mockedTypes) {
+        ArrayList<Class<?>> types = new ArrayList<>();
+
+        for (Class<?> mockedType : mockedTypes) {
+            if (!takeRolledBack(mockedType)) {
+                ClassTransformer.forgetMockClass(this, mockedType);
+                release(mockedType, types);
+            }
+        }
+
+        return types;
+    }
+
+    /**
+     * Undo {@link #add(Class)} for types mocked inside a batch that could not be flushed. The mocks
+     * of these types are still {@link #remove removed} later, these removals are ignored.
+     *
+     * @param mockedTypes types passed to {@link #add(Class)} inside the batch
+     */
+    synchronized void rollBack(List<Class<?>> mockedTypes) {
+        for (Class<?> mockedType : mockedTypes) {
+            release(mockedType, new ArrayList<Class<?>>());
+
+            Integer numRolledBack = rolledBackTypes.get(mockedType);
+            rolledBackTypes.put(mockedType, numRolledBack == null ? 1 : numRolledBack + 1);
+        }
+    }
+
+    /**
+     * Check if a type is needed by any mock.
+     *
+     * @param type type that might be mocked
+     *
+     * @return {@code true} iff the type should be transformed
+     */
+    boolean contains(Class<?> type) {
+        return numMocks.containsKey(type);
+    }
+
+    /**
+     * Account for the removal of a mock that was already {@link #rollBack rolled back}.
+     *
+     * @param mockedType type previously passed to {@link #add(Class)}
+     *
+     * @return {@code true} iff the mock was rolled back
+     */
+    private boolean takeRolledBack(Class<?> mockedType) {
+        Integer numRolledBack = rolledBackTypes.get(mockedType);
+
+        if (numRolledBack == null) {
+            return false;
+        } else if (numRolledBack == 1) {
+            rolledBackTypes.remove(mockedType);
+        } else {
+            rolledBackTypes.put(mockedType, numRolledBack - 1);
+        }
+
+        return true;
+    }
+
+    /**
+     * Decrement the number of mocks of a type and all its parents.
+     *
+     * @param mockedType type previously passed to {@link #add(Class)}
+     * @param unmockedTypes receives the types that should not be transformed anymore
+     */
+    private void release(Class<?> mockedType, List<Class<?>> unmockedTypes) {
+        Class<?> type = mockedType;
+
+        do {
+            int numTypeMocks = numMocks.get(type);
+
+            if (numTypeMocks == 1) {
+                numMocks.remove(type);
+                MethodIds.release(type);
+
+                if (!EXCLUDES.contains(type)) {
+                    unmockedTypes.add(type);
+                }
+            } else {
+                numMocks.put(type, numTypeMocks - 1);
+            }
+
+            type = type.getSuperclass();
+        } while (type != null && !type.isInterface());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Results of {@code MockMethodAdvice#isOverridden} for a single origin method, by runtime type. An
+ * origin method is usually only called on very few types, so lookups scan a copy-on-write array
+ * without locking. The types are referenced weakly.
+ *
+ * <p>Each cache is kept next to the id of its method in {@link MethodIds} and released together
+ * with the id.
+ */
+class OverrideCache {
+    private volatile Entry[] entries = new Entry[0];
+
+    /**
+     * @return the cached result for {@code type}, or {@code null} if there is none
+     */
+    Boolean get(Class<?> type) {
+        for (Entry entry : entries) {
+            if (entry.get() == type) {
+                return entry.isOverridden;
+            }
+        }
+
+        return null;
+    }
+
+    synchronized void put(Class<?> type, boolean isOverridden) {
+        ArrayList<Entry> newEntries = new ArrayList<>(entries.length + 1);
+        for (Entry entry : entries) {
+            Class<?> cachedType = entry.get();
+            if (cachedType == type) {
+                return;
+            } else if (cachedType != null) {
+                newEntries.add(entry);
+            }
+        }
+        newEntries.add(new Entry(type, isOverridden));
+
+        entries = newEntries.toArray(new Entry[newEntries.size()]);
+    }
+
+    private static class Entry extends WeakReference<Class<?>> {
+        final boolean isOverridden;
+
+        Entry(Class<?> type, boolean isOverridden) {
+            super(type);
+            this.isOverridden = isOverridden;
+        }
+    }
+}
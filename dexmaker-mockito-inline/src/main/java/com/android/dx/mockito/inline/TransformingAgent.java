@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.mockito.inline;
+
+/**
+ * A jvmti agent that can retransform classes.
+ *
+ * <p>A retransformation runs the transformers of all agents, hence the classes of any agent can
+ * be retransformed via any other agent.
+ */
+interface TransformingAgent {
+    /**
+     * Trigger the transformation of some classes.
+     *
+     * @param classes The classes to transform
+     *
+     * @throws UnmodifiableClassException If one of the classes can not be transformed
+     */
+    void requestTransformClasses(Class<?>[] classes) throws UnmodifiableClassException;
+}
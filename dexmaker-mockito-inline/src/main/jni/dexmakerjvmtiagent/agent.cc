@@ -186,6 +186,22 @@ addCall(ir::Builder& b,
                                                                        method->orig_index)});
 }
 
+// Add a check that jumps to 'originalMethod' while MockMethodDispatcher.sNumMocks is 0, i.e.
+// while no instance can be a mock
+static void
+addNoMocksCheck(ir::Builder& b,
+                CodeIr& c,
+                lir::Instruction* instructionAfter,
+                ir::Type* dispatcherT,
+                ir::Type* intScalarT,
+                VReg* reg,
+                CodeLocation* originalMethod) {
+    auto field = b.GetFieldDecl(b.GetAsciiString("sNumMocks"), intScalarT, dispatcherT);
+
+    addInstr(c, instructionAfter, OP_SGET, {reg, c.Alloc<Field>(field, field->orig_index)});
+    addInstr(c, instructionAfter, OP_IF_EQZ, {reg, originalMethod});
+}
+
 typedef struct {
     ir::Type* boxedType;
     ir::Type* scalarType;
@@ -286,12 +302,49 @@ isEquals(ir::EncodedMethod *method) {
                       "java.lang.Object") == 0;
 }
 
+// Get the id MethodIds assigned to a method of 'clazz'. Returns -1 if MethodIds cannot find the
+// method, i.e. throws an IllegalArgumentException, which is cleared. Any other exception is left
+// pending.
+static jint
+getMethodId(JNIEnv* env, jclass methodIds, jmethodID getId, jclass clazz,
+            ir::EncodedMethod *method) {
+    jstring name = env->NewStringUTF(method->decl->name->c_str());
+    jstring descriptor = env->NewStringUTF(method->decl->prototype->Signature().c_str());
+
+    jint methodId = env->CallStaticIntMethod(methodIds, getId, clazz, name, descriptor);
+
+    env->DeleteLocalRef(name);
+    env->DeleteLocalRef(descriptor);
+
+    jthrowable exception = env->ExceptionOccurred();
+    if (exception != NULL) {
+        env->ExceptionClear();
+
+        jclass illegalArgument = env->FindClass("java/lang/IllegalArgumentException");
+        if (illegalArgument == NULL) {
+            env->DeleteLocalRef(exception);
+            return -1;
+        }
+
+        if (!env->IsInstanceOf(exception, illegalArgument)) {
+            env->Throw(exception);
+        }
+
+        env->DeleteLocalRef(illegalArgument);
+        env->DeleteLocalRef(exception);
+        return -1;
+    }
+
+    return methodId;
+}
+
 // Transforms the classes to add the mockito hooks
 // - equals and hashcode are handled in a special way
 extern "C" JNIEXPORT jbyteArray JNICALL
 Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
                                                                    jobject generator,
                                                                    jstring idStr,
+                                                                   jclass clazz,
                                                                    jbyteArray originalArr) {
     unsigned char* original = (unsigned char*)env->GetByteArrayElements(originalArr, 0);
 
@@ -307,7 +360,6 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
     ir::Type* stringT = b.GetType("Ljava/lang/String;");
     ir::Type* methodT = b.GetType("Ljava/lang/reflect/Method;");
     ir::Type* systemT = b.GetType("Ljava/lang/System;");
-    ir::Type* callableT = b.GetType("Ljava/util/concurrent/Callable;");
     ir::Type* dispatcherT = b.GetType("Lcom/android/dx/mockito/inline/MockMethodDispatcher;");
 
     // Add id to dex file
@@ -315,6 +367,18 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
     ir::String* id = b.GetAsciiString(idNative);
     env->ReleaseStringUTFChars(idStr, idNative);
 
+    jclass methodIds = env->FindClass("com/android/dx/mockito/inline/MethodIds");
+    if (methodIds == NULL) {
+        return NULL;
+    }
+
+    jmethodID getId = env->GetStaticMethodID(methodIds, "getId",
+                                             "(Ljava/lang/Class;Ljava/lang/String;"
+                                             "Ljava/lang/String;)I");
+    if (getId == NULL) {
+        return NULL;
+    }
+
     for (auto& method : dex_ir->encoded_methods) {
         if (!canBeTransformed(method.get())) {
             continue;
@@ -328,6 +392,12 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             }
 
             equals_transformed(params) {
+                // if (MockMethodDispatcher.sNumMocks == 0) {
+                //     goto original_method;
+                // }
+                sget v0, MockMethodDispatcher.sNumMocks:int
+                if-eqz v0, original_method
+
                 // MockMethodDispatcher dispatcher = MockMethodDispatcher.get(idStr, this);
                 const-string v0, "65463hg34t"
                 move-objectfrom16 v1, THIS
@@ -389,6 +459,7 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             VReg* v2 = c.Alloc<VReg>(2);
             VReg* thiz = c.Alloc<VReg>(thisReg);
 
+            addNoMocksCheck(b, c, fi, dispatcherT, intScalarT, v0, originalMethod);
             addInstr(c, fi, OP_CONST_STRING, {v0, c.Alloc<String>(id, id->orig_index)});
             addInstr(c, fi, OP_MOVE_OBJECT_FROM16, {v1, thiz});
             addCall(b, c, fi, OP_INVOKE_STATIC, dispatcherT, "get", dispatcherT,
@@ -420,6 +491,12 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             }
 
             hashCode_transformed(params) {
+                // if (MockMethodDispatcher.sNumMocks == 0) {
+                //     goto original_method;
+                // }
+                sget v0, MockMethodDispatcher.sNumMocks:int
+                if-eqz v0, original_method
+
                 // MockMethodDispatcher dispatcher = MockMethodDispatcher.get(idStr, this);
                 const-string v0, "65463hg34t"
                 move-objectfrom16 v1, THIS
@@ -472,6 +549,7 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             VReg* v2 = c.Alloc<VReg>(2);
             VReg* thiz = c.Alloc<VReg>(thisReg);
 
+            addNoMocksCheck(b, c, fi, dispatcherT, intScalarT, v0, originalMethod);
             addInstr(c, fi, OP_CONST_STRING, {v0, c.Alloc<String>(id, id->orig_index)});
             addInstr(c, fi, OP_MOVE_OBJECT_FROM16, {v1, thiz});
             addCall(b, c, fi, OP_INVOKE_STATIC, dispatcherT, "get", dispatcherT,
@@ -498,6 +576,12 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             }
 
             long method_transformed(int param1, long param2, String param3) {
+                // if (MockMethodDispatcher.sNumMocks == 0) {
+                //     goto original_method;
+                // }
+                sget v0, MockMethodDispatcher.sNumMocks:int
+                if-eqz v0, original_method
+
                 // MockMethodDispatcher dispatcher = MockMethodDispatcher.get(idStr, this);
                 const-string v0, "65463hg34t"
                 move-objectfrom16 v1, THIS       # this is necessary as invoke-static cannot deal
@@ -511,12 +595,12 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
                 // }
                 if-eqz v0, original_method
 
-                // Method origin = dispatcher.getOrigin(this, methodDesc);
-                const-string v1 "fully.qualified.ClassName#original_method(int, long, String)"
+                // Method origin = dispatcher.getOrigin(this, methodId);
+                const v1, 42                     # id MethodIds assigned to original_method
                 move-objectfrom16 v2, THIS       # this is necessary as invoke-static cannot deal
                                                  # with medium or high registers and THIS might not
                                                  # be low
-                invoke-virtual {v0, v2, v1}, MockMethodDispatcher.getOrigin(Object, String):Method
+                invoke-virtual {v0, v2, v1}, MockMethodDispatcher.getOrigin(Object, int):Method
                 move-result-object v1
 
                 // if (origin == null) {
@@ -524,7 +608,8 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
                 // }
                 if-eqz v1, original_method
 
-                // Create an array with Objects of all parameters.
+                // Create an array with Objects of all parameters. Methods without parameters pass
+                // null instead.
 
                 //     Object[] arguments = new Object[3]
                 const v3, 3
@@ -557,33 +642,24 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
                                                # high registers and ARG3 might be high
                 aput-object v3, v2, v4
 
-                // Callable<?> mocked = dispatcher.handle(this, origin, arguments);
+                // Object ret = dispatcher.handle(this, origin, arguments);
                 move-objectfrom16 v3, THIS       # this is necessary as invoke-virtual cannot deal
                                                  # with medium or high registers and THIS might not
                                                  # be low
                 invoke-virtual {v0,v3,v1,v2}, MockMethodDispatcher.handle(Object, Method,
-                                                                          Object[]):Callable
-                move-result-object v0
-
-                //  if (mocked != null) {
-                if-eqz v0, original_method
-
-                //      Object ret = mocked.call();
-                invoke-interface {v0}, Callable.call():Object
+                                                                          Object[]):Object
                 move-result-object v0
 
-                //      Long retLong = (Long)ret
+                // Long retLong = (Long)ret
                 check-cast v0, Long
 
-                //      long retlong = retLong.longValue();
+                // long retlong = retLong.longValue();
                 invoke-virtual {v0}, Long.longValue():long
                 move-result-wide v0:v1
 
-                //      return retlong;
+                // return retlong;
                 return-wide v0:v1
 
-                //  }
-
             original_method:
                 // Move all method arguments down so that they match what the original code expects.
                 // Let's assume three arguments, one int, one long, one String and the and used to
@@ -599,6 +675,16 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             }
             */
 
+            // Methods MethodIds cannot find keep their original code, e.g. methods hidden from
+            // reflection.
+            jint methodId = getMethodId(env, methodIds, getId, clazz, method.get());
+            if (env->ExceptionCheck()) {
+                return NULL;
+            }
+            if (methodId == -1) {
+                continue;
+            }
+
             CodeIr c(method.get(), dex_ir);
 
             // Make sure there are at least 5 local registers to use
@@ -612,25 +698,6 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
 
             lir::Instruction* fi = *(c.instructions.begin());
 
-            // Add methodDesc to dex file
-            std::stringstream ss;
-            ss << method->decl->parent->Decl() << "#" << method->decl->name->c_str() << "(" ;
-            bool first = true;
-            if (method->decl->prototype->param_types != NULL) {
-                 for (const auto& type : method->decl->prototype->param_types->types) {
-                     if (first) {
-                         first = false;
-                     } else {
-                         ss << ",";
-                     }
-
-                     ss << type->Decl().c_str();
-                 }
-            }
-            ss << ")";
-            std::string methodDescStr = ss.str();
-            ir::String* methodDesc = b.GetAsciiString(methodDescStr.c_str());
-
             size_t numParams = getNumParams(method.get());
 
             Label* originalMethodLabel = c.Alloc<Label>(0);
@@ -642,24 +709,27 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             VReg* v4 = c.Alloc<VReg>(4);
             VReg* thiz = c.Alloc<VReg>(thisReg);
 
+            addNoMocksCheck(b, c, fi, dispatcherT, intScalarT, v0, originalMethod);
             addInstr(c, fi, OP_CONST_STRING, {v0, c.Alloc<String>(id, id->orig_index)});
             addInstr(c, fi, OP_MOVE_OBJECT_FROM16, {v1, thiz});
             addCall(b, c, fi, OP_INVOKE_STATIC, dispatcherT, "get", dispatcherT, {stringT, objectT},
                     {0, 1});
             addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v0});
             addInstr(c, fi, OP_IF_EQZ, {v0, originalMethod});
-            addInstr(c, fi, OP_CONST_STRING,
-                     {v1, c.Alloc<String>(methodDesc, methodDesc->orig_index)});
+            addInstr(c, fi, OP_CONST, {v1, c.Alloc<Const32>(methodId)});
             addInstr(c, fi, OP_MOVE_OBJECT_FROM16, {v2, thiz});
             addCall(b, c, fi, OP_INVOKE_VIRTUAL, dispatcherT, "getOrigin", methodT,
-                    {objectT, stringT}, {0, 2, 1});
+                    {objectT, intScalarT}, {0, 2, 1});
             addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v1});
             addInstr(c, fi, OP_IF_EQZ, {v1, originalMethod});
-            addInstr(c, fi, OP_CONST, {v3, c.Alloc<Const32>(numParams)});
-            addInstr(c, fi, OP_NEW_ARRAY, {v2, v3, c.Alloc<Type>(objectArrayT,
-                                                                 objectArrayT->orig_index)});
+            if (numParams == 0) {
+                // Methods without arguments pass null instead of a new empty array
+                addInstr(c, fi, OP_CONST, {v2, c.Alloc<Const32>(0)});
+            } else {
+                addInstr(c, fi, OP_CONST, {v3, c.Alloc<Const32>(numParams)});
+                addInstr(c, fi, OP_NEW_ARRAY, {v2, v3, c.Alloc<Type>(objectArrayT,
+                                                                     objectArrayT->orig_index)});
 
-            if (numParams > 0) {
                 int argReg = thisReg + 1;
 
                 for (int argNum = 0; argNum < numParams; argNum++) {
@@ -702,12 +772,9 @@ Java_com_android_dx_mockito_inline_ClassTransformer_nativeRedefine(JNIEnv* env,
             }
 
             addInstr(c, fi, OP_MOVE_OBJECT_FROM16, {v3, thiz});
-            addCall(b, c, fi, OP_INVOKE_VIRTUAL, dispatcherT, "handle", callableT,
+            addCall(b, c, fi, OP_INVOKE_VIRTUAL, dispatcherT, "handle", objectT,
                     {objectT, methodT, objectArrayT}, {0, 3, 1, 2});
             addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v0});
-            addInstr(c, fi, OP_IF_EQZ, {v0, originalMethod});
-            addCall(b, c, fi, OP_INVOKE_INTERFACE, callableT, "call", objectT, {}, {0});
-            addInstr(c, fi, OP_MOVE_RESULT_OBJECT, {v0});
 
             ir::Type *returnType = method->decl->prototype->return_type;
             BoxingInfo boxingInfo = getBoxingInfo(b, returnType->descriptor->c_str()[0]);
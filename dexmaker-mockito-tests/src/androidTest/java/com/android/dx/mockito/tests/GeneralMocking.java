@@ -69,6 +69,19 @@ public class GeneralMocking {
         String concat(String a, String b);
     }
 
+    @Test
+    public void mockClassAfterGarbageCollection() throws Exception {
+        assertNull(mock(TestClass.class).returnA());
+
+        // The allocator must not depend on anything that is only weakly reachable
+        System.gc();
+        System.runFinalization();
+
+        TestClass t = mock(TestClass.class);
+        when(t.returnA()).thenReturn("B");
+        assertEquals("B", t.returnA());
+    }
+
     @Test
     public void mockClass() throws Exception {
         TestClass t = mock(TestClass.class);
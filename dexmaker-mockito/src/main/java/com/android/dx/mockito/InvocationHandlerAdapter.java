@@ -21,6 +21,7 @@ import com.android.dx.stock.ProxyBuilder;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationFactory.RealMethodBehavior;
 import org.mockito.invocation.MockHandler;
+import org.mockito.mock.MockCreationSettings;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
@@ -34,6 +35,9 @@ import static org.mockito.Mockito.withSettings;
 final class InvocationHandlerAdapter implements InvocationHandler {
     private MockHandler handler;
 
+    /** Settings of the mocked type, built by the first invocation. */
+    private volatile MockCreationSettings<?> settings;
+
     public InvocationHandlerAdapter(MockHandler handler) {
         this.handler = handler;
     }
@@ -50,7 +54,7 @@ final class InvocationHandlerAdapter implements InvocationHandler {
         }
 
         return handler.handle(Mockito.framework().getInvocationFactory().createInvocation(proxy,
-                withSettings().build(proxy.getClass().getSuperclass()), method,
+                getSettings(proxy.getClass().getSuperclass()), method,
                 new RealMethodBehavior() {
             @Override
             public Object call() throws Throwable {
@@ -59,6 +63,16 @@ final class InvocationHandlerAdapter implements InvocationHandler {
         }, args));
     }
 
+    private MockCreationSettings<?> getSettings(Class<?> mockedType) {
+        MockCreationSettings<?> settings = this.settings;
+        if (settings == null) {
+            // Concurrent first invocations build equal settings, it does not matter which is kept.
+            settings = withSettings().build(mockedType);
+            this.settings = settings;
+        }
+        return settings;
+    }
+
     public MockHandler getHandler() {
         return handler;
     }
@@ -68,13 +82,14 @@ final class InvocationHandlerAdapter implements InvocationHandler {
     }
 
     private static boolean isEqualsMethod(Method method) {
-        return method.getName().equals("equals")
-                && method.getParameterTypes().length == 1
-                && method.getParameterTypes()[0] == Object.class;
+        if (!method.getName().equals("equals")) {
+            return false;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        return parameterTypes.length == 1 && parameterTypes[0] == Object.class;
     }
 
     private static boolean isHashCodeMethod(Method method) {
-        return method.getName().equals("hashCode")
-                && method.getParameterTypes().length == 0;
+        return method.getName().equals("hashCode") && method.getParameterTypes().length == 0;
     }
 }
@@ -21,33 +21,29 @@ import java.io.ObjectStreamClass;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
+import sun.misc.Unsafe;
+
 /**
  * Do sneaky things to allocate objects without invoking their constructors.
  * This is like objenesis but it works on Android. Derived from Gson's
  * UnsafeAllocator.
+ * <p>
+ * The allocation method is bound once, when the allocator is created. If {@link Unsafe} can
+ * allocate instances it is called directly, so allocating neither goes through
+ * {@link Method#invoke} nor boxes its argument. Only the fallbacks for old Dalvik versions
+ * still use reflection. None of the allocators hold on to the classes they allocate.
  */
 abstract class UnsafeAllocator {
     public abstract <T> T newInstance(Class<T> c) throws Exception;
 
     public static UnsafeAllocator create() {
-        // try JVM
+        // try JVM and Android versions whose Unsafe can allocate instances
         // public class Unsafe {
         //   public Object allocateInstance(Class<?> type);
         // }
         try {
-            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
-            Field f = unsafeClass.getDeclaredField("theUnsafe");
-            f.setAccessible(true);
-            final Object unsafe = f.get(null);
-            final Method allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
-            return new UnsafeAllocator() {
-                @Override
-                @SuppressWarnings("unchecked")
-                public <T> T newInstance(Class<T> c) throws Exception {
-                    return (T) allocateInstance.invoke(unsafe, c);
-                }
-            };
-        } catch (Exception ignored) {
+            return new DirectUnsafeAllocator();
+        } catch (Exception | LinkageError ignored) {
         }
 
         // try dalvikvm, pre-gingerbread
@@ -78,7 +74,8 @@ abstract class UnsafeAllocator {
             Method getConstructorId = ObjectStreamClass.class
                     .getDeclaredMethod("getConstructorId", Class.class);
             getConstructorId.setAccessible(true);
-            final int constructorId = (Integer) getConstructorId.invoke(null, Object.class);
+            // The id of Object's constructor is the same for all classes, hence box it only once
+            final Integer constructorId = (Integer) getConstructorId.invoke(null, Object.class);
             final Method newInstance = ObjectStreamClass.class
                     .getDeclaredMethod("newInstance", Class.class, int.class);
             newInstance.setAccessible(true);
@@ -100,4 +97,30 @@ abstract class UnsafeAllocator {
             }
         };
     }
-}
\ No newline at end of file
+
+    /**
+     * Allocates instances by calling {@link Unsafe#allocateInstance(Class)} directly.
+     *
+     * <p>Method handles would need API 26 and cannot even be dexed for lower API levels, hence
+     * the call is linked statically. Creating this allocator fails with a {@link LinkageError} on
+     * runtimes whose {@link Unsafe} is missing or cannot allocate instances.
+     */
+    private static final class DirectUnsafeAllocator extends UnsafeAllocator {
+        private final Unsafe unsafe;
+
+        DirectUnsafeAllocator() throws Exception {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+
+            // Fail now instead of on the first allocation if the method does not exist
+            Unsafe.class.getMethod("allocateInstance", Class.class);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T newInstance(Class<T> c) throws InstantiationException {
+            return (T) unsafe.allocateInstance(c);
+        }
+    }
+}
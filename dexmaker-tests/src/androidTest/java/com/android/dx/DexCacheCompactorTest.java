@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static com.android.dx.DexMakerTest.getDataDirectory;
+import static java.lang.reflect.Modifier.PUBLIC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class DexCacheCompactorTest {
+    private File dexCache;
+
+    @Before
+    public void setUp() {
+        dexCache = new File(getDataDirectory(), "compacted");
+        dexCache.mkdirs();
+        for (File f : dexCache.listFiles()) {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testCompactMergesGeneratedJars() throws Exception {
+        generate("CompactFirst", getClass().getClassLoader());
+        generate("CompactSecond", getClass().getClassLoader());
+
+        assertEquals(2, DexCacheCompactor.compact(dexCache));
+        assertEquals(0, DexCacheCompactor.compact(dexCache));
+        for (File f : dexCache.listFiles()) {
+            assertFalse(f.getName(), f.getName().startsWith("Generated_"));
+        }
+
+        // Both classes are now loaded from the merged jar.
+        ClassLoader parent = new ClassLoader(getClass().getClassLoader()) {};
+        assertEquals("CompactFirst",
+                generate("CompactFirst", parent).loadClass("CompactFirst").getName());
+        assertEquals("CompactSecond",
+                generate("CompactSecond", parent).loadClass("CompactSecond").getName());
+        for (File f : dexCache.listFiles()) {
+            assertFalse(f.getName(), f.getName().startsWith("Generated_"));
+        }
+    }
+
+    @Test
+    public void testCompactAddsToMergedJar() throws Exception {
+        generate("CompactEarlier", getClass().getClassLoader());
+        assertEquals(1, DexCacheCompactor.compact(dexCache));
+        generate("CompactLater", getClass().getClassLoader());
+        assertEquals(1, DexCacheCompactor.compact(dexCache));
+
+        ClassLoader loader = generate("CompactEarlier",
+                new ClassLoader(getClass().getClassLoader()) {});
+        assertEquals("CompactEarlier", loader.loadClass("CompactEarlier").getName());
+        assertEquals("CompactLater", loader.loadClass("CompactLater").getName());
+    }
+
+    @Test
+    public void testCompactSkipsDuplicateClasses() throws Exception {
+        generate("CompactDuplicate", getClass().getClassLoader());
+        generate("CompactDuplicate", getClass().getClassLoader(), "other");
+
+        assertEquals(1, DexCacheCompactor.compact(dexCache));
+        int remaining = 0;
+        for (File f : dexCache.listFiles()) {
+            if (f.getName().startsWith("Generated_")) {
+                remaining++;
+            }
+        }
+        assertEquals(1, remaining);
+    }
+
+    @Test
+    public void testCompactSkipsIncompleteJars() throws Exception {
+        generate("CompactComplete", getClass().getClassLoader());
+        // A read-only jar whose dex was not written yet, as left behind by older versions.
+        File incomplete = new File(dexCache, "Generated_incomplete.jar");
+        try (FileOutputStream out = new FileOutputStream(incomplete)) {
+            out.write(new byte[] { 'P', 'K' });
+        }
+        assertTrue(incomplete.setReadOnly());
+
+        assertEquals(1, DexCacheCompactor.compact(dexCache));
+        assertTrue(incomplete.exists());
+    }
+
+    @Test
+    public void testGenerateLeavesNoTemporaryFiles() throws Exception {
+        generate("CompactNoTemp", getClass().getClassLoader());
+
+        for (File f : dexCache.listFiles()) {
+            assertFalse(f.getName(), f.getName().endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void testCompactMergesBaselineProfiles() throws Exception {
+        for (String name : Arrays.asList("CompactHotFirst", "CompactHotSecond")) {
+            DexMaker dexMaker = newDexMaker(name);
+            dexMaker.markHot(TypeId.get("L" + name + ";"));
+            dexMaker.generateAndLoad(getClass().getClassLoader(), dexCache);
+        }
+
+        assertEquals(2, DexCacheCompactor.compact(dexCache));
+        for (File f : dexCache.listFiles()) {
+            assertFalse(f.getName(), f.getName().startsWith("Generated_"));
+        }
+        File mergedJar = new File(dexCache, DexCacheCompactor.MERGED_JAR_NAME);
+        assertEquals(new HashSet<>(Arrays.asList("LCompactHotFirst;", "LCompactHotSecond;")),
+                DexMaker.readBaselineProfile(DexMaker.baselineProfileFile(mergedJar)));
+
+        // Rules of classes loaded from the merged jar are added to its profile.
+        DexMaker dexMaker = newDexMaker("CompactHotFirst");
+        MethodId<?, Void> constructor = TypeId.get("LCompactHotFirst;").getConstructor();
+        dexMaker.markHot(constructor);
+        dexMaker.generateAndLoad(new ClassLoader(getClass().getClassLoader()) {}, dexCache);
+        assertTrue(DexMaker.readBaselineProfile(DexMaker.baselineProfileFile(mergedJar))
+                .contains("HSPLCompactHotFirst;-><init>()V"));
+    }
+
+    @Test
+    public void testMergedJarIsLoadedOncePerParent() throws Exception {
+        generate("CompactShared", getClass().getClassLoader());
+        generate("CompactSharedOther", getClass().getClassLoader());
+        assertEquals(2, DexCacheCompactor.compact(dexCache));
+
+        ClassLoader parent = new ClassLoader(getClass().getClassLoader()) {};
+        ClassLoader loader = generate("CompactShared", parent);
+        assertSame(loader, generate("CompactSharedOther", parent));
+        assertSame(loader, generate("CompactShared", parent));
+        assertNotSame(loader,
+                generate("CompactShared", new ClassLoader(getClass().getClassLoader()) {}));
+    }
+
+    @Test
+    public void testFindMergedJarIgnoresStaleManifest() throws Exception {
+        generate("CompactStale", getClass().getClassLoader());
+        String jarName = null;
+        for (File f : dexCache.listFiles()) {
+            if (f.getName().startsWith("Generated_") && f.getName().endsWith(".jar")) {
+                jarName = f.getName();
+            }
+        }
+        assertEquals(1, DexCacheCompactor.compact(dexCache));
+        File mergedJar = new File(dexCache, DexCacheCompactor.MERGED_JAR_NAME);
+        assertEquals(mergedJar, DexCacheCompactor.findMergedJar(dexCache, jarName));
+
+        // The manifest no longer describes the merged jar.
+        assertTrue(mergedJar.setLastModified(mergedJar.lastModified() - 60000));
+        assertNull(DexCacheCompactor.findMergedJar(dexCache, jarName));
+    }
+
+    @Test
+    public void testFindMergedJarWithoutManifest() throws Exception {
+        assertTrue(dexCache.isDirectory());
+        assertNull(DexCacheCompactor.findMergedJar(dexCache, "Generated_1.jar"));
+    }
+
+    private ClassLoader generate(String name, ClassLoader parent, String... methods)
+            throws Exception {
+        return newDexMaker(name, methods).generateAndLoad(parent, dexCache);
+    }
+
+    private static DexMaker newDexMaker(String name, String... methods) {
+        DexMaker dexMaker = new DexMaker();
+        TypeId<?> type = TypeId.get("L" + name + ";");
+        dexMaker.declare(type, name + ".generated", PUBLIC, TypeId.OBJECT);
+        // The jar name is derived from the methods, so each class needs its own.
+        MethodId<?, Void> constructor = type.getConstructor();
+        Code code = dexMaker.declare(constructor, PUBLIC);
+        code.invokeDirect(TypeId.OBJECT.getConstructor(), null, code.getThis(type));
+        code.returnVoid();
+        for (String method : methods) {
+            dexMaker.declare(type.getMethod(TypeId.VOID, method), PUBLIC).returnVoid();
+        }
+        return dexMaker;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx;
+
+import com.android.dex.DexFormat;
+import dalvik.system.DexClassLoader;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static com.android.dx.DexMakerTest.getDataDirectory;
+import static java.lang.reflect.Modifier.PUBLIC;
+import static java.lang.reflect.Modifier.STATIC;
+
+/**
+ * Compares the time to load a class from a jar with a compressed {@code classes.dex} and from
+ * one with the uncompressed, aligned {@code classes.dex} written by {@link DexJarWriter}.
+ * <p>
+ * The results are only printed, timing is too noisy on test devices to assert anything. Hence
+ * the benchmark is not part of the normal test run, remove {@link Ignore} to run it locally.
+ */
+@Ignore("Benchmark without assertions, run manually")
+public final class DexJarLayoutBenchmark {
+    private static final int METHODS = 200;
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void benchmarkLoadLatency() throws Exception {
+        byte[] dex = generateDex();
+        // Warm up class loading itself, so the first measured layout is not penalized.
+        load(dex, true, -1);
+        load(dex, false, -1);
+
+        long[] deflated = new long[ITERATIONS];
+        long[] stored = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            deflated[i] = load(dex, false, i);
+            stored[i] = load(dex, true, i);
+        }
+        System.out.println("DexJarLayoutBenchmark: dex size " + dex.length + " bytes, median"
+                + " load latency deflated " + median(deflated) / 1000 + "us, stored "
+                + median(stored) / 1000 + "us");
+    }
+
+    private static byte[] generateDex() {
+        DexMaker dexMaker = new DexMaker();
+        TypeId<?> type = TypeId.get("LLayoutBenchmark;");
+        dexMaker.declare(type, "LayoutBenchmark.generated", PUBLIC, TypeId.OBJECT);
+        for (int i = 0; i < METHODS; i++) {
+            MethodId<?, Integer> method = type.getMethod(TypeId.INT, "method" + i, TypeId.INT);
+            Code code = dexMaker.declare(method, PUBLIC | STATIC);
+            Local<Integer> result = code.newLocal(TypeId.INT);
+            code.op(BinaryOp.ADD, result, code.getParameter(0, TypeId.INT),
+                    code.getParameter(0, TypeId.INT));
+            code.returnValue(result);
+        }
+        return dexMaker.generate();
+    }
+
+    /**
+     * Writes {@code dex} to a new jar and returns the time it takes to load a class from it.
+     */
+    private static long load(byte[] dex, boolean storedLayout, int iteration) throws Exception {
+        File directory = getDataDirectory();
+        File jar = new File(directory, "layout-" + (storedLayout ? "stored" : "deflated") + "-"
+                + iteration + "-" + System.nanoTime() + ".jar");
+        try (DexJarWriter writer = new DexJarWriter(jar)) {
+            if (storedLayout) {
+                writer.putDex(dex);
+            } else {
+                writer.putEntry(DexFormat.DEX_IN_JAR_NAME, dex);
+            }
+        }
+        jar.setReadOnly();
+
+        try {
+            long start = System.nanoTime();
+            new DexClassLoader(jar.getPath(), directory.getPath(), null,
+                    DexJarLayoutBenchmark.class.getClassLoader()).loadClass("LayoutBenchmark");
+            return System.nanoTime() - start;
+        } finally {
+            jar.delete();
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx;
+
+import com.android.dex.DexFormat;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.android.dx.DexMakerTest.getDataDirectory;
+import static java.lang.reflect.Modifier.PUBLIC;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class DexJarWriterTest {
+    @Test
+    public void testDexIsStoredAndAligned() throws Exception {
+        // Names of different lengths need different amounts of padding.
+        for (String name : Arrays.asList("a", "ab", "abc", "abcd")) {
+            File jar = new File(getDataDirectory(), "aligned.jar");
+            jar.delete();
+            byte[] data = new byte[] { 1, 2, 3, 4, 5 };
+            try (DexJarWriter writer = new DexJarWriter(jar)) {
+                writer.putEntry("first", new byte[] { 42 });
+                writer.putStoredEntry(name, data);
+            }
+
+            try (ZipFile zip = new ZipFile(jar)) {
+                ZipEntry entry = zip.getEntry(name);
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                byte[] read = new byte[data.length];
+                zip.getInputStream(entry).read(read);
+                assertArrayEquals(data, read);
+            }
+            assertEquals(0, findData(jar, data) % DexJarWriter.DEX_ALIGNMENT);
+        }
+    }
+
+    @Test
+    public void testGeneratedJarIsStored() throws Exception {
+        DexMaker dexMaker = new DexMaker();
+        dexMaker.declare(TypeId.get("LStoredJar;"), "StoredJar.generated", PUBLIC,
+                TypeId.OBJECT);
+        ClassLoader loader = dexMaker.generateAndLoad(getClass().getClassLoader(),
+                getDataDirectory());
+        assertEquals("StoredJar", loader.loadClass("StoredJar").getName());
+
+        for (File file : getDataDirectory().listFiles()) {
+            if (file.getName().startsWith("Generated_") && file.getName().endsWith(".jar")) {
+                try (ZipFile zip = new ZipFile(file)) {
+                    assertEquals(ZipEntry.STORED,
+                            zip.getEntry(DexFormat.DEX_IN_JAR_NAME).getMethod());
+                }
+            }
+        }
+    }
+
+    private static long findData(File jar, byte[] data) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(jar, "r")) {
+            byte[] contents = new byte[(int) file.length()];
+            file.readFully(contents);
+            for (int i = 0; i <= contents.length - data.length; i++) {
+                if (Arrays.equals(data, Arrays.copyOfRange(contents, i, i + data.length))) {
+                    return i;
+                }
+            }
+        }
+        throw new AssertionError("data not found");
+    }
+}
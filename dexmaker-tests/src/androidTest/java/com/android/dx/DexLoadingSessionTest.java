@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx;
+
+import android.os.Build;
+import com.android.dx.stock.ProxyBuilder;
+import org.junit.Test;
+
+import static com.android.dx.DexMakerTest.getDataDirectory;
+import static java.lang.reflect.Modifier.PUBLIC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public final class DexLoadingSessionTest {
+    @Test
+    public void testSessionSharesClassLoader() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+
+        DexLoadingSession session = new DexLoadingSession();
+        ClassLoader parent = getClass().getClassLoader();
+        ClassLoader first = generate("SessionFirst", session, parent);
+        ClassLoader second = generate("SessionSecond", session, parent);
+
+        assertSame(first, second);
+        assertEquals("SessionFirst", first.loadClass("SessionFirst").getName());
+        assertEquals("SessionSecond", first.loadClass("SessionSecond").getName());
+        assertEquals(1, session.getLoaderCount());
+        assertEquals(2, session.getLoadCount());
+        assertTrue(session.getMaxLoadTimeNanos() <= session.getTotalLoadTimeNanos());
+    }
+
+    @Test
+    public void testSessionLoaderPerParent() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+
+        DexLoadingSession session = new DexLoadingSession();
+        ClassLoader first = generate("SessionParentFirst", session, getClass().getClassLoader());
+        ClassLoader second = generate("SessionParentSecond", session,
+                ClassLoader.getSystemClassLoader());
+
+        assertNotSame(first, second);
+        assertEquals(2, session.getLoaderCount());
+    }
+
+    @Test
+    public void testSameDexIsLoadedOnce() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+
+        DexLoadingSession session = new DexLoadingSession();
+        ClassLoader parent = getClass().getClassLoader();
+        ClassLoader first = generate("SessionRepeated", session, parent);
+        ClassLoader second = generate("SessionRepeated", session, parent);
+
+        assertSame(first.loadClass("SessionRepeated"), second.loadClass("SessionRepeated"));
+        assertEquals(1, session.getLoaderCount());
+    }
+
+    @Test
+    public void testProxyBuilderWithSession() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+
+        DexLoadingSession session = new DexLoadingSession();
+        Class<?> first = ProxyBuilder.forClass(SessionProxied.class)
+                .dexCache(getDataDirectory())
+                .loadingSession(session)
+                .buildProxyClass();
+        Class<?> second = ProxyBuilder.forClass(OtherSessionProxied.class)
+                .dexCache(getDataDirectory())
+                .loadingSession(session)
+                .buildProxyClass();
+
+        assertSame(first.getClassLoader(), second.getClassLoader());
+        assertEquals(1, session.getLoaderCount());
+    }
+
+    @Test
+    public void testProxyClassIsNotSharedBetweenSessions() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+
+        DexLoadingSession firstSession = new DexLoadingSession();
+        DexLoadingSession secondSession = new DexLoadingSession();
+        Class<?> first = ProxyBuilder.forClass(PerSessionProxied.class)
+                .dexCache(getDataDirectory())
+                .loadingSession(firstSession)
+                .buildProxyClass();
+        Class<?> second = ProxyBuilder.forClass(PerSessionProxied.class)
+                .dexCache(getDataDirectory())
+                .loadingSession(secondSession)
+                .buildProxyClass();
+
+        assertNotSame(first, second);
+        assertEquals(1, secondSession.getLoaderCount());
+    }
+
+    private static ClassLoader generate(String name, DexLoadingSession session,
+            ClassLoader parent) throws Exception {
+        DexMaker dexMaker = new DexMaker();
+        TypeId<?> type = TypeId.get("L" + name + ";");
+        dexMaker.declare(type, name + ".generated", PUBLIC, TypeId.OBJECT);
+        // The jar name is derived from the methods, so each class needs its own.
+        MethodId<?, Void> constructor = type.getConstructor();
+        Code code = dexMaker.declare(constructor, PUBLIC);
+        code.invokeDirect(TypeId.OBJECT.getConstructor(), null, code.getThis(type));
+        code.returnVoid();
+        dexMaker.setLoadingSession(session);
+        return dexMaker.generateAndLoad(parent, getDataDirectory());
+    }
+
+    public static class SessionProxied {
+    }
+
+    public static class OtherSessionProxied {
+    }
+
+    public static class PerSessionProxied {
+    }
+}
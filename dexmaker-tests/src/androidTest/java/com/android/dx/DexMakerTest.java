@@ -54,7 +54,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
@@ -93,7 +95,8 @@ public final class DexMakerTest {
 
     private void clearDataDirectory() {
         for (File f : getDataDirectory().listFiles()) {
-            if (f.getName().endsWith(".jar") || f.getName().endsWith(".dex")) {
+            if (f.getName().endsWith(".jar") || f.getName().endsWith(".dex")
+                    || f.getName().endsWith(DexMaker.BASELINE_PROFILE_SUFFIX)) {
                 f.delete();
             }
         }
@@ -1700,6 +1703,188 @@ public final class DexMakerTest {
         }
     }
 
+    @Test
+    public void testCodeAfterThrow() throws Exception {
+        /*
+         * public static int call() {
+         *   throw new IllegalStateException();
+         *   return 1; // unreachable
+         * }
+         */
+        MethodId<?, Integer> methodId = GENERATED.getMethod(TypeId.INT, "call");
+        Code code = dexMaker.declare(methodId, PUBLIC | STATIC);
+        TypeId<IllegalStateException> iseType = TypeId.get(IllegalStateException.class);
+        Local<IllegalStateException> localIse = code.newLocal(iseType);
+        Local<Integer> result = code.newLocal(TypeId.INT);
+        Label unreachable = new Label();
+        code.newInstance(localIse, iseType.getConstructor());
+        code.throwValue(localIse);
+        code.mark(unreachable);
+        code.loadConstant(result, 1);
+        code.returnValue(result);
+
+        try {
+            getMethod().invoke(null);
+            fail();
+        } catch (InvocationTargetException expected) {
+            assertEquals(IllegalStateException.class, expected.getCause().getClass());
+        }
+    }
+
+    @Test
+    public void testGotoChains() throws Exception {
+        /*
+         * public static int call(int a) {
+         *   int result;
+         *   if (a == 0) goto zero;
+         *   result = 1;
+         *   goto first;
+         * zero:
+         *   result = 0;
+         *   goto first;
+         * first:
+         *   goto second;
+         * second:
+         *   return result;
+         * }
+         */
+        MethodId<?, Integer> methodId = GENERATED.getMethod(TypeId.INT, "call", TypeId.INT);
+        Code code = dexMaker.declare(methodId, PUBLIC | STATIC);
+        Local<Integer> localA = code.getParameter(0, TypeId.INT);
+        Local<Integer> result = code.newLocal(TypeId.INT);
+        Label zero = new Label();
+        Label first = new Label();
+        Label second = new Label();
+        code.compareZ(Comparison.EQ, zero, localA);
+        code.loadConstant(result, 1);
+        code.jump(first);
+        code.mark(zero);
+        code.loadConstant(result, 0);
+        code.jump(first);
+        code.mark(first);
+        code.jump(second);
+        code.mark(second);
+        code.returnValue(result);
+
+        Method method = getMethod();
+        assertEquals(0, method.invoke(null, 0));
+        assertEquals(1, method.invoke(null, 5));
+    }
+
+    @Test
+    public void testInvocationCounters() throws Exception {
+        /*
+         * public static int call(int a) {
+         *   return a;
+         * }
+         * public static void other() {}
+         */
+        dexMaker.enableInvocationCounters();
+        MethodId<?, Integer> methodId = GENERATED.getMethod(TypeId.INT, "call", TypeId.INT);
+        Code code = dexMaker.declare(methodId, PUBLIC | STATIC);
+        code.returnValue(code.getParameter(0, TypeId.INT));
+        MethodId<?, Void> otherId = GENERATED.getMethod(TypeId.VOID, "other");
+        dexMaker.declare(otherId, PUBLIC | STATIC).returnVoid();
+
+        Method method = getMethod();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, method.invoke(null, i));
+        }
+
+        Map<MethodId<?, ?>, Long> counts =
+                dexMaker.getInvocationCounts(method.getDeclaringClass().getClassLoader());
+        assertEquals(2, counts.size());
+        assertEquals(3L, (long) counts.get(methodId));
+        assertEquals(0L, (long) counts.get(otherId));
+    }
+
+    @Test
+    public void testInvocationCountersWithoutCountedMethods() throws Exception {
+        /*
+         * static {}
+         */
+        dexMaker.enableInvocationCounters();
+        dexMaker.declare(GENERATED.getStaticInitializer(), STATIC).returnVoid();
+
+        Class<?> generated = generateAndLoad();
+        assertEquals(0, generated.getDeclaredFields().length);
+        assertTrue(dexMaker.getInvocationCounts(generated.getClassLoader()).isEmpty());
+    }
+
+    @Test
+    public void testInvocationCountersMustBeEnabledFirst() {
+        MethodId<?, Void> methodId = GENERATED.getMethod(TypeId.VOID, "call");
+        dexMaker.declare(methodId, PUBLIC | STATIC).returnVoid();
+        try {
+            dexMaker.enableInvocationCounters();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testBaselineProfile() throws Exception {
+        MethodId<?, Integer> methodId = GENERATED.getMethod(TypeId.INT, "call", TypeId.INT,
+                TypeId.STRING);
+        Code code = dexMaker.declare(methodId, PUBLIC | STATIC);
+        code.returnValue(code.getParameter(0, TypeId.INT));
+        dexMaker.markHot(methodId);
+        // Not generated by this DexMaker.
+        dexMaker.markHot(TEST_TYPE);
+
+        assertEquals("LGenerated;\nHSPLGenerated;->call(ILjava/lang/String;)I\n",
+                dexMaker.getBaselineProfile());
+
+        getMethod();
+        boolean foundProfile = false;
+        for (File file : getDataDirectory().listFiles()) {
+            if (file.getName().startsWith("Generated_")
+                    && file.getName().endsWith(DexMaker.BASELINE_PROFILE_SUFFIX)) {
+                foundProfile = true;
+            }
+        }
+        assertTrue(foundProfile);
+    }
+
+    @Test
+    public void testBaselineProfileIsNotRewrittenOnCacheHit() throws Exception {
+        MethodId<?, Void> methodId = GENERATED.getMethod(TypeId.VOID, "call");
+        dexMaker.declare(methodId, PUBLIC | STATIC).returnVoid();
+        dexMaker.markHot(methodId);
+        generateAndLoad();
+
+        File profile = null;
+        for (File file : getDataDirectory().listFiles()) {
+            if (file.getName().startsWith("Generated_")
+                    && file.getName().endsWith(DexMaker.BASELINE_PROFILE_SUFFIX)) {
+                profile = file;
+            }
+        }
+        assertNotNull(profile);
+        // Rewriting the up to date profile would fail.
+        assertTrue(profile.setReadOnly());
+
+        dexMaker = new DexMaker();
+        dexMaker.declare(GENERATED, "Generated.java", PUBLIC, TypeId.OBJECT);
+        dexMaker.declare(methodId, PUBLIC | STATIC).returnVoid();
+        dexMaker.markHot(methodId);
+        generateAndLoad();
+    }
+
+    @Test
+    public void testBaselineProfileFromInvocationCounts() throws Exception {
+        MethodId<?, Void> hot = GENERATED.getMethod(TypeId.VOID, "hot");
+        MethodId<?, Void> cold = GENERATED.getMethod(TypeId.VOID, "cold");
+        dexMaker.declare(hot, PUBLIC | STATIC).returnVoid();
+        dexMaker.declare(cold, PUBLIC | STATIC).returnVoid();
+
+        Map<MethodId<?, ?>, Long> counts = new HashMap<>();
+        counts.put(hot, 100L);
+        counts.put(cold, 1L);
+        dexMaker.markHot(counts, 10);
+        assertEquals("LGenerated;\nHSPLGenerated;->hot()V\n", dexMaker.getBaselineProfile());
+    }
+
     @Test
     public void testUnusedParameters() throws Exception {
         /*
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import android.os.Build;
+
+import com.android.dx.Code;
+import com.android.dx.DexMaker;
+import com.android.dx.DexMakerTest;
+import com.android.dx.TypeId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.reflect.Modifier.PUBLIC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class AsyncGenerationTest {
+    @Before
+    public void setUp() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+    }
+
+    @Test
+    public void testGenerateAndLoad() throws Exception {
+        DexMaker dexMaker = new DexMaker();
+        TypeId<?> type = TypeId.get("LAsyncGenerated;");
+        dexMaker.declare(type, "AsyncGenerated.java", PUBLIC, TypeId.OBJECT);
+        // The jar name is derived from the methods, so the class needs one of its own.
+        Code code = dexMaker.declare(type.getConstructor(), PUBLIC);
+        code.invokeDirect(TypeId.OBJECT.getConstructor(), null, code.getThis(type));
+        code.returnVoid();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ClassLoader loader = AsyncGeneration.generateAndLoad(dexMaker,
+                    getClass().getClassLoader(), DexMakerTest.getDataDirectory(), executor).get();
+            assertEquals("AsyncGenerated", loader.loadClass("AsyncGenerated").getName());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBuildProxyClass() throws Exception {
+        ProxyBuilder<AsyncClass> builder = ProxyBuilder.forClass(AsyncClass.class)
+                .dexCache(DexMakerTest.getDataDirectory());
+        Class<? extends AsyncClass> proxyClass = AsyncGeneration.buildProxyClass(builder).get();
+        assertTrue(ProxyBuilder.isProxyClass(proxyClass));
+        assertSame(proxyClass, builder.buildProxyClass());
+    }
+
+    @Test
+    public void testBuildProxyClassIgnoresLaterChanges() throws Exception {
+        ProxyBuilder<AsyncClass> builder = ProxyBuilder.forClass(AsyncClass.class)
+                .dexCache(DexMakerTest.getDataDirectory());
+        CompletableFuture<Class<? extends AsyncClass>> future =
+                AsyncGeneration.buildProxyClass(builder);
+        builder.implementing(Runnable.class);
+        assertFalse(Runnable.class.isAssignableFrom(future.get()));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        // Final classes cannot be proxied and are reported, but do not stop the other classes.
+        Map<Class<?>, Throwable> failures =
+                AsyncGeneration.prefetch(PrefetchedClass.class, String.class).get();
+        assertEquals(1, failures.size());
+        assertTrue(failures.containsKey(String.class));
+        assertTrue(ProxyBuilder.isProxyClass(
+                ProxyBuilder.forClass(PrefetchedClass.class).buildProxyClass()));
+    }
+
+    public static class AsyncClass {
+    }
+
+    public static class PrefetchedClass {
+    }
+}
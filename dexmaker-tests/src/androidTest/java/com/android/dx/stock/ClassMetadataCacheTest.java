@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import com.android.dx.stock.ProxyBuilder.MethodSetEntry;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ClassMetadataCacheTest {
+    @Test
+    public void testMetadataIsCached() {
+        ClassMetadataCache metadata = ClassMetadataCache.forClass(Example.class);
+        assertSame(metadata, ClassMetadataCache.forClass(Example.class));
+        assertSame(metadata.getDeclaredMethods(),
+                ClassMetadataCache.forClass(Example.class).getDeclaredMethods());
+    }
+
+    @Test
+    public void testAbstractMethods() throws Exception {
+        ClassMetadataCache metadata = ClassMetadataCache.forClass(Example.class);
+        MethodSetEntry abstractMethod =
+                new MethodSetEntry(Example.class.getDeclaredMethod("abstractMethod"));
+
+        assertEquals(Collections.singleton(abstractMethod), metadata.getAbstractMethods());
+    }
+
+    @Test
+    public void testDeclaredMethodEntries() {
+        ClassMetadataCache metadata = ClassMetadataCache.forClass(Example.class);
+        Method[] methods = metadata.getDeclaredMethods();
+        MethodSetEntry[] entries = metadata.getDeclaredMethodEntries();
+
+        assertEquals(methods.length, entries.length);
+        for (int i = 0; i < methods.length; i++) {
+            assertEquals(new MethodSetEntry(methods[i]), entries[i]);
+        }
+    }
+
+    @Test
+    public void testDeclaresMethod() {
+        ClassMetadataCache metadata = ClassMetadataCache.forClass(Example.class);
+        assertTrue(metadata.declaresMethod("overridable", new Class<?>[] { int.class }));
+        assertFalse(metadata.declaresMethod("overridable", new Class<?>[] { long.class }));
+        assertFalse(metadata.declaresMethod("toString", new Class<?>[0]));
+    }
+
+    @Test
+    public void testSortIsIndependentOfInputOrder() {
+        Method[] methods = Example.class.getDeclaredMethods();
+        Method[] reversed = methods.clone();
+        List<Method> list = Arrays.asList(reversed);
+        Collections.reverse(list);
+
+        ClassMetadataCache.sort(methods);
+        ClassMetadataCache.sort(reversed);
+        assertArrayEquals(methods, reversed);
+    }
+
+    public abstract static class Example {
+        public void overridable(int value) {
+        }
+
+        public final void finalMethod() {
+        }
+
+        protected abstract void abstractMethod();
+
+        public static void staticMethod() {
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import com.android.dx.DexMakerTest;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class DecoratorBuilderTest {
+    @Test
+    public void testDecoratesInterface() throws Exception {
+        Counter delegate = new SimpleCounter();
+        Counter decorator = decoratorFor(Counter.class).build(delegate);
+        assertTrue(decorator != delegate);
+        assertEquals(3, decorator.add(3));
+        assertEquals(5L, decorator.addLong(2L));
+        assertEquals(5, delegate.add(0));
+        assertSame(delegate, DecoratorBuilder.getDelegate(decorator));
+    }
+
+    @Test
+    public void testForwardsObjectMethods() throws Exception {
+        Counter delegate = new SimpleCounter();
+        Counter decorator = decoratorFor(Counter.class).build(delegate);
+        assertEquals(delegate.toString(), decorator.toString());
+        assertEquals(delegate.hashCode(), decorator.hashCode());
+        assertTrue(decorator.equals(delegate));
+    }
+
+    @Test
+    public void testHooksAreCalledAroundEachCall() throws Exception {
+        RecordingHooks hooks = new RecordingHooks();
+        Counter decorator = decoratorFor(Counter.class).hooks(hooks).build(new SimpleCounter());
+        Method[] methods = DecoratorBuilder.getDecoratedMethods(decorator.getClass());
+
+        int addIndex = -1;
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].getName().equals("add")) {
+                addIndex = i;
+            }
+        }
+
+        assertEquals(4, decorator.add(4));
+        assertEquals(Arrays.asList("before:" + addIndex, "after:" + addIndex), hooks.calls);
+    }
+
+    @Test
+    public void testAfterHookIsNotCalledWhenDelegateThrows() throws Exception {
+        RecordingHooks hooks = new RecordingHooks();
+        Counter decorator = decoratorFor(Counter.class).hooks(hooks).build(new SimpleCounter());
+        try {
+            decorator.add(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, hooks.calls.size());
+    }
+
+    @Test
+    public void testHookedDecoratorIsSeparateClass() throws Exception {
+        Counter plain = decoratorFor(Counter.class).build(new SimpleCounter());
+        Counter hooked = decoratorFor(Counter.class).hooks(new RecordingHooks())
+                .build(new SimpleCounter());
+        assertNotSame(plain.getClass(), hooked.getClass());
+        assertSame(plain.getClass(),
+                decoratorFor(Counter.class).build(new SimpleCounter()).getClass());
+    }
+
+    @Test
+    public void testDecoratesClass() throws Exception {
+        Greeter delegate = new Greeter("hello");
+        Greeter decorator = decoratorFor(Greeter.class)
+                .constructorArgTypes(String.class)
+                .constructorArgValues("unused")
+                .build(delegate);
+        assertEquals("hello world", decorator.greet("world"));
+        // Final methods are not forwarded and run on the decorator.
+        assertEquals("unused", decorator.greeting());
+    }
+
+    @Test
+    public void testMissingConstructor() throws Exception {
+        try {
+            decoratorFor(Greeter.class).build(new Greeter("hello"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testCannotDecorateFinalClass() throws Exception {
+        try {
+            decoratorFor(FinalClass.class).build(new FinalClass());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static <T> DecoratorBuilder<T> decoratorFor(Class<T> clazz) {
+        return DecoratorBuilder.forClass(clazz).dexCache(DexMakerTest.getDataDirectory());
+    }
+
+    public interface Counter {
+        int add(int delta);
+
+        long addLong(long delta);
+    }
+
+    public static class SimpleCounter implements Counter {
+        private long value;
+
+        @Override
+        public int add(int delta) {
+            if (delta < 0) {
+                throw new IllegalArgumentException();
+            }
+            value += delta;
+            return (int) value;
+        }
+
+        @Override
+        public long addLong(long delta) {
+            value += delta;
+            return value;
+        }
+    }
+
+    public static class Greeter {
+        private final String greeting;
+
+        public Greeter(String greeting) {
+            this.greeting = greeting;
+        }
+
+        public String greet(String name) {
+            return greeting + " " + name;
+        }
+
+        public final String greeting() {
+            return greeting;
+        }
+    }
+
+    public static final class FinalClass {
+    }
+
+    private static class RecordingHooks implements DecoratorHooks {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void before(Object decorator, int methodIndex) {
+            calls.add("before:" + methodIndex);
+        }
+
+        @Override
+        public void after(Object decorator, int methodIndex) {
+            calls.add("after:" + methodIndex);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import com.android.dx.DexMakerTest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PrecompiledProxiesTest {
+    private static final InvocationHandler HANDLER = new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            return "intercepted " + method.getName();
+        }
+    };
+
+    private static final MethodFilter ACCEPT_ALL = new MethodFilter() {
+        @Override
+        public boolean accept(Method method) {
+            return true;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        PrecompiledProxies.uninstall();
+    }
+
+    @Test
+    public void testPrecompiledProxyIsUsed() throws Throwable {
+        File jar = writeJar(ProxyBuilder.forClass(Precompiled.class));
+        PrecompiledProxies.install(jar);
+
+        Precompiled proxy = ProxyBuilder.forClass(Precompiled.class)
+                .dexCache(DexMakerTest.getDataDirectory())
+                .handler(HANDLER)
+                .build();
+        assertTrue(proxy.getClass().getName().endsWith("_Precompiled_Proxy"));
+        assertEquals("intercepted hello", proxy.hello());
+        assertEquals("hello", ProxyBuilder.callSuper(proxy,
+                Precompiled.class.getMethod("hello")));
+    }
+
+    @Test
+    public void testInstalledJarIsNotModified() throws Throwable {
+        File jar = writeJar(ProxyBuilder.forClass(Precompiled.class));
+        PrecompiledProxies.install(jar);
+
+        Precompiled proxy = ProxyBuilder.forClass(Precompiled.class)
+                .dexCache(DexMakerTest.getDataDirectory())
+                .handler(HANDLER)
+                .build();
+        assertTrue(proxy.getClass().getName().endsWith("_Precompiled_Proxy"));
+        assertTrue(jar.canWrite());
+    }
+
+    @Test
+    public void testOtherOptionsAreGeneratedAtRuntime() throws Exception {
+        File jar = writeJar(ProxyBuilder.forClass(NotPrecompiled.class));
+        PrecompiledProxies.install(jar);
+
+        NotPrecompiled proxy = ProxyBuilder.forClass(NotPrecompiled.class)
+                .dexCache(DexMakerTest.getDataDirectory())
+                .withCompactLayout()
+                .handler(HANDLER)
+                .build();
+        assertFalse(proxy.getClass().getName().endsWith("_Precompiled_Proxy"));
+        assertEquals("intercepted hello", proxy.hello());
+    }
+
+    @Test
+    public void testWriteRejectsSharedClassLoader() throws Exception {
+        try {
+            writeJar(ProxyBuilder.forClass(Precompiled.class).withSharedClassLoader());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testWriteRejectsFilter() throws Exception {
+        try {
+            writeJar(ProxyBuilder.forClass(Precompiled.class).filter(ACCEPT_ALL));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testFilteredProxiesAreGeneratedAtRuntime() throws Exception {
+        File jar = writeJar(ProxyBuilder.forClass(Precompiled.class));
+        PrecompiledProxies.install(jar);
+
+        Precompiled proxy = ProxyBuilder.forClass(Precompiled.class)
+                .dexCache(DexMakerTest.getDataDirectory())
+                .filter(ACCEPT_ALL)
+                .handler(HANDLER)
+                .build();
+        assertFalse(proxy.getClass().getName().endsWith("_Precompiled_Proxy"));
+        assertEquals("intercepted hello", proxy.hello());
+    }
+
+    private static File writeJar(ProxyBuilder<?> builder) throws Exception {
+        File jar = new File(DexMakerTest.getDataDirectory(), "precompiled-" + System.nanoTime()
+                + ".jar");
+        PrecompiledProxies.write(Collections.singletonList(builder), jar);
+        return jar;
+    }
+
+    public static class Precompiled {
+        public String hello() {
+            return "hello";
+        }
+    }
+
+    public static class NotPrecompiled {
+        public String hello() {
+            return "hello";
+        }
+    }
+}
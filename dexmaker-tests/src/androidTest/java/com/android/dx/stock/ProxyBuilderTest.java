@@ -51,7 +51,8 @@ import static org.junit.Assume.assumeTrue;
 
 public class ProxyBuilderTest {
     private FakeInvocationHandler fakeHandler = new FakeInvocationHandler();
-    private File versionedDxDir = new File(DexMakerTest.getDataDirectory(), "v1");
+    private File versionedDxDir =
+            new File(DexMakerTest.getDataDirectory(), "v" + ProxyBuilder.VERSION);
 
     @Before
     public void setUp() throws Exception {
@@ -1241,6 +1242,83 @@ public class ProxyBuilderTest {
 
     }
 
+    private static final MethodFilter SKIP_C_AND_E = new MethodFilter() {
+        @Override
+        public boolean accept(Method method) {
+            return !method.getName().equals("returnC") && !method.getName().equals("returnE");
+        }
+    };
+
+    @Test
+    public void testFilter() throws Throwable {
+        final ArrayList<String> intercepted = new ArrayList<>();
+        InvocationHandler handler = new InvokeSuperHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                intercepted.add(method.getName());
+                if (method.getName().equals("returnE")) {
+                    return "fake E";
+                }
+                return "fake " + super.invoke(proxy, method, args);
+            }
+        };
+
+        PartiallyFinalClass proxy = ProxyBuilder.forClass(PartiallyFinalClass.class)
+                .dexCache(DexMakerTest.getDataDirectory())
+                .filter(SKIP_C_AND_E).handler(handler).build();
+
+        assertEquals("fake A", proxy.returnA());
+        assertEquals("fake B", proxy.returnB());
+        assertEquals("C", proxy.returnC());
+        assertEquals("D", proxy.returnD());
+        // Abstract methods are overridden even if the filter rejects them.
+        assertEquals("fake E", proxy.returnE());
+        assertEquals(Arrays.asList("returnA", "returnB", "returnE"), intercepted);
+        assertFalse(declaresMethod(proxy.getClass(), "returnC"));
+    }
+
+    @Test
+    public void testFilterRejectsInheritedDeclarations() throws Exception {
+        MethodFilter skipRun = new MethodFilter() {
+            @Override
+            public boolean accept(Method method) {
+                return !method.getName().equals("run");
+            }
+        };
+        Class<?> proxyClass = proxyFor(RunnableClass.class).filter(skipRun).buildProxyClass();
+
+        // RunnableClass.run() is rejected, so Runnable.run() must not be overridden either.
+        assertFalse(declaresMethod(proxyClass, "run"));
+    }
+
+    @Test
+    public void testFilterIsPartOfCacheKey() throws Exception {
+        Class<?> unfiltered = proxyFor(PartiallyFinalClass.class).buildProxyClass();
+        Class<?> filtered = proxyFor(PartiallyFinalClass.class).filter(SKIP_C_AND_E)
+                .buildProxyClass();
+
+        assertNotSame(unfiltered, filtered);
+        assertSame(filtered, proxyFor(PartiallyFinalClass.class).filter(SKIP_C_AND_E)
+                .buildProxyClass());
+        assertTrue(declaresMethod(unfiltered, "returnC"));
+        assertFalse(declaresMethod(filtered, "returnC"));
+    }
+
+    private static boolean declaresMethod(Class<?> c, String name) {
+        for (Method method : c.getDeclaredMethods()) {
+            if (method.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class RunnableClass implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
     @Test
     public void testImplementingDifferentInterfacesWithSharedClassLoader() throws IOException {
         assumeTrue(Build.VERSION.SDK_INT >= 24);
@@ -1256,10 +1334,271 @@ public class ProxyBuilderTest {
     public void testInterfaceOrder() throws Exception {
         Class<?> c1 = proxyFor(SimpleClass.class)
                 .implementing(Runnable.class, Callable.class).buildProxyClass();
-        assertEquals(new Class[]{Runnable.class, Callable.class}, c1.getInterfaces());
+        assertEquals(new Class[]{Runnable.class, Callable.class, ProxyAccessor.class},
+                c1.getInterfaces());
 
         Class<?> c2 = proxyFor(SimpleClass.class)
                 .implementing(Callable.class, Runnable.class).buildProxyClass();
-        assertEquals(new Class[]{Callable.class, Runnable.class}, c2.getInterfaces());
+        assertEquals(new Class[]{Callable.class, Runnable.class, ProxyAccessor.class},
+                c2.getInterfaces());
+    }
+
+    @Test
+    public void testIsProxyClass() throws Exception {
+        Class<?> proxyClass = proxyFor(SimpleClass.class).buildProxyClass();
+        assertTrue(ProxyBuilder.isProxyClass(proxyClass));
+        assertFalse(ProxyBuilder.isProxyClass(SimpleClass.class));
+        assertFalse(ProxyBuilder.isProxyClass(Object.class));
+    }
+
+    @Test
+    public void testProxyImplementsAccessor() throws Exception {
+        SimpleClass proxy = proxyFor(SimpleClass.class).build();
+        assertTrue(proxy instanceof ProxyAccessor);
+        assertSame(fakeHandler, ((ProxyAccessor) proxy).$__getInvocationHandler());
+
+        InvocationHandler otherHandler = new InvokeSuperHandler();
+        ProxyBuilder.setInvocationHandler(proxy, otherHandler);
+        assertSame(otherHandler, ((ProxyAccessor) proxy).$__getInvocationHandler());
+    }
+
+    @Test
+    public void testHandlerIsNotSetDuringConstruction() throws Exception {
+        fakeHandler.setFakeResult("fake");
+        CallsOverridableMethodInConstructor proxy =
+                proxyFor(CallsOverridableMethodInConstructor.class)
+                        .constructorArgTypes(int.class)
+                        .constructorArgValues(3)
+                        .build();
+        assertEquals("real 3", proxy.valueDuringConstruction);
+        assertEquals("fake", proxy.describe());
+    }
+
+    public static class CallsOverridableMethodInConstructor {
+        private final int value;
+        private final String valueDuringConstruction;
+
+        public CallsOverridableMethodInConstructor(int value) {
+            this.value = value;
+            valueDuringConstruction = describe();
+        }
+
+        public String describe() {
+            return "real " + value;
+        }
+    }
+
+    @Test
+    public void testFastInvocationHandlerReceivesUnboxedArguments() throws Exception {
+        RecordingFastHandler handler = new RecordingFastHandler();
+        PrimitiveMethods proxy = proxyFor(PrimitiveMethods.class)
+                .withFastInvocationHandler()
+                .handler(handler)
+                .build();
+        Method[] methods = ProxyBuilder.getProxiedMethods(proxy.getClass());
+
+        handler.result = -2;
+        assertEquals(-2, proxy.sum((byte) -1, (short) 2, 'c'));
+        assertEquals("sum", methods[handler.methodIndex].getName());
+        assertEquals(-1L, handler.args[0]);
+        assertEquals(2L, handler.args[1]);
+        assertEquals('c', handler.args[2]);
+
+        handler.result = 1L << 32;
+        assertTrue(proxy.not(true));
+        assertEquals(1L, handler.args[0]);
+        assertEquals(0L, handler.args[1]);
+
+        handler.result = Long.MAX_VALUE;
+        assertEquals(Long.MAX_VALUE, proxy.identity(Long.MIN_VALUE));
+        assertEquals(Long.MIN_VALUE, handler.args[0]);
+
+        handler.doubleResult = 1.5;
+        assertEquals(1.5f, proxy.product(2.5f, -3.25), DELTA_FLOAT);
+        assertEquals(2.5f, Float.intBitsToFloat((int) handler.args[0]), DELTA_FLOAT);
+        assertEquals(-3.25, Double.longBitsToDouble(handler.args[1]), DELTA_DOUBLE);
+
+        proxy.run();
+        assertEquals("run", methods[handler.methodIndex].getName());
+        assertEquals(0, handler.boxedCalls);
+
+        assertEquals("fake", proxy.describe(1));
+        assertEquals(1, handler.boxedCalls);
+    }
+
+    @Test
+    public void testFastProxyAcceptsRegularHandler() throws Exception {
+        fakeHandler.setFakeResult(7);
+        PrimitiveMethods proxy = proxyFor(PrimitiveMethods.class)
+                .withFastInvocationHandler()
+                .build();
+        assertEquals(7, proxy.sum((byte) 1, (short) 2, 'c'));
+
+        ProxyBuilder.setInvocationHandler(proxy, new InvokeSuperHandler());
+        assertEquals(1 + 2 + 'c', proxy.sum((byte) 1, (short) 2, 'c'));
+        assertFalse(proxy.not(true));
+    }
+
+    @Test
+    public void testFastProxyIsSeparateClass() throws Exception {
+        Class<?> regular = proxyFor(PrimitiveMethods.class).buildProxyClass();
+        Class<?> fast = proxyFor(PrimitiveMethods.class).withFastInvocationHandler()
+                .buildProxyClass();
+        assertNotSame(regular, fast);
+        assertSame(fast, proxyFor(PrimitiveMethods.class).withFastInvocationHandler()
+                .buildProxyClass());
+    }
+
+    @Test
+    public void testMethodHandlers() throws Exception {
+        fakeHandler.setFakeResult("fake");
+        PrimitiveMethods proxy = proxyFor(PrimitiveMethods.class).withMethodHandlers().build();
+        assertEquals("fake", proxy.describe(1));
+
+        Method[] methods = ProxyBuilder.getProxiedMethods(proxy.getClass());
+        InvocationHandler[] handlers = new InvocationHandler[methods.length];
+        int describeIndex = -1;
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].getName().equals("describe")) {
+                describeIndex = i;
+            }
+        }
+        handlers[describeIndex] = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "table " + args[0];
+            }
+        };
+        ProxyBuilder.setMethodHandlers(proxy, handlers);
+        assertSame(handlers, ProxyBuilder.getMethodHandlers(proxy));
+        assertEquals("table 2", proxy.describe(2));
+        // Methods without a handler call through to the super method.
+        assertEquals(1 + 2 + 'c', proxy.sum((byte) 1, (short) 2, 'c'));
+
+        // Entries can be swapped without setting the array again.
+        handlers[describeIndex] = null;
+        assertEquals("real 3", proxy.describe(3));
+
+        ProxyBuilder.setMethodHandlers(proxy, null);
+        assertEquals("fake", proxy.describe(4));
+    }
+
+    @Test
+    public void testMethodHandlersMustMatchMethodCount() throws Exception {
+        PrimitiveMethods proxy = proxyFor(PrimitiveMethods.class).withMethodHandlers().build();
+        try {
+            ProxyBuilder.setMethodHandlers(proxy, new InvocationHandler[0]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testMethodHandlersRequireOption() throws Exception {
+        PrimitiveMethods proxy = proxyFor(PrimitiveMethods.class).build();
+        try {
+            ProxyBuilder.getMethodHandlers(proxy);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testCompactLayout() throws Exception {
+        fakeHandler.setFakeResult(5);
+        PrimitiveMethods proxy = proxyFor(PrimitiveMethods.class).withCompactLayout().build();
+        assertEquals(5, proxy.sum((byte) 1, (short) 2, 'c'));
+
+        fakeHandler.setFakeResult(true);
+        assertTrue(proxy.not(true));
+
+        ProxyBuilder.setInvocationHandler(proxy, new InvokeSuperHandler());
+        assertEquals(1 + 2 + 'c', proxy.sum((byte) 1, (short) 2, 'c'));
+        assertEquals(1.5f, proxy.product(0.5f, 3.0), DELTA_FLOAT);
+        assertEquals("real 4", proxy.describe(4));
+        proxy.run();
+    }
+
+    @Test
+    public void testCompactLayoutWithoutHandlerCallsSuper() throws Exception {
+        fakeHandler.setFakeResult("fake");
+        CallsOverridableMethodInConstructor proxy =
+                proxyFor(CallsOverridableMethodInConstructor.class)
+                        .withCompactLayout()
+                        .constructorArgTypes(int.class)
+                        .constructorArgValues(3)
+                        .build();
+        assertEquals("real 3", proxy.valueDuringConstruction);
+        assertEquals("fake", proxy.describe());
+    }
+
+    @Test
+    public void testCompactLayoutWithMethodHandlers() throws Exception {
+        fakeHandler.setFakeResult("fake");
+        PrimitiveMethods proxy = proxyFor(PrimitiveMethods.class)
+                .withCompactLayout()
+                .withMethodHandlers()
+                .build();
+        ProxyBuilder.setMethodHandlers(proxy,
+                new InvocationHandler[ProxyBuilder.getProxiedMethods(proxy.getClass()).length]);
+        assertEquals("real 2", proxy.describe(2));
+    }
+
+    public static class PrimitiveMethods {
+        public int sum(byte a, short b, char c) {
+            return a + b + c;
+        }
+
+        public boolean not(boolean value) {
+            return !value;
+        }
+
+        public long identity(long value) {
+            return value;
+        }
+
+        public float product(float a, double b) {
+            return (float) (a * b);
+        }
+
+        public void run() {
+        }
+
+        public String describe(int value) {
+            return "real " + value;
+        }
+    }
+
+    private static class RecordingFastHandler implements FastInvocationHandler {
+        final long[] args = new long[FastInvocationHandler.MAX_ARGUMENTS];
+        int methodIndex = -1;
+        long result;
+        double doubleResult;
+        int boxedCalls;
+
+        @Override
+        public long invokeJ(Object proxy, int methodIndex, long a0, long a1, long a2) {
+            record(methodIndex, a0, a1, a2);
+            return result;
+        }
+
+        @Override
+        public double invokeD(Object proxy, int methodIndex, long a0, long a1, long a2) {
+            record(methodIndex, a0, a1, a2);
+            return doubleResult;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            boxedCalls++;
+            return "fake";
+        }
+
+        private void record(int methodIndex, long a0, long a1, long a2) {
+            this.methodIndex = methodIndex;
+            args[0] = a0;
+            args[1] = a1;
+            args[2] = a2;
+        }
     }
 }
@@ -31,8 +31,12 @@ import com.android.dx.rop.type.StdTypeList;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.android.dx.rop.code.Rop.BRANCH_GOTO;
 import static com.android.dx.rop.code.Rop.BRANCH_NONE;
@@ -299,6 +303,44 @@ public final class Code {
         labels.get(0).instructions.addAll(0, moveParameterInstructions);
     }
 
+    /**
+     * Runs {@code prologue} to add instructions that are executed before all
+     * other instructions of this code, right after the parameters are moved
+     * into their registers. The prologue may only use locals allocated before
+     * this code's first instruction, must not be covered by catch clauses and
+     * must end with the current label open, i.e. without a return or throw.
+     */
+    void addPrologue(Runnable prologue) {
+        if (!localsInitialized) {
+            initializeLocals();
+        }
+        Label entry = labels.get(0);
+        List<Insn> moveParameters = entry.instructions.subList(0, parameters.size());
+        Label prologueLabel = new Label();
+        prologueLabel.code = this;
+        prologueLabel.marked = true;
+        prologueLabel.instructions.addAll(moveParameters);
+        moveParameters.clear();
+        labels.add(0, prologueLabel);
+
+        Label previousLabel = currentLabel;
+        List<TypeId<?>> previousCatchTypes = new ArrayList<TypeId<?>>(catchTypes);
+        List<Label> previousCatchLabels = new ArrayList<Label>(catchLabels);
+        StdTypeList previousCatches = catches;
+        catchTypes.clear();
+        catchLabels.clear();
+        catches = StdTypeList.EMPTY;
+
+        currentLabel = prologueLabel;
+        prologue.run();
+        jump(entry);
+
+        currentLabel = previousLabel;
+        catchTypes.addAll(previousCatchTypes);
+        catchLabels.addAll(previousCatchLabels);
+        catches = previousCatches;
+    }
+
     /**
      * Returns the number of registers to hold the parameters. This includes the
      * 'this' parameter if it exists.
@@ -899,19 +941,126 @@ public final class Code {
     }
 
     /**
-     * Removes empty labels and assigns IDs to non-empty labels.
+     * Removes empty and unreachable labels, simplifies the control flow between
+     * the remaining labels and assigns IDs to them.
      */
     private void cleanUpLabels() {
-        int id = 0;
         for (Iterator<Label> i = labels.iterator(); i.hasNext();) {
             Label label = i.next();
             if (label.isEmpty()) {
                 i.remove();
             } else {
                 label.compact();
-                label.id = id++;
+                if (label.endsWithThrow()) {
+                    label.primarySuccessor = null;
+                }
             }
         }
+
+        foldGotos();
+        removeUnreachableLabels();
+        mergeStraightLineLabels();
+
+        int id = 0;
+        for (Label label : labels) {
+            label.id = id++;
+        }
+    }
+
+    /**
+     * Makes branches to labels that only jump to another label branch to that
+     * label directly. Catch clauses are left alone.
+     */
+    private void foldGotos() {
+        Label entry = labels.get(0);
+        for (Label label : labels) {
+            Label primary = skipGotos(label.primarySuccessor, entry);
+            Label alternate = skipGotos(label.alternateSuccessor, entry);
+            if (alternate != null && primary == alternate) {
+                // An if whose branches both go to the same label is not a valid block.
+                continue;
+            }
+            label.primarySuccessor = primary;
+            label.alternateSuccessor = alternate;
+        }
+    }
+
+    private Label skipGotos(Label target, Label entry) {
+        // Bounded by the number of labels, in case the gotos form a loop.
+        for (int i = 0; target != null && target != entry && target.isGotoOnly()
+                && i < labels.size(); i++) {
+            target = target.primarySuccessor;
+        }
+        return target;
+    }
+
+    /**
+     * Removes labels that cannot be reached from the method's entry, such as
+     * code following a throw.
+     */
+    private void removeUnreachableLabels() {
+        Set<Label> reachable = new HashSet<Label>();
+        List<Label> worklist = new ArrayList<Label>();
+        worklist.add(labels.get(0));
+        while (!worklist.isEmpty()) {
+            Label label = worklist.remove(worklist.size() - 1);
+            if (!reachable.add(label)) {
+                continue;
+            }
+            worklist.addAll(label.catchLabels);
+            if (label.primarySuccessor != null) {
+                worklist.add(label.primarySuccessor);
+            }
+            if (label.alternateSuccessor != null) {
+                worklist.add(label.alternateSuccessor);
+            }
+        }
+        labels.retainAll(reachable);
+    }
+
+    /**
+     * Appends labels that are only reached by a goto to the label containing
+     * that goto.
+     */
+    private void mergeStraightLineLabels() {
+        Map<Label, Integer> predecessorCounts = new HashMap<Label, Integer>();
+        for (Label label : labels) {
+            for (Label catchLabel : label.catchLabels) {
+                countPredecessor(predecessorCounts, catchLabel);
+            }
+            countPredecessor(predecessorCounts, label.primarySuccessor);
+            countPredecessor(predecessorCounts, label.alternateSuccessor);
+        }
+
+        Label entry = labels.get(0);
+        for (Label label : labels) {
+            while (label.endsWithGoto()) {
+                Label successor = label.primarySuccessor;
+                if (successor == label || successor == entry
+                        || predecessorCounts.get(successor) != 1) {
+                    break;
+                }
+                label.instructions.remove(label.instructions.size() - 1);
+                label.instructions.addAll(successor.instructions);
+                label.primarySuccessor = successor.primarySuccessor;
+                label.alternateSuccessor = successor.alternateSuccessor;
+                label.catchLabels = successor.catchLabels;
+                // The successor is no longer referenced and is dropped below.
+                successor.instructions.clear();
+            }
+        }
+        for (Iterator<Label> i = labels.iterator(); i.hasNext();) {
+            if (i.next().isEmpty()) {
+                i.remove();
+            }
+        }
+    }
+
+    private static void countPredecessor(Map<Label, Integer> counts, Label successor) {
+        if (successor != null) {
+            Integer count = counts.get(successor);
+            counts.put(successor, count == null ? 1 : count + 1);
+        }
     }
 
     private static RegisterSpecList concatenate(Local<?> first, Local<?>[] rest) {
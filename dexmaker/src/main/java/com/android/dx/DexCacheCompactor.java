@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx;
+
+import com.android.dex.ClassDef;
+import com.android.dex.Dex;
+import com.android.dex.DexException;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.merge.CollisionPolicy;
+import com.android.dx.merge.DexMerger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Merges the jars that {@link DexMaker#generateAndLoad(ClassLoader, File)} wrote to a dex cache
+ * into a single jar.
+ * <p>
+ * Every proxy or class generated in a process leaves a small jar in the dex cache, which later
+ * processes load separately. After {@link #compact(File)}, the dex cache holds one merged jar and a
+ * manifest listing the jars it replaces. {@code generateAndLoad} then loads the merged jar
+ * instead of each of these, and loads it only once per parent class loader, or into the loader of
+ * the {@link DexLoadingSession} if there is one.
+ * <p>
+ * Compaction can run offline, or on a background thread while the dex cache is in use: the
+ * merged jar is replaced first and the manifest last, and the merged jars are only deleted
+ * afterwards. The manifest records the size and time stamp of the merged jar it belongs to, a
+ * manifest that does not match the merged jar next to it is ignored. Jars that define a class
+ * that is also defined by another jar are left alone, as a single jar cannot hold both classes.
+ * Jars that cannot be read are left alone as well.
+ */
+public final class DexCacheCompactor {
+    static final String MERGED_JAR_NAME = "dexmaker-merged.jar";
+    static final String MANIFEST_NAME = "dexmaker-merged.properties";
+
+    private static final String GENERATED_PREFIX = "Generated_";
+
+    /** The manifest property holding the size and time stamp of the merged jar. */
+    private static final String MERGED_JAR_PROPERTY = MERGED_JAR_NAME;
+
+    /** The manifests read so far, by dex cache directory. */
+    private static final Map<File, CachedManifest> manifests = new HashMap<>();
+
+    /** Discards the merger's progress messages. */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    };
+
+    private DexCacheCompactor() {
+    }
+
+    /**
+     * Merges the generated jars in {@code dexCache}, and the previously merged jar if there is
+     * one, into a single jar.
+     *
+     * @return the number of generated jars that were merged and deleted.
+     */
+    public static synchronized int compact(File dexCache) throws IOException {
+        File mergedJar = new File(dexCache, MERGED_JAR_NAME);
+        Properties manifest = readManifest(dexCache);
+
+        List<Dex> dexes = new ArrayList<>();
+        Set<String> classNames = new HashSet<>();
+        Set<String> profileRules = new LinkedHashSet<>();
+        if (mergedJar.exists() && !manifest.isEmpty()) {
+            Dex merged = new Dex(mergedJar);
+            dexes.add(merged);
+            classNames.addAll(getClassNames(merged));
+            profileRules.addAll(DexMaker.readBaselineProfile(
+                    DexMaker.baselineProfileFile(mergedJar)));
+        } else {
+            manifest.clear();
+        }
+
+        List<File> mergedFiles = new ArrayList<>();
+        File[] files = dexCache.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                // generateAndLoad() ignores writable jars. It renames jars into place once they
+                // are complete, but jars written by older versions might still be incomplete.
+                if (!name.startsWith(GENERATED_PREFIX) || !name.endsWith(".jar")
+                        || file.canWrite() || manifest.containsKey(name)) {
+                    continue;
+                }
+                Dex dex;
+                try {
+                    dex = new Dex(file);
+                } catch (IOException | DexException e) {
+                    continue;
+                }
+                List<String> names = getClassNames(dex);
+                if (!isDisjoint(classNames, names)) {
+                    continue;
+                }
+                classNames.addAll(names);
+                dexes.add(dex);
+                mergedFiles.add(file);
+                profileRules.addAll(DexMaker.readBaselineProfile(
+                        DexMaker.baselineProfileFile(file)));
+                manifest.setProperty(name, "");
+            }
+        }
+        if (mergedFiles.isEmpty()) {
+            return 0;
+        }
+
+        Dex merged = dexes.size() == 1 ? dexes.get(0)
+                : new DexMerger(dexes.toArray(new Dex[0]), CollisionPolicy.FAIL,
+                        new DxContext(NULL_OUTPUT, NULL_OUTPUT)).merge();
+
+        File tempJar = new File(dexCache, MERGED_JAR_NAME + ".tmp");
+        tempJar.delete();
+        try (DexJarWriter jarOut = new DexJarWriter(tempJar)) {
+            jarOut.putDex(merged.getBytes());
+        }
+        tempJar.setReadOnly();
+        // Renaming keeps the time stamp, hence the manifest can identify the merged jar.
+        manifest.setProperty(MERGED_JAR_PROPERTY, describe(tempJar));
+        File tempManifest = new File(dexCache, MANIFEST_NAME + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempManifest)) {
+            manifest.store(out, "Jars merged into " + MERGED_JAR_NAME);
+        }
+        if (!tempJar.renameTo(mergedJar)) {
+            throw new IOException("Cannot replace " + mergedJar);
+        }
+        if (!tempManifest.renameTo(new File(dexCache, MANIFEST_NAME))) {
+            throw new IOException("Cannot replace " + MANIFEST_NAME);
+        }
+
+        // The profile of the merged jar holds the rules of all jars merged into it.
+        if (!profileRules.isEmpty()) {
+            DexMaker.writeBaselineProfile(DexMaker.baselineProfileFile(mergedJar), profileRules);
+        }
+
+        for (File file : mergedFiles) {
+            file.delete();
+            DexMaker.baselineProfileFile(file).delete();
+        }
+        return mergedFiles.size();
+    }
+
+    /**
+     * Returns the merged jar that contains the generated jar called {@code jarName}, or
+     * {@code null} if it was not merged.
+     */
+    static synchronized File findMergedJar(File dexCache, String jarName) throws IOException {
+        File manifestFile = new File(dexCache, MANIFEST_NAME);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+        CachedManifest cached = manifests.get(dexCache);
+        if (cached == null || cached.lastModified != manifestFile.lastModified()) {
+            cached = new CachedManifest(manifestFile.lastModified(), readManifest(dexCache));
+            manifests.put(dexCache, cached);
+        }
+        if (!cached.manifest.containsKey(jarName)) {
+            return null;
+        }
+        // The merged jar may be missing, or be replaced while the manifest is not yet.
+        File mergedJar = new File(dexCache, MERGED_JAR_NAME);
+        return describe(mergedJar).equals(cached.manifest.getProperty(MERGED_JAR_PROPERTY))
+                ? mergedJar : null;
+    }
+
+    private static String describe(File jar) {
+        return jar.length() + "@" + jar.lastModified();
+    }
+
+    private static Properties readManifest(File dexCache) throws IOException {
+        Properties manifest = new Properties();
+        File manifestFile = new File(dexCache, MANIFEST_NAME);
+        if (manifestFile.exists()) {
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                manifest.load(in);
+            }
+        }
+        return manifest;
+    }
+
+    private static List<String> getClassNames(Dex dex) {
+        List<String> names = new ArrayList<>();
+        for (ClassDef classDef : dex.classDefs()) {
+            names.add(dex.typeNames().get(classDef.getTypeIndex()));
+        }
+        return names;
+    }
+
+    private static boolean isDisjoint(Set<String> classNames, List<String> names) {
+        for (String name : names) {
+            if (classNames.contains(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class CachedManifest {
+        final long lastModified;
+        final Properties manifest;
+
+        CachedManifest(long lastModified, Properties manifest) {
+            this.lastModified = lastModified;
+            this.manifest = manifest;
+        }
+    }
+}
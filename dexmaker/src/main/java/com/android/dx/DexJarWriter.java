@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx;
+
+import com.android.dex.DexFormat;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes jars of generated dex files.
+ * <p>
+ * The dex is stored uncompressed and aligned to 4 bytes within the jar, so the runtime can map
+ * it directly from the jar instead of inflating it into a separate file first.
+ */
+public final class DexJarWriter implements Closeable {
+    /** Alignment of uncompressed dex files required for mapping them, as done by zipalign. */
+    static final int DEX_ALIGNMENT = 4;
+
+    /** Header ID of the extra field zipalign uses for padding. */
+    private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+
+    /** Size of a local file header without its name and extra field. */
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private final CountingOutputStream counter;
+    private final ZipOutputStream zipOut;
+
+    public DexJarWriter(File jar) throws IOException {
+        counter = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(jar)));
+        zipOut = new ZipOutputStream(counter);
+    }
+
+    /**
+     * Writes {@code dex} as the {@code classes.dex} of the jar.
+     */
+    public void putDex(byte[] dex) throws IOException {
+        putStoredEntry(DexFormat.DEX_IN_JAR_NAME, dex);
+    }
+
+    /**
+     * Writes {@code data} uncompressed and aligned to {@link #DEX_ALIGNMENT}.
+     */
+    void putStoredEntry(String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+
+        // The data follows the local header, so pad the header's extra field until the data
+        // starts on an aligned offset. The padding field itself needs 4 bytes of header.
+        long dataOffset = counter.count + LOCAL_HEADER_SIZE
+                + name.getBytes("UTF-8").length + 4;
+        int padding = (int) ((DEX_ALIGNMENT - dataOffset % DEX_ALIGNMENT) % DEX_ALIGNMENT);
+        byte[] extra = new byte[4 + padding];
+        extra[0] = (byte) ALIGNMENT_EXTRA_ID;
+        extra[1] = (byte) (ALIGNMENT_EXTRA_ID >>> 8);
+        extra[2] = (byte) padding;
+        entry.setExtra(extra);
+
+        zipOut.putNextEntry(entry);
+        zipOut.write(data);
+        zipOut.closeEntry();
+    }
+
+    /**
+     * Writes {@code data} compressed.
+     */
+    public void putEntry(String name, byte[] data) throws IOException {
+        zipOut.putNextEntry(new ZipEntry(name));
+        zipOut.write(data);
+        zipOut.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipOut.close();
+    }
+
+    /**
+     * Tracks the offset in the jar. {@link ZipOutputStream} writes local headers directly to its
+     * underlying stream, so the count is exact between entries.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Loads the dex files of many {@link DexMaker}s into one class loader per parent class loader,
+ * instead of one class loader per dex file.
+ * <p>
+ * Every class loader has its own class table and dex cache, so processes that generate many small
+ * dex files, e.g. one per mocked class, save memory and load time by sharing loaders:
+ * <pre>   {@code
+ *
+ *     DexLoadingSession session = new DexLoadingSession();
+ *     dexMaker.setLoadingSession(session);
+ *     ClassLoader loader = dexMaker.generateAndLoad(parent, dexCache);
+ * }</pre>
+ * The generated jars are appended to the session's loader with
+ * {@code BaseDexClassLoader.addDexPath}, which requires Android N or newer. On older versions a
+ * new class loader is created for each jar, as without a session.
+ * <p>
+ * The classes loaded through one session must have distinct names, a class that was already
+ * loaded hides a class with the same name in a later dex file. Dex files with the same contents
+ * are only appended once.
+ * <p>
+ * The session holds its class loaders weakly. Once no class loaded through a loader is in use any
+ * more, the loader can be unloaded and the next load creates a new one.
+ * <p>
+ * This class is thread safe.
+ */
+public final class DexLoadingSession {
+    /**
+     * The session's class loaders, by parent class loader. The class loaders reference their
+     * parent, hence they are only weakly held. Otherwise the parents could never be unloaded.
+     */
+    private final Map<ClassLoader, WeakReference<ClassLoader>> loaders = new WeakHashMap<>();
+
+    /** The paths appended to each of the session's class loaders. */
+    private final Map<ClassLoader, Set<String>> loadedPaths = new WeakHashMap<>();
+
+    private int loaderCount;
+    private int loadCount;
+    private long totalLoadNanos;
+    private long maxLoadNanos;
+
+    private static boolean didWarnBlacklistedMethods;
+
+    /**
+     * Loads {@code jar} into the session's class loader for {@code parent}.
+     */
+    synchronized ClassLoader load(File jar, File dexCache, ClassLoader parent, boolean trusted)
+            throws ClassNotFoundException, NoSuchMethodException, InstantiationException,
+            IllegalAccessException, InvocationTargetException {
+        long start = System.nanoTime();
+        try {
+            if (!isAddDexPathSupported()) {
+                loaderCount++;
+                return (ClassLoader) dexClassLoaderConstructor().newInstance(jar.getPath(),
+                        dexCache.getAbsolutePath(), null, parent);
+            }
+
+            WeakReference<ClassLoader> reference = loaders.get(parent);
+            ClassLoader loader = reference == null ? null : reference.get();
+            if (loader == null) {
+                loader = (ClassLoader) baseDexClassLoaderConstructor().newInstance("",
+                        dexCache.getAbsoluteFile(), null, parent);
+                loaders.put(parent, new WeakReference<>(loader));
+                loadedPaths.put(loader, new HashSet<String>());
+                loaderCount++;
+            }
+            if (!loadedPaths.get(loader).add(jar.getPath())) {
+                return loader;
+            }
+
+            if (trusted && isAddTrustedDexPathSupported()) {
+                try {
+                    addTrustedDexPathMethod().invoke(loader, jar.getPath(), true);
+                    return loader;
+                } catch (InvocationTargetException e) {
+                    if (!(e.getCause() instanceof SecurityException)) {
+                        throw e;
+                    }
+                    if (!didWarnBlacklistedMethods) {
+                        System.err.println("Cannot allow to call blacklisted super methods. "
+                                + "This might break spying on system classes." + e.getCause());
+                        didWarnBlacklistedMethods = true;
+                    }
+                }
+            }
+            addDexPathMethod().invoke(loader, jar.getPath());
+            return loader;
+        } finally {
+            long duration = System.nanoTime() - start;
+            loadCount++;
+            totalLoadNanos += duration;
+            maxLoadNanos = Math.max(maxLoadNanos, duration);
+        }
+    }
+
+    /**
+     * Returns the number of class loaders this session created.
+     */
+    public synchronized int getLoaderCount() {
+        return loaderCount;
+    }
+
+    /**
+     * Returns the number of dex files loaded through this session, including repeated loads of
+     * the same file.
+     */
+    public synchronized int getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * Returns the time spent loading dex files, in nanoseconds.
+     */
+    public synchronized long getTotalLoadTimeNanos() {
+        return totalLoadNanos;
+    }
+
+    /**
+     * Returns the longest time spent loading a single dex file, in nanoseconds.
+     */
+    public synchronized long getMaxLoadTimeNanos() {
+        return maxLoadNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DexLoadingSession{loaders=" + loaderCount + ", loads=" + loadCount
+                + ", averageLoadMicros=" + (loadCount == 0 ? 0 : totalLoadNanos / loadCount / 1000)
+                + ", maxLoadMicros=" + maxLoadNanos / 1000 + "}";
+    }
+
+    // Reflective handles to the class loaders of the Android runtime. They are looked up once, as
+    // looking them up on every load adds up when loading many dex files.
+
+    private static Class<?> baseDexClassLoaderClass;
+    private static Constructor<?> baseDexClassLoaderConstructor;
+    private static Constructor<?> trustedBaseDexClassLoaderConstructor;
+    private static Constructor<?> dexClassLoaderConstructor;
+    private static Method addDexPath;
+    private static Method addTrustedDexPath;
+    private static boolean lookedUpAddDexPath;
+
+    static synchronized Class<?> baseDexClassLoaderClass() throws ClassNotFoundException {
+        if (baseDexClassLoaderClass == null) {
+            baseDexClassLoaderClass = Class.forName("dalvik.system.BaseDexClassLoader");
+        }
+        return baseDexClassLoaderClass;
+    }
+
+    private static synchronized Constructor<?> baseDexClassLoaderConstructor()
+            throws ClassNotFoundException, NoSuchMethodException {
+        if (baseDexClassLoaderConstructor == null) {
+            baseDexClassLoaderConstructor = baseDexClassLoaderClass().getConstructor(
+                    String.class, File.class, String.class, ClassLoader.class);
+        }
+        return baseDexClassLoaderConstructor;
+    }
+
+    static synchronized Constructor<?> trustedBaseDexClassLoaderConstructor()
+            throws ClassNotFoundException, NoSuchMethodException {
+        if (trustedBaseDexClassLoaderConstructor == null) {
+            trustedBaseDexClassLoaderConstructor = baseDexClassLoaderClass().getConstructor(
+                    String.class, File.class, String.class, ClassLoader.class, Boolean.TYPE);
+        }
+        return trustedBaseDexClassLoaderConstructor;
+    }
+
+    static synchronized Constructor<?> dexClassLoaderConstructor()
+            throws ClassNotFoundException, NoSuchMethodException {
+        if (dexClassLoaderConstructor == null) {
+            dexClassLoaderConstructor = Class.forName("dalvik.system.DexClassLoader")
+                    .getConstructor(String.class, String.class, String.class, ClassLoader.class);
+        }
+        return dexClassLoaderConstructor;
+    }
+
+    /**
+     * Returns {@code BaseDexClassLoader.addDexPath(String)}, which exists since Android N.
+     */
+    static synchronized Method addDexPathMethod()
+            throws ClassNotFoundException, NoSuchMethodException {
+        lookUpAddDexPath();
+        if (addDexPath == null) {
+            throw new NoSuchMethodException("addDexPath(String)");
+        }
+        return addDexPath;
+    }
+
+    /**
+     * Returns {@code BaseDexClassLoader.addDexPath(String, boolean)}, which exists since
+     * Android P.
+     */
+    static synchronized Method addTrustedDexPathMethod()
+            throws ClassNotFoundException, NoSuchMethodException {
+        lookUpAddDexPath();
+        if (addTrustedDexPath == null) {
+            throw new NoSuchMethodException("addDexPath(String, boolean)");
+        }
+        return addTrustedDexPath;
+    }
+
+    private static boolean isAddDexPathSupported() throws ClassNotFoundException {
+        lookUpAddDexPath();
+        return addDexPath != null;
+    }
+
+    private static boolean isAddTrustedDexPathSupported() throws ClassNotFoundException {
+        lookUpAddDexPath();
+        return addTrustedDexPath != null;
+    }
+
+    private static synchronized void lookUpAddDexPath() throws ClassNotFoundException {
+        if (lookedUpAddDexPath) {
+            return;
+        }
+        // Absent methods are remembered as null, so they are not looked up again.
+        Class<?> baseDexClassLoader = baseDexClassLoaderClass();
+        try {
+            addDexPath = baseDexClassLoader.getMethod("addDexPath", String.class);
+        } catch (NoSuchMethodException e) {
+            addDexPath = null;
+        }
+        try {
+            addTrustedDexPath = baseDexClassLoader.getMethod("addDexPath", String.class,
+                    Boolean.TYPE);
+        } catch (NoSuchMethodException e) {
+            addTrustedDexPath = null;
+        }
+        lookedUpAddDexPath = true;
+    }
+}
@@ -32,19 +32,29 @@ import com.android.dx.rop.cst.CstString;
 import com.android.dx.rop.cst.CstType;
 import com.android.dx.rop.type.StdTypeList;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
+import java.util.WeakHashMap;
 
 import static com.android.dx.rop.code.AccessFlags.ACC_CONSTRUCTOR;
 import static java.lang.reflect.Modifier.*;
@@ -196,6 +206,12 @@ import static java.lang.reflect.Modifier.*;
  * }</pre>
  */
 public final class DexMaker {
+    private static final String INVOCATION_COUNTS_FIELD_NAME = "$__invocationCounts";
+    private static final TypeId<long[]> LONG_ARRAY = TypeId.get(long[].class);
+
+    /** Suffix of the baseline profile written next to a generated jar. */
+    public static final String BASELINE_PROFILE_SUFFIX = ".baseline-prof.txt";
+
     private final Map<TypeId<?>, TypeDeclaration> types = new LinkedHashMap<>();
 
     // Only warn about not being able to deal with blacklisted methods once. Often this is no
@@ -203,9 +219,21 @@ public final class DexMaker {
     private static boolean didWarnBlacklistedMethods;
     private static boolean didWarnNonBaseDexClassLoader;
 
+    /**
+     * The class loaders of merged jars, by parent class loader and merged jar. A merged jar
+     * holds the classes of many DexMakers, hence it is loaded once per parent and not once per
+     * DexMaker. The class loaders are held weakly, as they reference their parents.
+     */
+    private static final Map<ClassLoader, Map<String, WeakReference<ClassLoader>>>
+            mergedJarLoaders = new WeakHashMap<>();
+
     private ClassLoader sharedClassLoader;
     private DexFile outputDex;
     private boolean markAsTrusted;
+    private DexLoadingSession loadingSession;
+    private boolean invocationCounters;
+    private final Set<TypeId<?>> hotClasses = new LinkedHashSet<>();
+    private final Set<MethodId<?, ?>> hotMethods = new LinkedHashSet<>();
 
     /**
      * Creates a new {@code DexMaker} instance, which can be used to create a
@@ -284,6 +312,10 @@ public final class DexMaker {
 
         MethodDeclaration methodDeclaration = new MethodDeclaration(method, flags);
         typeDeclaration.methods.put(method, methodDeclaration);
+        if (invocationCounters) {
+            methodDeclaration.invocationCounter = newInvocationCounter(typeDeclaration, method,
+                    flags, methodDeclaration.code);
+        }
         return methodDeclaration.code;
     }
 
@@ -324,6 +356,7 @@ public final class DexMaker {
      * Generates a dex file and returns its bytes.
      */
     public byte[] generate() {
+        declareInvocationCounters();
         if (outputDex == null) {
             DexOptions options = new DexOptions();
             options.minSdkVersion = DexFormat.API_NO_EXTENDED_OPCODES;
@@ -344,6 +377,7 @@ public final class DexMaker {
     // Generate a file name for the jar by taking a checksum of MethodIds and
     // parent class types.
     private String generateFileName() {
+        declareInvocationCounters();
         int checksum = 1;
 
         Set<TypeId<?>> typesKeySet = types.keySet();
@@ -367,7 +401,8 @@ public final class DexMaker {
             checksum += sum;
         }
 
-        return "Generated_" + checksum +".jar";
+        // The counters are not part of the checksum, but the classes differ.
+        return "Generated_" + checksum + (invocationCounters ? "_Counted" : "") + ".jar";
     }
 
     /**
@@ -390,6 +425,240 @@ public final class DexMaker {
         this.markAsTrusted = true;
     }
 
+    /**
+     * Loads the generated classes into the class loader of {@code session} instead of a new
+     * class loader. Ignored if the classes are loaded by a
+     * {@link #setSharedClassLoader(ClassLoader) shared class loader}.
+     */
+    public void setLoadingSession(DexLoadingSession session) {
+        this.loadingSession = session;
+    }
+
+    /**
+     * Makes every method declared from now on count its invocations, see
+     * {@link #getInvocationCounts(ClassLoader)}. Each declared class gets a
+     * static {@code long[]} field with one counter per method, which is
+     * incremented on method entry. Static initializers and abstract methods are
+     * not counted.
+     *
+     * <p>The counters are not synchronized, so concurrent invocations of the
+     * same method may be undercounted.
+     *
+     * @throws IllegalStateException if methods were already declared.
+     */
+    public void enableInvocationCounters() {
+        for (TypeDeclaration declaration : types.values()) {
+            if (!declaration.methods.isEmpty()) {
+                throw new IllegalStateException(
+                        "invocation counters must be enabled before declaring methods");
+            }
+        }
+        invocationCounters = true;
+    }
+
+    /**
+     * Returns how often each counted method of the classes generated by this
+     * DexMaker was invoked. The classes are loaded from {@code classLoader},
+     * which is usually the class loader returned by
+     * {@link #generateAndLoad(ClassLoader, File)}.
+     */
+    public Map<MethodId<?, ?>, Long> getInvocationCounts(ClassLoader classLoader)
+            throws ClassNotFoundException {
+        if (!invocationCounters) {
+            throw new IllegalStateException("invocation counters are not enabled");
+        }
+        Map<MethodId<?, ?>, Long> result = new LinkedHashMap<>();
+        for (TypeDeclaration declaration : types.values()) {
+            if (!declaration.invocationCountersDeclared) {
+                continue;
+            }
+            String descriptor = declaration.type.getName();
+            Class<?> generated = Class.forName(
+                    descriptor.substring(1, descriptor.length() - 1).replace('/', '.'), true,
+                    classLoader);
+            long[] counts;
+            try {
+                Field field = generated.getDeclaredField(INVOCATION_COUNTS_FIELD_NAME);
+                field.setAccessible(true);
+                counts = (long[]) field.get(null);
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+            for (int i = 0; i < declaration.countedMethods.size(); i++) {
+                result.put(declaration.countedMethods.get(i), counts[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds {@code method} and its declaring class to the baseline profile, see
+     * {@link #getBaselineProfile()}.
+     */
+    public void markHot(MethodId<?, ?> method) {
+        hotMethods.add(method);
+        hotClasses.add(method.declaringType);
+    }
+
+    /**
+     * Adds {@code type} to the baseline profile, see
+     * {@link #getBaselineProfile()}.
+     */
+    public void markHot(TypeId<?> type) {
+        hotClasses.add(type);
+    }
+
+    /**
+     * Adds the methods that were invoked at least {@code minimumInvocations}
+     * times to the baseline profile. The counts are usually collected with
+     * {@link #getInvocationCounts(ClassLoader)} in an earlier run.
+     */
+    public void markHot(Map<MethodId<?, ?>, Long> invocationCounts, long minimumInvocations) {
+        for (Map.Entry<MethodId<?, ?>, Long> entry : invocationCounts.entrySet()) {
+            if (entry.getValue() >= minimumInvocations) {
+                markHot(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the baseline profile rules for the hot classes and methods of
+     * this DexMaker, in the human-readable format used by ART profiles, or an
+     * empty string if none were marked. Classes and methods that are not
+     * declared by this DexMaker are left out.
+     *
+     * <p>{@link #generateAndLoad(ClassLoader, File)} writes these rules next to
+     * the generated jar, in a file ending with {@link #BASELINE_PROFILE_SUFFIX},
+     * for runtimes and tools that compile profiled code ahead of time.
+     */
+    public String getBaselineProfile() {
+        StringBuilder profile = new StringBuilder();
+        for (TypeId<?> type : hotClasses) {
+            if (types.containsKey(type) && types.get(type).declared) {
+                profile.append(type.getName()).append('\n');
+            }
+        }
+        for (MethodId<?, ?> method : hotMethods) {
+            TypeDeclaration declaration = types.get(method.declaringType);
+            if (declaration != null && declaration.methods.containsKey(method)) {
+                // Hot, startup and post-startup.
+                profile.append("HSP").append(method.declaringType.getName()).append("->")
+                        .append(method.getName()).append(method.descriptor(false))
+                        .append('\n');
+            }
+        }
+        return profile.toString();
+    }
+
+    /**
+     * Writes the baseline profile rules next to {@code jar}, unless the profile
+     * is up to date. A merged jar contains the classes of many DexMakers,
+     * hence their rules are added to its profile instead of replacing it.
+     */
+    private void updateBaselineProfile(File jar, boolean merged) throws IOException {
+        String profile = getBaselineProfile();
+        if (profile.isEmpty()) {
+            return;
+        }
+        File profileFile = baselineProfileFile(jar);
+        Set<String> existing = readBaselineProfile(profileFile);
+        Set<String> rules = new LinkedHashSet<>();
+        if (merged) {
+            rules.addAll(existing);
+        }
+        rules.addAll(Arrays.asList(profile.split("\n")));
+        if (rules.equals(existing)) {
+            return;
+        }
+        writeBaselineProfile(profileFile, rules);
+    }
+
+    /**
+     * Returns the file holding the baseline profile rules of {@code jar}.
+     */
+    static File baselineProfileFile(File jar) {
+        String jarName = jar.getName();
+        return new File(jar.getParentFile(),
+                jarName.substring(0, jarName.length() - ".jar".length())
+                        + BASELINE_PROFILE_SUFFIX);
+    }
+
+    /**
+     * Returns the rules in {@code profileFile}, or an empty set if it does not
+     * exist.
+     */
+    static Set<String> readBaselineProfile(File profileFile) throws IOException {
+        Set<String> rules = new LinkedHashSet<>();
+        if (!profileFile.exists()) {
+            return rules;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(profileFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    rules.add(line);
+                }
+            }
+        }
+        return rules;
+    }
+
+    static void writeBaselineProfile(File profileFile, Set<String> rules) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(profileFile),
+                StandardCharsets.UTF_8)) {
+            for (String rule : rules) {
+                writer.write(rule);
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Prepares counting the invocations of {@code method}. The static
+     * initializer allocates the counters instead.
+     */
+    private static InvocationCounter newInvocationCounter(TypeDeclaration typeDeclaration,
+            MethodId<?, ?> method, int flags, Code code) {
+        if (method.isStaticInitializer()) {
+            return new InvocationCounter(typeDeclaration, code, -1);
+        }
+        if ((flags & (Modifier.ABSTRACT | Modifier.NATIVE)) != 0) {
+            return null;
+        }
+        int ordinal = typeDeclaration.countedMethods.size();
+        typeDeclaration.countedMethods.add(method);
+        return new InvocationCounter(typeDeclaration, code, ordinal);
+    }
+
+    /**
+     * Declares the fields holding the invocation counters, and a static
+     * initializer allocating them if none was declared. Types without counted
+     * methods and interfaces, which cannot have private fields, get neither.
+     */
+    private void declareInvocationCounters() {
+        if (!invocationCounters) {
+            return;
+        }
+        for (TypeDeclaration declaration : types.values()) {
+            if (declaration.invocationCountersDeclared || declaration.countedMethods.isEmpty()
+                    || (declaration.flags & Modifier.INTERFACE) != 0) {
+                continue;
+            }
+            declaration.invocationCountersDeclared = true;
+            TypeId<?> type = declaration.type;
+            declare(invocationCountsField(type), Modifier.PRIVATE | Modifier.STATIC, null);
+            if (!declaration.methods.containsKey(type.getStaticInitializer())) {
+                // Declaring the static initializer adds the allocation to it.
+                declare(type.getStaticInitializer(), Modifier.STATIC).returnVoid();
+            }
+        }
+    }
+
+    private static FieldId<?, long[]> invocationCountsField(TypeId<?> type) {
+        return type.getField(LONG_ARRAY, INVOCATION_COUNTS_FIELD_NAME);
+    }
+
     private ClassLoader generateClassLoader(File result, File dexCache, ClassLoader parent) {
         try {
             boolean shareClassLoader = sharedClassLoader != null;
@@ -401,7 +670,7 @@ public final class DexMaker {
                 preferredClassLoader = sharedClassLoader;
             }
 
-            Class baseDexClassLoaderClass = Class.forName("dalvik.system.BaseDexClassLoader");
+            Class<?> baseDexClassLoaderClass = DexLoadingSession.baseDexClassLoaderClass();
 
             if (shareClassLoader) {
                 if (!baseDexClassLoaderClass.isAssignableFrom(preferredClassLoader.getClass())) {
@@ -420,18 +689,21 @@ public final class DexMaker {
                 }
             }
 
+            if (!shareClassLoader && loadingSession != null) {
+                return loadingSession.load(result, dexCache, preferredClassLoader, markAsTrusted);
+            }
+
             // Try to load the class so that it can call hidden APIs. This is required for spying
             // on system classes as real-methods of these classes might call blacklisted APIs
             if (markAsTrusted) {
                 try {
                     if (shareClassLoader) {
-                        preferredClassLoader.getClass().getMethod("addDexPath", String.class,
-                                Boolean.TYPE).invoke(preferredClassLoader, result.getPath(), true);
+                        DexLoadingSession.addTrustedDexPathMethod().invoke(preferredClassLoader,
+                                result.getPath(), true);
                         return preferredClassLoader;
                     } else {
-                        return (ClassLoader) baseDexClassLoaderClass
-                                .getConstructor(String.class, File.class, String.class,
-                                        ClassLoader.class, Boolean.TYPE)
+                        return (ClassLoader) DexLoadingSession
+                                .trustedBaseDexClassLoaderConstructor()
                                 .newInstance(result.getPath(), dexCache.getAbsoluteFile(), null,
                                         preferredClassLoader, true);
                     }
@@ -449,12 +721,11 @@ public final class DexMaker {
             }
 
             if (shareClassLoader) {
-                preferredClassLoader.getClass().getMethod("addDexPath", String.class).invoke(
-                        preferredClassLoader, result.getPath());
+                DexLoadingSession.addDexPathMethod().invoke(preferredClassLoader,
+                        result.getPath());
                 return preferredClassLoader;
             } else {
-                return (ClassLoader) Class.forName("dalvik.system.DexClassLoader")
-                        .getConstructor(String.class, String.class, String.class, ClassLoader.class)
+                return (ClassLoader) DexLoadingSession.dexClassLoaderConstructor()
                         .newInstance(result.getPath(), dexCache.getAbsolutePath(), null,
                                 preferredClassLoader);
             }
@@ -471,6 +742,38 @@ public final class DexMaker {
         }
     }
 
+    private ClassLoader loadMergedJar(File merged, File dexCache, ClassLoader parent) {
+        boolean share = parent == null && sharedClassLoader != null;
+        if (loadingSession != null && !share) {
+            // The session loads each jar only once per parent.
+            return generateClassLoader(merged, dexCache, parent);
+        }
+        ClassLoader preferredClassLoader = share ? sharedClassLoader : parent;
+        // A compaction replaces the merged jar, which then needs a new class loader.
+        String key = merged.getPath() + "@" + merged.lastModified() + ":" + markAsTrusted;
+        synchronized (mergedJarLoaders) {
+            Map<String, WeakReference<ClassLoader>> loaders =
+                    mergedJarLoaders.get(preferredClassLoader);
+            if (loaders == null) {
+                loaders = new HashMap<>();
+                mergedJarLoaders.put(preferredClassLoader, loaders);
+            }
+            WeakReference<ClassLoader> reference = loaders.get(key);
+            ClassLoader loader = reference == null ? null : reference.get();
+            if (loader == null) {
+                loader = generateClassLoader(merged, dexCache, parent);
+                for (Iterator<WeakReference<ClassLoader>> it = loaders.values().iterator();
+                        it.hasNext(); ) {
+                    if (it.next().get() == null) {
+                        it.remove();
+                    }
+                }
+                loaders.put(key, new WeakReference<>(loader));
+            }
+            return loader;
+        }
+    }
+
     /**
      * Generates a dex file and loads its types into the current process.
      *
@@ -516,6 +819,7 @@ public final class DexMaker {
         // the dex bytecode generation.
         if (result.exists()) {
             if (!result.canWrite()) {
+                updateBaselineProfile(result, false);
                 return generateClassLoader(result, dexCache, parent);
             } else {
                 // Old writable files should be ignored and re-generated
@@ -523,31 +827,40 @@ public final class DexMaker {
             }
         }
 
+        File merged = DexCacheCompactor.findMergedJar(dexCache, result.getName());
+        if (merged != null) {
+            // The jar was merged by DexCacheCompactor.compact().
+            updateBaselineProfile(merged, true);
+            return loadMergedJar(merged, dexCache, parent);
+        }
+
         byte[] dex = generate();
 
         /*
          * This implementation currently dumps the dex to the filesystem. It
          * jars the emitted .dex for the benefit of Gingerbread and earlier
-         * devices, which can't load .dex files directly.
+         * devices, which can't load .dex files directly. The .dex is stored
+         * uncompressed and aligned, so newer runtimes map it from the jar
+         * instead of extracting it.
          *
          * TODO: load the dex from memory where supported.
          */
 
-        JarOutputStream jarOut =
-                new JarOutputStream(new BufferedOutputStream(new FileOutputStream(result)));
-        result.setReadOnly();
+        // The jar is written to a temporary file and renamed once complete, so that neither
+        // other processes nor DexCacheCompactor ever see a partially written jar.
+        File tempJar = File.createTempFile(result.getName(), ".tmp", dexCache);
+        DexJarWriter jarOut = new DexJarWriter(tempJar);
+        tempJar.setReadOnly();
         try {
-            JarEntry entry = new JarEntry(DexFormat.DEX_IN_JAR_NAME);
-            entry.setSize(dex.length);
-            jarOut.putNextEntry(entry);
-            try {
-                jarOut.write(dex);
-            } finally {
-                jarOut.closeEntry();
-            }
+            jarOut.putDex(dex);
         } finally {
             jarOut.close();
         }
+        if (!tempJar.renameTo(result)) {
+            tempJar.delete();
+            throw new IOException("Cannot create " + result);
+        }
+        updateBaselineProfile(result, false);
 
         return generateClassLoader(result, dexCache, parent);
     }
@@ -575,6 +888,10 @@ public final class DexMaker {
         private final Map<FieldId, FieldDeclaration> fields = new LinkedHashMap<>();
         private final Map<MethodId, MethodDeclaration> methods = new LinkedHashMap<>();
 
+        /** methods with invocation counters, by counter index */
+        private final List<MethodId<?, ?>> countedMethods = new ArrayList<>();
+        private boolean invocationCountersDeclared;
+
         TypeDeclaration(TypeId<?> type) {
             this.type = type;
         }
@@ -643,6 +960,7 @@ public final class DexMaker {
         final MethodId<?, ?> method;
         private final int flags;
         private final Code code;
+        private InvocationCounter invocationCounter;
 
         public MethodDeclaration(MethodId<?, ?> method, int flags) {
             this.method = method;
@@ -663,6 +981,10 @@ public final class DexMaker {
                 return new EncodedMethod(method.constant, flags, null, StdTypeList.EMPTY);
             }
 
+            if (invocationCounter != null) {
+                code.addPrologue(invocationCounter);
+                invocationCounter = null;
+            }
             RopMethod ropMethod = new RopMethod(code.toBasicBlocks(), 0);
             LocalVariableInfo locals = null;
             DalvCode dalvCode = RopTranslator.translate(
@@ -670,4 +992,63 @@ public final class DexMaker {
             return new EncodedMethod(method.constant, flags, dalvCode, StdTypeList.EMPTY);
         }
     }
+
+    /**
+     * Counts the invocations of a method, or allocates the counters in the
+     * static initializer. The locals are allocated when the method is declared,
+     * as that has to happen before its first instruction. The instructions are
+     * added when the method is generated, as only then the number of counted
+     * methods is known.
+     */
+    private static final class InvocationCounter implements Runnable {
+        private final TypeDeclaration typeDeclaration;
+        private final Code code;
+        /** the index of the method's counter, or -1 in the static initializer */
+        private final int ordinal;
+        private final Local<long[]> counts;
+        private final Local<Integer> index;
+        private final Local<Long> count;
+        private final Local<Long> one;
+
+        InvocationCounter(TypeDeclaration typeDeclaration, Code code, int ordinal) {
+            this.typeDeclaration = typeDeclaration;
+            this.code = code;
+            this.ordinal = ordinal;
+            counts = code.newLocal(LONG_ARRAY);
+            index = code.newLocal(TypeId.INT);
+            if (ordinal >= 0) {
+                count = code.newLocal(TypeId.LONG);
+                one = code.newLocal(TypeId.LONG);
+            } else {
+                count = null;
+                one = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!typeDeclaration.invocationCountersDeclared) {
+                // The type has no counters, see declareInvocationCounters().
+                return;
+            }
+            FieldId<?, long[]> countsField = invocationCountsField(typeDeclaration.type);
+            if (ordinal < 0) {
+                code.loadConstant(index, typeDeclaration.countedMethods.size());
+                code.newArray(counts, index);
+                code.sput(countsField, counts);
+                return;
+            }
+
+            Label counted = new Label();
+            code.sget(countsField, counts);
+            // Only null while the class is being initialized.
+            code.compareZ(Comparison.EQ, counted, counts);
+            code.loadConstant(index, ordinal);
+            code.aget(count, counts, index);
+            code.loadConstant(one, 1L);
+            code.op(BinaryOp.ADD, count, count, one);
+            code.aput(counts, index, count);
+            code.mark(counted);
+        }
+    }
 }
@@ -19,6 +19,8 @@ package com.android.dx;
 import com.android.dx.rop.code.BasicBlock;
 import com.android.dx.rop.code.Insn;
 import com.android.dx.rop.code.InsnList;
+import com.android.dx.rop.code.RegOps;
+import com.android.dx.rop.code.Rop;
 import com.android.dx.util.IntList;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -52,6 +54,33 @@ public final class Label {
         return instructions.isEmpty();
     }
 
+    /**
+     * Returns true if this label's last instruction is an unconditional jump to
+     * {@link #primarySuccessor}.
+     */
+    boolean endsWithGoto() {
+        return !instructions.isEmpty()
+                && instructions.get(instructions.size() - 1).getOpcode().getBranchingness()
+                        == Rop.BRANCH_GOTO;
+    }
+
+    /**
+     * Returns true if this label does nothing but jump to {@link #primarySuccessor}.
+     */
+    boolean isGotoOnly() {
+        return instructions.size() == 1 && endsWithGoto();
+    }
+
+    /**
+     * Returns true if this label ends with a {@code throw}, which unlike other
+     * throwing instructions never continues with the next instruction.
+     */
+    boolean endsWithThrow() {
+        return !instructions.isEmpty()
+                && instructions.get(instructions.size() - 1).getOpcode().getOpcode()
+                        == RegOps.THROW;
+    }
+
     void compact() {
         for (int i = 0; i < catchLabels.size(); i++) {
             while (catchLabels.get(i).isEmpty()) {
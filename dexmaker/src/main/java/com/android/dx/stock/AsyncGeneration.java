@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import com.android.dx.DexMaker;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Generates dex files and proxy classes on background threads, e.g. while an app or a test
+ * is starting up.
+ * <p>
+ * This class requires Android 7.0 (API level 24) or newer, as it returns
+ * {@link CompletableFuture CompletableFutures}. {@link DexMaker} and {@link ProxyBuilder} do not
+ * depend on it and still work on older versions.
+ */
+public final class AsyncGeneration {
+    /** Runs {@link #buildProxyClass(ProxyBuilder)}, created on first use. */
+    private static Executor backgroundExecutor;
+
+    private AsyncGeneration() {
+    }
+
+    /**
+     * Generates a dex file and loads its types into the current process using
+     * {@code executor}. See {@link DexMaker#generateAndLoad(ClassLoader, File)}.
+     *
+     * <p>The {@code dexMaker} must not be modified until the returned future is complete.
+     */
+    public static CompletableFuture<ClassLoader> generateAndLoad(final DexMaker dexMaker,
+            final ClassLoader parent, final File dexCache, Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<ClassLoader>() {
+            @Override
+            public ClassLoader get() {
+                try {
+                    return dexMaker.generateAndLoad(parent, dexCache);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Generates the proxy class of {@code builder} on a background thread. See
+     * {@link ProxyBuilder#buildProxyClass()}.
+     * <p>
+     * Changes to the builder after this call do not affect the generated class.
+     */
+    public static <T> CompletableFuture<Class<? extends T>> buildProxyClass(
+            ProxyBuilder<T> builder) {
+        return buildProxyClass(builder, getBackgroundExecutor());
+    }
+
+    /**
+     * Generates the proxy class of {@code builder} using {@code executor}. See
+     * {@link ProxyBuilder#buildProxyClass()}.
+     * <p>
+     * Changes to the builder after this call do not affect the generated class.
+     */
+    public static <T> CompletableFuture<Class<? extends T>> buildProxyClass(
+            ProxyBuilder<T> builder, Executor executor) {
+        final ProxyBuilder<T> copy = builder.copy();
+        return CompletableFuture.supplyAsync(new Supplier<Class<? extends T>>() {
+            @Override
+            public Class<? extends T> get() {
+                try {
+                    return copy.buildProxyClass();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Starts generating proxy classes for {@code classes} on a background thread, so that they
+     * are ready by the time they are built. The classes are proxied as by
+     * {@code ProxyBuilder.forClass(clazz).buildProxyClass()}, which is also how
+     * {@code DexmakerMockMaker} proxies them.
+     * <p>
+     * A class that cannot be proxied does not stop the others from being generated.
+     *
+     * @return a future that completes once all classes have been generated, with the classes that
+     *     could not be proxied and the reason why.
+     */
+    public static CompletableFuture<Map<Class<?>, Throwable>> prefetch(Class<?>... classes) {
+        final Map<Class<?>, Throwable> failures
+                = Collections.synchronizedMap(new LinkedHashMap<Class<?>, Throwable>());
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            final Class<?> clazz = classes[i];
+            ProxyBuilder<?> builder = ProxyBuilder.forClass(clazz);
+            if (ProxyBuilder.isTrustedLoadingSupported()) {
+                // Like DexmakerMockMaker, which the prefetched class is most likely used by.
+                builder.markTrusted();
+            }
+            futures[i] = buildProxyClass(builder)
+                    .handle(new BiFunction<Object, Throwable, Object>() {
+                        @Override
+                        public Object apply(Object proxyClass, Throwable error) {
+                            if (error instanceof CompletionException
+                                    && error.getCause() != null) {
+                                error = error.getCause();
+                            }
+                            if (error != null) {
+                                failures.put(clazz, error);
+                            }
+                            return null;
+                        }
+                    });
+        }
+        return CompletableFuture.allOf(futures)
+                .thenApply(new Function<Void, Map<Class<?>, Throwable>>() {
+                    @Override
+                    public Map<Class<?>, Throwable> apply(Void ignored) {
+                        return failures;
+                    }
+                });
+    }
+
+    private static synchronized Executor getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            backgroundExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "AsyncGeneration-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+}
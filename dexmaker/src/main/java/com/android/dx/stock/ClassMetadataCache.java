@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import com.android.dx.stock.ProxyBuilder.MethodSetEntry;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Reflective information about the methods of a class, computed once per class.
+ * <p>
+ * Method discovery for proxies and mocks walks the same class hierarchies over and over. Each
+ * {@link Class#getDeclaredMethods()} call copies all {@link Method} objects of a class, so the
+ * results are kept here instead.
+ * <p>
+ * The cache is weakly keyed by class. As the cached {@link Method} objects reference their class,
+ * entries are only softly reachable, otherwise the classes could never be unloaded.
+ * <p>
+ * Arrays returned by this class are shared and must not be modified.
+ */
+public final class ClassMetadataCache {
+    private static final Map<Class<?>, SoftReference<ClassMetadataCache>> cache
+            = Collections.synchronizedMap(
+                    new WeakHashMap<Class<?>, SoftReference<ClassMetadataCache>>());
+
+    private final Class<?> clazz;
+    private final Method[] declaredMethods;
+    private final MethodSetEntry[] declaredMethodEntries;
+    private final Set<MethodSetEntry> abstractMethods;
+    private final Map<Method, String> sortKeys;
+
+    /** Parameter types of the declared methods, by method name. */
+    private final Map<String, Class<?>[][]> parameterTypesByName;
+
+    /** Lazily computed result of {@link Class#getMethods()}. */
+    private volatile Method[] publicMethods;
+    private volatile MethodSetEntry[] publicMethodEntries;
+
+    private ClassMetadataCache(Class<?> c) {
+        clazz = c;
+        declaredMethods = c.getDeclaredMethods();
+        declaredMethodEntries = new MethodSetEntry[declaredMethods.length];
+        Set<MethodSetEntry> abstracts = new HashSet<>();
+        sortKeys = new HashMap<>();
+        Map<String, Class<?>[][]> byName = new HashMap<>();
+        for (int i = 0; i < declaredMethods.length; i++) {
+            Method method = declaredMethods[i];
+            MethodSetEntry entry = new MethodSetEntry(method);
+            declaredMethodEntries[i] = entry;
+
+            if (Modifier.isAbstract(method.getModifiers())) {
+                abstracts.add(entry);
+            }
+
+            sortKeys.put(method, sortKey(method, entry.paramTypes));
+
+            Class<?>[][] sameName = byName.get(entry.name);
+            if (sameName == null) {
+                sameName = new Class<?>[][] { entry.paramTypes };
+            } else {
+                sameName = Arrays.copyOf(sameName, sameName.length + 1);
+                sameName[sameName.length - 1] = entry.paramTypes;
+            }
+            byName.put(entry.name, sameName);
+        }
+        abstractMethods = Collections.unmodifiableSet(abstracts);
+        parameterTypesByName = byName;
+    }
+
+    /**
+     * Returns the metadata of {@code c}, computing it if it is not cached.
+     */
+    public static ClassMetadataCache forClass(Class<?> c) {
+        SoftReference<ClassMetadataCache> reference = cache.get(c);
+        ClassMetadataCache metadata = reference == null ? null : reference.get();
+        if (metadata == null) {
+            // Two threads might compute the metadata at the same time, both results are equal.
+            metadata = new ClassMetadataCache(c);
+            cache.put(c, new SoftReference<>(metadata));
+        }
+        return metadata;
+    }
+
+    /**
+     * Same as {@link Class#getDeclaredMethods()}.
+     */
+    public Method[] getDeclaredMethods() {
+        return declaredMethods;
+    }
+
+    /**
+     * Returns a {@link MethodSetEntry} for each method of {@link #getDeclaredMethods()}, at the
+     * same index.
+     */
+    public MethodSetEntry[] getDeclaredMethodEntries() {
+        return declaredMethodEntries;
+    }
+
+    /**
+     * Same as {@link Class#getMethods()}.
+     */
+    public Method[] getMethods() {
+        Method[] methods = publicMethods;
+        if (methods == null) {
+            methods = clazz.getMethods();
+            MethodSetEntry[] entries = new MethodSetEntry[methods.length];
+            for (int i = 0; i < methods.length; i++) {
+                entries[i] = new MethodSetEntry(methods[i]);
+            }
+            publicMethodEntries = entries;
+            publicMethods = methods;
+        }
+        return methods;
+    }
+
+    /**
+     * Returns a {@link MethodSetEntry} for each method of {@link #getMethods()}, at the same index.
+     */
+    public MethodSetEntry[] getMethodEntries() {
+        getMethods();
+        return publicMethodEntries;
+    }
+
+    /**
+     * Returns the declared abstract methods.
+     */
+    public Set<MethodSetEntry> getAbstractMethods() {
+        return abstractMethods;
+    }
+
+    /**
+     * Returns true if the class declares a method named {@code name} with the given parameter
+     * types. This is the same as {@link Class#getDeclaredMethod} not throwing, without creating
+     * an exception for methods that do not exist.
+     */
+    public boolean declaresMethod(String name, Class<?>[] parameterTypes) {
+        Class<?>[][] candidates = parameterTypesByName.get(name);
+        if (candidates == null) {
+            return false;
+        }
+        for (Class<?>[] candidate : candidates) {
+            if (Arrays.equals(candidate, parameterTypes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sorts {@code methods} in a deterministic order.
+     * <p>
+     * Methods are ordered by declaring class, name, parameter types and return type, as used by
+     * {@link com.android.dx.MethodId#hashCode}. Modifiers are ignored so that e.g. making a
+     * method public does not change the order.
+     */
+    public static void sort(Method[] methods) {
+        final String[] keys = new String[methods.length];
+        Integer[] order = new Integer[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            keys[i] = getSortKey(methods[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return keys[i1].compareTo(keys[i2]);
+            }
+        });
+        Method[] sorted = new Method[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            sorted[i] = methods[order[i]];
+        }
+        System.arraycopy(sorted, 0, methods, 0, methods.length);
+    }
+
+    static String getSortKey(Method method) {
+        String key = forClass(method.getDeclaringClass()).sortKeys.get(method);
+        if (key == null) {
+            // Not a declared method, e.g. created by a different class loader.
+            key = sortKey(method, method.getParameterTypes());
+        }
+        return key;
+    }
+
+    private static String sortKey(Method method, Class<?>[] parameterTypes) {
+        return method.getDeclaringClass() + method.getName() + Arrays.toString(parameterTypes)
+                + method.getReturnType();
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import com.android.dx.Code;
+import com.android.dx.DexMaker;
+import com.android.dx.FieldId;
+import com.android.dx.Local;
+import com.android.dx.MethodId;
+import com.android.dx.TypeId;
+import com.android.dx.stock.ProxyBuilder.MethodSetEntry;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.reflect.Modifier.PRIVATE;
+import static java.lang.reflect.Modifier.PUBLIC;
+
+/**
+ * Creates decorators: instances of a generated subclass or interface implementation that forward
+ * every call to a delegate of the same type.
+ * <p>
+ * Unlike a proxy created by {@link ProxyBuilder}, a decorator calls the delegate directly. No
+ * {@link Method} is looked up, no argument array is allocated and nothing is boxed, so the runtime
+ * can inline the forwarding call. Optional {@link DecoratorHooks} are called before and after each
+ * forwarded call.
+ * <pre>
+ * List&lt;String&gt; traced = DecoratorBuilder.forClass(List.class)
+ *         .dexCache(getInstrumentation().getTargetContext().getDir("dx", Context.MODE_PRIVATE))
+ *         .hooks(new DecoratorHooks() {
+ *             &#64;Override
+ *             public void before(Object decorator, int methodIndex) {
+ *                 Trace.beginSection("List");
+ *             }
+ *
+ *             &#64;Override
+ *             public void after(Object decorator, int methodIndex) {
+ *                 Trace.endSection();
+ *             }
+ *         })
+ *         .build(new ArrayList&lt;String&gt;());
+ * </pre>
+ * Only public, non-final, non-static methods are forwarded. When decorating a class, all other
+ * methods are inherited and run on the decorator itself, which is constructed by calling a
+ * constructor of the class, see {@link #constructorArgTypes(Class[])}.
+ * <p>
+ * This class is <b>not thread safe</b>.
+ */
+public final class DecoratorBuilder<T> {
+    private static final String FIELD_NAME_DELEGATE = "$__delegate";
+    private static final String FIELD_NAME_HOOKS = "$__hooks";
+
+    /**
+     * A cache of all decorator classes ever generated.
+     */
+    private static final Map<DecoratedClass, Class<?>> generatedDecoratorClasses
+            = Collections.synchronizedMap(new HashMap<DecoratedClass, Class<?>>());
+
+    /**
+     * The forwarded methods of each decorator class, in the order of their method index.
+     */
+    private static final Map<Class<?>, Method[]> decoratedMethods
+            = Collections.synchronizedMap(new HashMap<Class<?>, Method[]>());
+
+    private static final TypeId<DecoratorHooks> HOOKS_TYPE = TypeId.get(DecoratorHooks.class);
+    private static final MethodId<DecoratorHooks, Void> BEFORE =
+            HOOKS_TYPE.getMethod(TypeId.VOID, "before", TypeId.OBJECT, TypeId.INT);
+    private static final MethodId<DecoratorHooks, Void> AFTER =
+            HOOKS_TYPE.getMethod(TypeId.VOID, "after", TypeId.OBJECT, TypeId.INT);
+
+    private final Class<T> baseClass;
+    private ClassLoader parentClassLoader = DecoratorBuilder.class.getClassLoader();
+    private DecoratorHooks hooks;
+    private File dexCache;
+    private Class<?>[] constructorArgTypes = new Class<?>[0];
+    private Object[] constructorArgValues = new Object[0];
+
+    private DecoratorBuilder(Class<T> clazz) {
+        baseClass = clazz;
+    }
+
+    public static <T> DecoratorBuilder<T> forClass(Class<T> clazz) {
+        return new DecoratorBuilder<T>(clazz);
+    }
+
+    /**
+     * Specifies the parent ClassLoader to use when creating the decorator.
+     *
+     * <p>If null, {@code DecoratorBuilder.class.getClassLoader()} will be used.
+     */
+    public DecoratorBuilder<T> parentClassLoader(ClassLoader parent) {
+        parentClassLoader = parent;
+        return this;
+    }
+
+    /**
+     * Sets the hooks to call around each forwarded call. Decorators with hooks are instances of a
+     * different class than decorators without.
+     */
+    public DecoratorBuilder<T> hooks(DecoratorHooks hooks) {
+        this.hooks = hooks;
+        return this;
+    }
+
+    /**
+     * Sets the directory where executable code is stored. See {@link
+     * DexMaker#generateAndLoad DexMaker.generateAndLoad()} for guidance on
+     * choosing a secure location for the dex cache.
+     */
+    public DecoratorBuilder<T> dexCache(File dexCacheParent) {
+        dexCache = new File(dexCacheParent, "v" + Integer.toString(ProxyBuilder.VERSION));
+        dexCache.mkdir();
+        return this;
+    }
+
+    /**
+     * Sets the parameter types of the constructor of the decorated class to call. Ignored when
+     * decorating an interface.
+     */
+    public DecoratorBuilder<T> constructorArgTypes(Class<?>... constructorArgTypes) {
+        this.constructorArgTypes = constructorArgTypes;
+        return this;
+    }
+
+    public DecoratorBuilder<T> constructorArgValues(Object... constructorArgValues) {
+        this.constructorArgValues = constructorArgValues;
+        return this;
+    }
+
+    /**
+     * Create a new decorator that forwards to {@code delegate}.
+     *
+     * @throws UnsupportedOperationException if the class we are trying to decorate is not
+     *     accessible.
+     * @throws IOException if an exception occurred writing to the {@code dexCache} directory.
+     * @throws UndeclaredThrowableException if the constructor of the decorated class throws a
+     *     declared exception during construction.
+     * @throws IllegalArgumentException if the delegate is null, if the constructor argument types
+     *     do not match the constructor argument values, or if no such constructor exists.
+     */
+    public T build(T delegate) throws IOException {
+        check(delegate != null, "delegate == null");
+        check(constructorArgTypes.length == constructorArgValues.length,
+                "constructorArgValues.length != constructorArgTypes.length");
+        Class<? extends T> decoratorClass = buildDecoratorClass();
+
+        Class<?>[] argTypes = constructorArgTypes;
+        Object[] argValues = constructorArgValues;
+        if (baseClass.isInterface()) {
+            argTypes = new Class<?>[0];
+            argValues = new Object[0];
+        }
+        Class<?>[] parameterTypes = new Class<?>[argTypes.length + 2];
+        parameterTypes[0] = baseClass;
+        parameterTypes[1] = DecoratorHooks.class;
+        System.arraycopy(argTypes, 0, parameterTypes, 2, argTypes.length);
+        Object[] parameters = new Object[argValues.length + 2];
+        parameters[0] = delegate;
+        parameters[1] = hooks;
+        System.arraycopy(argValues, 0, parameters, 2, argValues.length);
+
+        Constructor<? extends T> constructor;
+        try {
+            constructor = decoratorClass.getConstructor(parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No constructor for " + baseClass.getName()
+                    + " with parameter types " + Arrays.toString(argTypes));
+        }
+        try {
+            return constructor.newInstance(parameters);
+        } catch (InstantiationException e) {
+            // Should not be thrown, generated class is not abstract.
+            throw new AssertionError(e);
+        } catch (IllegalAccessException e) {
+            // Should not be thrown, the generated constructor is accessible.
+            throw new AssertionError(e);
+        } catch (InvocationTargetException e) {
+            // Thrown when the constructor of the decorated class throws an exception.
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new UndeclaredThrowableException(cause);
+        }
+    }
+
+    /**
+     * Generate a decorator class. Its constructors take the delegate and the hooks, followed by
+     * the parameters of the corresponding constructor of the decorated class.
+     */
+    public Class<? extends T> buildDecoratorClass() throws IOException {
+        check(!Modifier.isFinal(baseClass.getModifiers()),
+                "cannot decorate final class " + baseClass.getName());
+        boolean hooked = hooks != null;
+        DecoratedClass cacheKey = new DecoratedClass(baseClass, parentClassLoader, hooked);
+        @SuppressWarnings("unchecked")
+        Class<? extends T> decoratorClass = (Class) generatedDecoratorClasses.get(cacheKey);
+        if (decoratorClass != null) {
+            return decoratorClass; // cache hit!
+        }
+
+        DexMaker dexMaker = new DexMaker();
+        String generatedName = baseClass.getName().replace(".", "/")
+                + (hooked ? "_Hooked" : "") + "_Decorator";
+        TypeId<? extends T> generatedType = TypeId.get("L" + generatedName + ";");
+        TypeId<T> baseType = TypeId.get(baseClass);
+        Method[] methods = getMethodsToForward(baseClass);
+
+        generateConstructorsAndFields(dexMaker, generatedType, baseType, hooked);
+        for (int m = 0; m < methods.length; m++) {
+            generateForwardingMethod(dexMaker, generatedType, baseType, baseClass.isInterface(),
+                    methods[m], m, hooked);
+        }
+        if (baseClass.isInterface()) {
+            dexMaker.declare(generatedType, generatedName + ".generated", PUBLIC,
+                    TypeId.OBJECT, baseType);
+        } else {
+            dexMaker.declare(generatedType, generatedName + ".generated", PUBLIC, baseType);
+        }
+
+        ClassLoader classLoader = dexMaker.generateAndLoad(parentClassLoader, dexCache);
+        try {
+            @SuppressWarnings("unchecked")
+            Class<? extends T> loaded =
+                    (Class<? extends T>) classLoader.loadClass(generatedName.replace('/', '.'));
+            decoratorClass = loaded;
+        } catch (IllegalAccessError e) {
+            // Thrown when the decorated class is not accessible.
+            throw new UnsupportedOperationException(
+                    "cannot decorate inaccessible class " + baseClass, e);
+        } catch (ClassNotFoundException e) {
+            // Should not be thrown, we're sure to have generated this class.
+            throw new AssertionError(e);
+        }
+        decoratedMethods.put(decoratorClass, methods);
+        generatedDecoratorClasses.put(cacheKey, decoratorClass);
+        return decoratorClass;
+    }
+
+    /**
+     * Returns the methods forwarded by a decorator class, indexed by the {@code methodIndex}
+     * passed to {@link DecoratorHooks}.
+     *
+     * @throws IllegalArgumentException if the class supplied is not a decorator class created by
+     *     this class.
+     */
+    public static Method[] getDecoratedMethods(Class<?> decoratorClass) {
+        Method[] methods = decoratedMethods.get(decoratorClass);
+        check(methods != null, "Not a decorator class: " + decoratorClass.getName());
+        return methods.clone();
+    }
+
+    /**
+     * Returns the delegate of a decorator.
+     *
+     * @throws IllegalArgumentException if the object supplied is not a decorator created by this
+     *     class.
+     */
+    public static Object getDelegate(Object decorator) {
+        check(decoratedMethods.containsKey(decorator.getClass()), "Not a decorator");
+        try {
+            Field field = decorator.getClass().getDeclaredField(FIELD_NAME_DELEGATE);
+            field.setAccessible(true);
+            return field.get(decorator);
+        } catch (NoSuchFieldException e) {
+            // Should not be thrown, generated decorator classes have this field.
+            throw new AssertionError(e);
+        } catch (IllegalAccessException e) {
+            // Should not be thrown, we just set the field to accessible.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Generates the fields and one constructor per accessible constructor of the decorated class:
+     *
+     * <pre>
+     *     public Example_Decorator(Example delegate, DecoratorHooks hooks, int param0) {
+     *         super(param0);
+     *         $__delegate = delegate;
+     *         $__hooks = hooks; // if the decorator has hooks
+     *     }
+     * </pre>
+     */
+    private <G extends T> void generateConstructorsAndFields(DexMaker dexMaker,
+            TypeId<G> generatedType, TypeId<T> baseType, boolean hooked) {
+        FieldId<G, T> delegateField = generatedType.getField(baseType, FIELD_NAME_DELEGATE);
+        dexMaker.declare(delegateField, PRIVATE | Modifier.FINAL, null);
+        FieldId<G, DecoratorHooks> hooksField = generatedType.getField(HOOKS_TYPE,
+                FIELD_NAME_HOOKS);
+        if (hooked) {
+            dexMaker.declare(hooksField, PRIVATE | Modifier.FINAL, null);
+        }
+
+        Class<?>[][] superParameterTypes;
+        if (baseClass.isInterface()) {
+            superParameterTypes = new Class<?>[][] { new Class<?>[0] };
+        } else {
+            Constructor<?>[] constructors = baseClass.getDeclaredConstructors();
+            superParameterTypes = new Class<?>[constructors.length][];
+            for (int i = 0; i < constructors.length; i++) {
+                int modifiers = constructors[i].getModifiers();
+                if (Modifier.isPublic(modifiers) || Modifier.isProtected(modifiers)) {
+                    superParameterTypes[i] = constructors[i].getParameterTypes();
+                }
+            }
+        }
+
+        for (Class<?>[] superParameters : superParameterTypes) {
+            if (superParameters == null) {
+                continue;
+            }
+            TypeId<?>[] superTypes = new TypeId<?>[superParameters.length];
+            TypeId<?>[] types = new TypeId<?>[superParameters.length + 2];
+            types[0] = baseType;
+            types[1] = HOOKS_TYPE;
+            for (int i = 0; i < superParameters.length; i++) {
+                superTypes[i] = TypeId.get(superParameters[i]);
+                types[i + 2] = superTypes[i];
+            }
+            Code code = dexMaker.declare(generatedType.getConstructor(types), PUBLIC);
+            Local<G> localThis = code.getThis(generatedType);
+            Local<T> delegate = code.getParameter(0, baseType);
+            Local<DecoratorHooks> hooks = code.getParameter(1, HOOKS_TYPE);
+            Local<?>[] superArgs = new Local<?>[superParameters.length];
+            for (int i = 0; i < superArgs.length; i++) {
+                superArgs[i] = code.getParameter(i + 2, superTypes[i]);
+            }
+            if (baseClass.isInterface()) {
+                code.invokeDirect(TypeId.OBJECT.getConstructor(), null, localThis);
+            } else {
+                code.invokeDirect(baseType.getConstructor(superTypes), null, localThis,
+                        superArgs);
+            }
+            code.iput(delegateField, localThis, delegate);
+            if (hooked) {
+                code.iput(hooksField, localThis, hooks);
+            }
+            code.returnVoid();
+        }
+    }
+
+    /**
+     * Generates a method that forwards to the delegate:
+     *
+     * <pre>
+     *     public int doSomething(Bar param0, int param1) {
+     *         $__hooks.before(this, 4); // if the decorator has hooks
+     *         int result = $__delegate.doSomething(param0, param1);
+     *         $__hooks.after(this, 4); // if the decorator has hooks
+     *         return result;
+     *     }
+     * </pre>
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T, G extends T> void generateForwardingMethod(DexMaker dexMaker,
+            TypeId<G> generatedType, TypeId<T> baseType, boolean isInterface, Method method,
+            int methodIndex, boolean hooked) {
+        Class<?>[] argClasses = method.getParameterTypes();
+        TypeId<?>[] argTypes = new TypeId<?>[argClasses.length];
+        for (int i = 0; i < argTypes.length; i++) {
+            argTypes[i] = TypeId.get(argClasses[i]);
+        }
+        Class<?> returnType = method.getReturnType();
+        TypeId<?> resultType = TypeId.get(returnType);
+        Code code = dexMaker.declare(
+                generatedType.getMethod(resultType, method.getName(), argTypes), PUBLIC);
+        Local<G> localThis = code.getThis(generatedType);
+        Local<T> delegate = code.newLocal(baseType);
+        Local result = returnType == void.class ? null : code.newLocal(resultType);
+        Local<DecoratorHooks> hooks = null;
+        Local<Integer> index = null;
+        if (hooked) {
+            hooks = code.newLocal(HOOKS_TYPE);
+            index = code.newLocal(TypeId.INT);
+        }
+        Local<?>[] args = new Local<?>[argTypes.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = code.getParameter(i, argTypes[i]);
+        }
+
+        code.iget(generatedType.getField(baseType, FIELD_NAME_DELEGATE), delegate, localThis);
+        if (hooked) {
+            code.iget(generatedType.getField(HOOKS_TYPE, FIELD_NAME_HOOKS), hooks, localThis);
+            code.loadConstant(index, methodIndex);
+            code.invokeInterface(BEFORE, null, hooks, localThis, index);
+        }
+        if (method.getDeclaringClass() == Object.class) {
+            // Also used for interfaces, which do not declare the methods of Object.
+            MethodId objectMethod = TypeId.OBJECT.getMethod(resultType, method.getName(),
+                    argTypes);
+            code.invokeVirtual(objectMethod, result, delegate, args);
+        } else if (isInterface) {
+            code.invokeInterface(baseType.getMethod(resultType, method.getName(), argTypes),
+                    result, delegate, args);
+        } else {
+            code.invokeVirtual(baseType.getMethod(resultType, method.getName(), argTypes),
+                    result, delegate, args);
+        }
+        if (hooked) {
+            code.invokeInterface(AFTER, null, hooks, localThis, index);
+        }
+        if (result == null) {
+            code.returnVoid();
+        } else {
+            code.returnValue(result);
+        }
+    }
+
+    /**
+     * Returns the public methods of {@code c} that can be overridden, sorted so that the method
+     * indices do not depend on the order the runtime reports them in.
+     */
+    private static Method[] getMethodsToForward(Class<?> c) {
+        Set<MethodSetEntry> finalMethods = new HashSet<>();
+        Map<MethodSetEntry, Method> methods = new LinkedHashMap<>();
+        addMethodsToForward(ClassMetadataCache.forClass(c), methods, finalMethods);
+        if (c.isInterface()) {
+            // Interfaces do not report the methods of Object, but their implementations have them.
+            addMethodsToForward(ClassMetadataCache.forClass(Object.class), methods, finalMethods);
+        }
+        methods.keySet().removeAll(finalMethods);
+
+        Method[] result = methods.values().toArray(new Method[0]);
+        ClassMetadataCache.sort(result);
+        return result;
+    }
+
+    private static void addMethodsToForward(ClassMetadataCache metadata,
+            Map<MethodSetEntry, Method> methods, Set<MethodSetEntry> finalMethods) {
+        Method[] publicMethods = metadata.getMethods();
+        MethodSetEntry[] entries = metadata.getMethodEntries();
+        for (int i = 0; i < publicMethods.length; i++) {
+            int modifiers = publicMethods[i].getModifiers();
+            if (Modifier.isStatic(modifiers)) {
+                continue;
+            }
+            if (Modifier.isFinal(modifiers)) {
+                finalMethods.add(entries[i]);
+                continue;
+            }
+            if (!methods.containsKey(entries[i])) {
+                methods.put(entries[i], publicMethods[i]);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    /**
+     * A class that was already decorated.
+     */
+    private static class DecoratedClass {
+        final Class<?> clazz;
+
+        final ClassLoader parentClassLoader;
+
+        final boolean hooked;
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (other == null || getClass() != other.getClass()) {
+                return false;
+            }
+
+            DecoratedClass that = (DecoratedClass) other;
+            return clazz == that.clazz
+                    && parentClassLoader == that.parentClassLoader
+                    && hooked == that.hooked;
+        }
+
+        @Override
+        public int hashCode() {
+            return clazz.hashCode() + System.identityHashCode(parentClassLoader)
+                    + (hooked ? 1 : 0);
+        }
+
+        private DecoratedClass(Class<?> clazz, ClassLoader parentClassLoader, boolean hooked) {
+            this.clazz = clazz;
+            this.parentClassLoader = parentClassLoader;
+            this.hooked = hooked;
+        }
+    }
+}
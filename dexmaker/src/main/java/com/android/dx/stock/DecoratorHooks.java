@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+/**
+ * Callbacks invoked by decorators generated with {@link DecoratorBuilder#hooks(DecoratorHooks)}
+ * around each call to the delegate.
+ * <p>
+ * The {@code methodIndex} is the index of the called method in
+ * {@link DecoratorBuilder#getDecoratedMethods(Class)}.
+ */
+public interface DecoratorHooks {
+    /**
+     * Called before the call is forwarded to the delegate.
+     */
+    void before(Object decorator, int methodIndex);
+
+    /**
+     * Called after the delegate returned normally. Not called if the delegate throws.
+     */
+    void after(Object decorator, int methodIndex);
+}
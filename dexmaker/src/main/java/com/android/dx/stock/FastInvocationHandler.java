@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * An {@link InvocationHandler} that can receive calls of primitive methods without boxing.
+ * <p>
+ * Proxies built with {@link ProxyBuilder#withFastInvocationHandler()} check if their handler
+ * implements this interface. If it does, calls to methods that take at most
+ * {@link #MAX_ARGUMENTS} primitive arguments and return a primitive or {@code void} are dispatched
+ * to {@link #invokeJ} or {@link #invokeD} instead of {@link #invoke}. This allocates neither an
+ * argument array nor boxed values. All other methods are still dispatched to {@link #invoke}.
+ * <p>
+ * Arguments are passed in order, widened to {@code long}:
+ * <ul>
+ *     <li>{@code boolean} is passed as {@code 0} or {@code 1}.</li>
+ *     <li>{@code byte}, {@code short}, {@code char} and {@code int} are sign- or zero-extended as
+ *         by a Java widening conversion.</li>
+ *     <li>{@code float} is passed as {@link Float#floatToRawIntBits}.</li>
+ *     <li>{@code double} is passed as {@link Double#doubleToRawLongBits}.</li>
+ * </ul>
+ * Unused argument slots are {@code 0}. The {@code methodIndex} is the index of the called method
+ * in {@link ProxyBuilder#getProxiedMethods(Class)}.
+ */
+public interface FastInvocationHandler extends InvocationHandler {
+    /**
+     * The maximum number of arguments of a method that can be dispatched without boxing.
+     */
+    int MAX_ARGUMENTS = 3;
+
+    /**
+     * Handles a call to a method returning {@code void}, {@code boolean}, {@code byte},
+     * {@code short}, {@code char}, {@code int} or {@code long}. The result is narrowed to the
+     * return type of the method, a {@code boolean} method returns {@code true} for any non-zero
+     * result. The result of a {@code void} method is ignored.
+     */
+    long invokeJ(Object proxy, int methodIndex, long a0, long a1, long a2) throws Throwable;
+
+    /**
+     * Handles a call to a method returning {@code float} or {@code double}. The result is
+     * narrowed to the return type of the method.
+     */
+    double invokeD(Object proxy, int methodIndex, long a0, long a1, long a2) throws Throwable;
+}
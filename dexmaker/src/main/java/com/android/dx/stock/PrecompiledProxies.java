@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import com.android.dx.DexJarWriter;
+import com.android.dx.DexMaker;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Proxy classes compiled ahead of time, so that {@link ProxyBuilder#buildProxyClass()} does not
+ * have to generate them at runtime.
+ * <p>
+ * A precompiled proxy jar is created on the host with {@link #write(List, File)}, e.g. by the
+ * {@code dexmaker-aot} tool. It contains a {@code classes.dex} and a manifest that maps each
+ * proxied class, its extra interfaces and its options to the name of the generated class.
+ * <p>
+ * Once a jar is installed with {@link #install(File)}, or through the
+ * {@code dexmaker.precompiledProxies} system property, {@link ProxyBuilder} loads matching proxy
+ * classes from it. Proxies that are not in the jar, that were compiled against a different version
+ * of the proxied class, or that use {@link ProxyBuilder#withSharedClassLoader()} are still
+ * generated at runtime.
+ */
+public final class PrecompiledProxies {
+    /**
+     * System property with the path of a precompiled proxy jar to install on first use.
+     */
+    public static final String PROPERTY = "dexmaker.precompiledProxies";
+
+    /**
+     * Name of the manifest in a precompiled proxy jar.
+     */
+    public static final String MANIFEST_NAME = "dexmaker-proxies.properties";
+
+    private static final String PRECOMPILED_SUFFIX = "_Precompiled_Proxy";
+
+    private static File installedJar;
+    private static long installedJarCrc;
+    private static Properties manifest;
+    private static boolean checkedProperty;
+
+    /**
+     * Class loaders of the installed jar, by parent class loader. The class loaders reference
+     * their parent, hence they are only weakly held. Otherwise the parents could never be
+     * unloaded.
+     */
+    private static final Map<ClassLoader, WeakReference<ClassLoader>> classLoaders
+            = new WeakHashMap<>();
+    private static final Map<ClassLoader, WeakReference<ClassLoader>> trustedClassLoaders
+            = new WeakHashMap<>();
+
+    private PrecompiledProxies() {
+    }
+
+    /**
+     * Uses the proxy classes in {@code jar} for all proxies built from now on. Replaces any
+     * previously installed jar.
+     * <p>
+     * The jar itself is not modified. As newer Android versions refuse to load writable dex files,
+     * the proxies are loaded from a read-only copy in the dex cache.
+     *
+     * @throws IOException if the jar cannot be read or has no manifest.
+     */
+    public static synchronized void install(File jar) throws IOException {
+        Properties entries = new Properties();
+        try (ZipFile zip = new ZipFile(jar)) {
+            ZipEntry entry = zip.getEntry(MANIFEST_NAME);
+            if (entry == null) {
+                throw new IOException(jar + " has no " + MANIFEST_NAME);
+            }
+            try (InputStream in = zip.getInputStream(entry)) {
+                entries.load(in);
+            }
+        }
+        installedJar = jar;
+        installedJarCrc = crc(jar);
+        manifest = entries;
+        checkedProperty = true;
+        classLoaders.clear();
+        trustedClassLoaders.clear();
+    }
+
+    /**
+     * Stops using the installed jar. Proxy classes already loaded from it stay in use.
+     */
+    public static synchronized void uninstall() {
+        installedJar = null;
+        manifest = null;
+        checkedProperty = true;
+        classLoaders.clear();
+        trustedClassLoaders.clear();
+    }
+
+    /**
+     * Generates the proxy classes configured by {@code builders} and writes them to a precompiled
+     * proxy jar. This does not require an Android runtime.
+     *
+     * @throws IllegalArgumentException if a builder uses
+     *     {@link ProxyBuilder#withSharedClassLoader()} or {@link ProxyBuilder#filter}.
+     */
+    public static void write(List<? extends ProxyBuilder<?>> builders, File output)
+            throws IOException {
+        DexMaker dexMaker = new DexMaker();
+        Properties entries = new Properties();
+        for (ProxyBuilder<?> builder : builders) {
+            String key = builder.getPrecompiledKey();
+            if (entries.containsKey(key)) {
+                continue;
+            }
+            // The index keeps the names of proxies of the same class with different interfaces
+            // or options apart.
+            String generatedName = builder.getBaseClass().getName().replace('.', '/') + "_"
+                    + entries.size() + PRECOMPILED_SUFFIX;
+            String checksum = builder.declarePrecompiledProxyClass(dexMaker, generatedName);
+            entries.setProperty(key, generatedName + " " + checksum);
+        }
+        byte[] dex = dexMaker.generate();
+
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        entries.store(manifestBytes, "Generated by dexmaker, version " + ProxyBuilder.VERSION);
+        try (DexJarWriter jarOut = new DexJarWriter(output)) {
+            jarOut.putDex(dex);
+            jarOut.putEntry(MANIFEST_NAME, manifestBytes.toByteArray());
+        }
+    }
+
+    /**
+     * Returns the name of the precompiled proxy class for {@code key}, or {@code null} if there is
+     * none or it was compiled against different classes.
+     */
+    static synchronized String lookup(String key, String checksum) throws IOException {
+        if (!checkedProperty) {
+            checkedProperty = true;
+            String path = System.getProperty(PROPERTY);
+            if (path != null) {
+                install(new File(path));
+            }
+        }
+        if (manifest == null) {
+            return null;
+        }
+        String entry = manifest.getProperty(key);
+        if (entry == null) {
+            return null;
+        }
+        int separator = entry.indexOf(' ');
+        if (!entry.substring(separator + 1).equals(checksum)) {
+            return null;
+        }
+        return entry.substring(0, separator);
+    }
+
+    /**
+     * Returns the class loader that loads the installed jar with {@code parent} as parent.
+     */
+    static synchronized ClassLoader getClassLoader(ClassLoader parent, File dexCache,
+            boolean trusted) throws IOException {
+        Map<ClassLoader, WeakReference<ClassLoader>> loaders
+                = trusted ? trustedClassLoaders : classLoaders;
+        WeakReference<ClassLoader> reference = loaders.get(parent);
+        ClassLoader classLoader = reference == null ? null : reference.get();
+        if (classLoader == null) {
+            File optimizedDirectory = dexCache != null ? dexCache : installedJar.getParentFile();
+            classLoader = createClassLoader(parent, copyToDexCache(optimizedDirectory),
+                    optimizedDirectory, trusted);
+            loaders.put(parent, new WeakReference<>(classLoader));
+        }
+        return classLoader;
+    }
+
+    /**
+     * Returns a read-only copy of the installed jar in {@code dexCache}, copying it if needed.
+     * The name of the copy contains the checksum of the jar, so a changed jar is copied again.
+     */
+    private static File copyToDexCache(File dexCache) throws IOException {
+        String name = installedJar.getName();
+        if (name.endsWith(".jar")) {
+            name = name.substring(0, name.length() - ".jar".length());
+        }
+        File copy = new File(dexCache, name + "-" + Long.toHexString(installedJarCrc) + ".jar");
+        if (copy.exists() && !copy.canWrite()) {
+            return copy;
+        }
+
+        // Copy to a temporary file first, so that no other process loads a partial copy.
+        File temp = File.createTempFile(name, ".tmp", dexCache);
+        try {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = new FileInputStream(installedJar);
+                    OutputStream out = new FileOutputStream(temp)) {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            }
+            temp.setReadOnly();
+            copy.delete();
+            if (!temp.renameTo(copy)) {
+                throw new IOException("Cannot copy " + installedJar + " to " + copy);
+            }
+        } finally {
+            temp.delete();
+        }
+        return copy;
+    }
+
+    private static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static ClassLoader createClassLoader(ClassLoader parent, File jar,
+            File optimizedDirectory, boolean trusted) {
+        try {
+            if (trusted) {
+                // Allows the proxies to call hidden APIs of the proxied classes, see
+                // DexMaker#markAsTrusted().
+                try {
+                    return (ClassLoader) Class.forName("dalvik.system.BaseDexClassLoader")
+                            .getConstructor(String.class, File.class, String.class,
+                                    ClassLoader.class, Boolean.TYPE)
+                            .newInstance(jar.getPath(), optimizedDirectory.getAbsoluteFile(),
+                                    null, parent, true);
+                } catch (InvocationTargetException e) {
+                    if (!(e.getCause() instanceof SecurityException)) {
+                        throw e;
+                    }
+                }
+            }
+            return (ClassLoader) Class.forName("dalvik.system.DexClassLoader")
+                    .getConstructor(String.class, String.class, String.class, ClassLoader.class)
+                    .newInstance(jar.getPath(), optimizedDirectory.getAbsolutePath(), null,
+                            parent);
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException("load() requires a Dalvik VM", e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
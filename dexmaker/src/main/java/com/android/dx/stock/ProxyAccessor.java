@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * Implemented by proxy classes generated by {@link ProxyBuilder}. Gives direct access to the
+ * {@link InvocationHandler} of a proxy instance.
+ * <p>
+ * This interface is an implementation detail of the generated code. Use
+ * {@link ProxyBuilder#getInvocationHandler(Object)} and
+ * {@link ProxyBuilder#setInvocationHandler(Object, InvocationHandler)} instead of calling it
+ * directly.
+ */
+public interface ProxyAccessor {
+    /**
+     * Returns the handler of this proxy, possibly null.
+     */
+    InvocationHandler $__getInvocationHandler();
+
+    /**
+     * Sets the handler of this proxy. A null handler routes all calls to the super methods.
+     */
+    void $__setInvocationHandler(InvocationHandler handler);
+}
@@ -18,6 +18,7 @@ package com.android.dx.stock;
 
 import com.android.dx.Code;
 import com.android.dx.Comparison;
+import com.android.dx.DexLoadingSession;
 import com.android.dx.DexMaker;
 import com.android.dx.FieldId;
 import com.android.dx.Label;
@@ -45,6 +46,7 @@ import java.util.Map;
 import java.util.Set;
 
 import static java.lang.reflect.Modifier.ABSTRACT;
+import static java.lang.reflect.Modifier.FINAL;
 import static java.lang.reflect.Modifier.PRIVATE;
 import static java.lang.reflect.Modifier.PUBLIC;
 import static java.lang.reflect.Modifier.STATIC;
@@ -122,10 +124,16 @@ import static java.lang.reflect.Modifier.STATIC;
 public final class ProxyBuilder<T> {
     // Version of ProxyBuilder. It should be updated if the implementation
     // of the generated proxy class changes.
-    public static final int VERSION = 1;
+    public static final int VERSION = 3;
 
     private static final String FIELD_NAME_HANDLER = "$__handler";
     private static final String FIELD_NAME_METHODS = "$__methodArray";
+    private static final String FIELD_NAME_METHOD_HANDLERS = "$__methodHandlers";
+    private static final String METHOD_NAME_DISPATCH = "$__dispatch";
+    private static final String FACTORY_SUFFIX = "_Factory";
+    private static final String FAST_SUFFIX = "_Fast";
+    private static final String METHOD_HANDLERS_SUFFIX = "_Table";
+    private static final String COMPACT_SUFFIX = "_Compact";
 
     /**
      * A cache of all proxy classes ever generated. At the time of writing,
@@ -135,6 +143,24 @@ public final class ProxyBuilder<T> {
     private static final Map<ProxiedClass<?>, Class<?>> generatedProxyClasses
             = Collections.synchronizedMap(new HashMap<ProxiedClass<?>, Class<?>>());
 
+    /**
+     * Locks held while generating a proxy class, by the key in {@link #generatedProxyClasses}.
+     */
+    private static final Map<ProxiedClass<?>, Object> generationLocks = new HashMap<>();
+
+    /**
+     * Factories for all proxy classes that implement {@link ProxyAccessor}, keyed by proxy class.
+     */
+    private static final Map<Class<?>, GeneratedFactory<?>> generatedFactories
+            = Collections.synchronizedMap(new HashMap<Class<?>, GeneratedFactory<?>>());
+
+    /**
+     * Access to the per-method handlers of proxy classes created with
+     * {@link #withMethodHandlers()}, keyed by proxy class. Looked up on first use.
+     */
+    private static final Map<Class<?>, MethodHandlersField> methodHandlersFields
+            = Collections.synchronizedMap(new HashMap<Class<?>, MethodHandlersField>());
+
     private final Class<T> baseClass;
     private ClassLoader parentClassLoader = ProxyBuilder.class.getClassLoader();
     private InvocationHandler handler;
@@ -143,8 +169,13 @@ public final class ProxyBuilder<T> {
     private Object[] constructorArgValues = new Object[0];
     private List<Class<?>> interfaces = new ArrayList<>();
     private Method[] methods;
+    private MethodFilter filter;
     private boolean sharedClassLoader;
     private boolean markTrusted;
+    private boolean fastInvocationHandler;
+    private boolean methodHandlers;
+    private boolean compactLayout;
+    private DexLoadingSession loadingSession;
 
     private ProxyBuilder(Class<T> clazz) {
         baseClass = clazz;
@@ -208,6 +239,22 @@ public final class ProxyBuilder<T> {
         return this;
     }
 
+    /**
+     * Only overrides the methods accepted by {@code filter}. Methods that are not accepted are
+     * inherited from the base class unchanged, so calling them does not go through the
+     * {@link InvocationHandler}. Abstract methods are always overridden, as the proxy class could
+     * not be instantiated otherwise.
+     * <p>
+     * The filter is called with the most derived declaration of each method while the methods to
+     * proxy are discovered. It is not applied to {@link #onlyMethods(Method[])}. Proxy classes
+     * are cached per filter instance, so the same instance should be reused for a class.
+     * Filtered proxies are never loaded from, or written to, {@link PrecompiledProxies}.
+     */
+    public ProxyBuilder<T> filter(MethodFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
     public ProxyBuilder<T> withSharedClassLoader() {
         this.sharedClassLoader = true;
         return this;
@@ -218,6 +265,54 @@ public final class ProxyBuilder<T> {
         return this;
     }
 
+    /**
+     * Loads the proxy class into the class loader of {@code session} instead of a new class
+     * loader. See {@link DexMaker#setLoadingSession(DexLoadingSession)}.
+     */
+    public ProxyBuilder<T> loadingSession(DexLoadingSession session) {
+        this.loadingSession = session;
+        return this;
+    }
+
+    /**
+     * Generates a proxy class that dispatches calls of methods with only primitive arguments and
+     * a primitive return type to {@link FastInvocationHandler#invokeJ} and
+     * {@link FastInvocationHandler#invokeD}, if the handler of the proxy implements
+     * {@link FastInvocationHandler}. This avoids boxing the arguments and the result.
+     * <p>
+     * Proxies of such a class still accept any {@link InvocationHandler}. The option is ignored if
+     * {@link FastInvocationHandler} is not visible to the class loader of the proxy class.
+     */
+    public ProxyBuilder<T> withFastInvocationHandler() {
+        this.fastInvocationHandler = true;
+        return this;
+    }
+
+    /**
+     * Generates a proxy class whose instances can have a separate {@link InvocationHandler} per
+     * method, see {@link #setMethodHandlers(Object, InvocationHandler[])}.
+     */
+    public ProxyBuilder<T> withMethodHandlers() {
+        this.methodHandlers = true;
+        return this;
+    }
+
+    /**
+     * Generates a smaller proxy class for classes with many methods. Each proxied method only
+     * boxes its arguments and calls a static dispatch method shared by all methods of the class.
+     * <p>
+     * Calls made while a proxy has no handler, e.g. from the constructor of the base class, or
+     * that have a {@code null} entry in {@link #setMethodHandlers(Object, InvocationHandler[])},
+     * call the super method through {@link #callSuper(Object, Method, Object...)} instead of
+     * directly. Methods that are dispatched to a {@link FastInvocationHandler} keep the regular
+     * layout. The option is ignored if {@link ProxyBuilder} is not visible to the class loader of
+     * the proxy class.
+     */
+    public ProxyBuilder<T> withCompactLayout() {
+        this.compactLayout = true;
+        return this;
+    }
+
     /**
      * Create a new instance of the class to proxy.
      *
@@ -234,6 +329,27 @@ public final class ProxyBuilder<T> {
         check(constructorArgTypes.length == constructorArgValues.length,
                 "constructorArgValues.length != constructorArgTypes.length");
         Class<? extends T> proxyClass = buildProxyClass();
+
+        @SuppressWarnings("unchecked")
+        GeneratedFactory<? extends T> factory =
+                (GeneratedFactory<? extends T>) generatedFactories.get(proxyClass);
+        if (factory != null) {
+            int constructorIndex = factory.indexOf(constructorArgTypes);
+            if (constructorIndex < 0) {
+                throw new IllegalArgumentException("No constructor for " + baseClass.getName()
+                        + " with parameter types " + Arrays.toString(constructorArgTypes));
+            }
+            try {
+                return factory.factory.newInstance(constructorIndex, constructorArgValues, handler);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                // Thrown when the base class constructor throws a declared exception.
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+
+        // The proxy class cannot see ProxyAccessor, fall back to reflection.
         Constructor<? extends T> constructor;
         try {
             constructor = proxyClass.getConstructor(constructorArgTypes);
@@ -276,21 +392,199 @@ public final class ProxyBuilder<T> {
 
         // try the cache to see if we've generated this one before
         // we only populate the map with matching types
-        ProxiedClass<T> cacheKey =
-                new ProxiedClass<>(baseClass, interfaces, requestedClassloader, sharedClassLoader);
+        ProxiedClass<T> cacheKey = new ProxiedClass<>(baseClass, interfaces,
+                requestedClassloader, filter, sharedClassLoader, fastInvocationHandler,
+                methodHandlers, compactLayout, loadingSession);
         @SuppressWarnings("unchecked")
         Class<? extends T> proxyClass = (Class) generatedProxyClasses.get(cacheKey);
         if (proxyClass != null) {
             return proxyClass; // cache hit!
         }
 
-        // the cache missed; generate the class
-        DexMaker dexMaker = new DexMaker();
-        String generatedName = getMethodNameForProxyOf(baseClass, interfaces);
+        // Only one thread generates each proxy class, the others wait for it. This happens e.g.
+        // when a class is built while it is still being prefetched.
+        Object lock = getGenerationLock(cacheKey);
+        try {
+            synchronized (lock) {
+                @SuppressWarnings("unchecked")
+                Class<? extends T> generated = (Class) generatedProxyClasses.get(cacheKey);
+                if (generated != null) {
+                    return generated;
+                }
+                return generateProxyClass(cacheKey, requestedClassloader);
+            }
+        } finally {
+            releaseGenerationLock(cacheKey, lock);
+        }
+    }
+
+    /**
+     * Returns a copy of this builder, so that changes to this builder do not race with the
+     * generation of the copy's proxy class on another thread.
+     */
+    ProxyBuilder<T> copy() {
+        ProxyBuilder<T> copy = new ProxyBuilder<>(baseClass);
+        copy.parentClassLoader = parentClassLoader;
+        copy.handler = handler;
+        copy.dexCache = dexCache;
+        copy.constructorArgTypes = constructorArgTypes;
+        copy.constructorArgValues = constructorArgValues;
+        copy.interfaces = new ArrayList<>(interfaces);
+        copy.methods = methods;
+        copy.filter = filter;
+        copy.sharedClassLoader = sharedClassLoader;
+        copy.markTrusted = markTrusted;
+        copy.fastInvocationHandler = fastInvocationHandler;
+        copy.methodHandlers = methodHandlers;
+        copy.compactLayout = compactLayout;
+        copy.loadingSession = loadingSession;
+        return copy;
+    }
+
+    private static Object getGenerationLock(ProxiedClass<?> cacheKey) {
+        synchronized (generationLocks) {
+            Object lock = generationLocks.get(cacheKey);
+            if (lock == null) {
+                lock = new Object();
+                generationLocks.put(cacheKey, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Removes the lock of a finished generation. Threads still waiting for the lock find the
+     * generated class in {@link #generatedProxyClasses}.
+     */
+    private static void releaseGenerationLock(ProxiedClass<?> cacheKey, Object lock) {
+        synchronized (generationLocks) {
+            if (generationLocks.get(cacheKey) == lock) {
+                generationLocks.remove(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * Whether {@link #markTrusted()} has an effect on this runtime, i.e. if it is Android P or
+     * newer.
+     */
+    static boolean isTrustedLoadingSupported() {
+        try {
+            Class.forName("dalvik.system.BaseDexClassLoader").getConstructor(String.class,
+                    File.class, String.class, ClassLoader.class, Boolean.TYPE);
+            return true;
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private Class<? extends T> generateProxyClass(ProxiedClass<T> cacheKey,
+            ClassLoader requestedClassloader) throws IOException {
+        // The generated class can only implement ProxyAccessor if it can resolve it through the
+        // class loader it is going to be loaded by. This is not the case e.g. when sharing the
+        // boot class loader of a framework class.
+        boolean implementsAccessor = isVisible(ProxyAccessor.class, requestedClassloader)
+                && isVisible(ProxyFactory.class, requestedClassloader);
+        boolean fastDispatch = fastInvocationHandler
+                && isVisible(FastInvocationHandler.class, requestedClassloader);
+        boolean compact = compactLayout && isVisible(ProxyBuilder.class, requestedClassloader);
+
+        Method[] methodsToProxy = getSortedMethodsToProxy();
+        Constructor<T>[] constructors = getConstructorsToOverwrite(baseClass);
+
+        // Precompiled proxies always implement ProxyAccessor and are loaded by their own class
+        // loader. Their key does not identify a filter.
+        ClassLoader classLoader = null;
+        String generatedName = null;
+        if (!sharedClassLoader && implementsAccessor && filter == null) {
+            generatedName = PrecompiledProxies.lookup(
+                    getPrecompiledKey(fastDispatch, methodHandlers, compact),
+                    getPrecompiledChecksum(methodsToProxy, constructors));
+            if (generatedName != null) {
+                classLoader = PrecompiledProxies.getClassLoader(parentClassLoader, dexCache,
+                        markTrusted);
+            }
+        }
+
+        if (classLoader == null) {
+            // the cache missed; generate the class
+            DexMaker dexMaker = new DexMaker();
+            // Differently filtered proxies of a class may share a class loader.
+            generatedName = getMethodNameForProxyOf(baseClass, interfaces, fastDispatch,
+                    methodHandlers, compact,
+                    filter != null ? getMethodsHash(methodsToProxy) : null);
+            declareProxyClass(dexMaker, generatedName, methodsToProxy, constructors,
+                    implementsAccessor, fastDispatch, compact);
+            if (sharedClassLoader) {
+                dexMaker.setSharedClassLoader(requestedClassloader);
+            }
+            if (markTrusted) {
+                // The proxied class might have blacklisted methods. Blacklisting methods (and
+                // fields) is a new feature of Android P:
+                //
+                // https://android-developers.googleblog.com/2018/02/
+                // improving-stability-by-reducing-usage.html
+                //
+                // The newly generated class might not be allowed to call methods of the proxied
+                // class if it is not trusted. As it is not clear which classes have blacklisted
+                // methods, mark all generated classes as trusted.
+                dexMaker.markAsTrusted();
+            }
+            dexMaker.setLoadingSession(loadingSession);
+            if (sharedClassLoader) {
+                classLoader = dexMaker.generateAndLoad(null, dexCache);
+            } else {
+                classLoader = dexMaker.generateAndLoad(parentClassLoader, dexCache);
+            }
+        }
+        Class<? extends T> proxyClass;
+        try {
+            proxyClass = loadClass(classLoader, generatedName);
+        } catch (IllegalAccessError e) {
+            // Thrown when the base class is not accessible.
+            throw new UnsupportedOperationException(
+                    "cannot proxy inaccessible class " + baseClass, e);
+        } catch (ClassNotFoundException e) {
+            // Should not be thrown, we're sure to have generated this class.
+            throw new AssertionError(e);
+        }
+        setMethodsStaticField(proxyClass, methodsToProxy);
+        if (implementsAccessor) {
+            generatedFactories.put(proxyClass, new GeneratedFactory<>(
+                    loadFactory(classLoader, generatedName + FACTORY_SUFFIX), constructors));
+        }
+        generatedProxyClasses.put(cacheKey, proxyClass);
+        return proxyClass;
+    }
+
+    /**
+     * Declares the proxy class, and its factory if it implements {@link ProxyAccessor}, in
+     * {@code dexMaker}.
+     */
+    private void declareProxyClass(DexMaker dexMaker, String generatedName,
+            Method[] methodsToProxy, Constructor<T>[] constructors, boolean implementsAccessor,
+            boolean fastDispatch, boolean compact) {
         TypeId<? extends T> generatedType = TypeId.get("L" + generatedName + ";");
         TypeId<T> superType = TypeId.get(baseClass);
-        generateConstructorsAndFields(dexMaker, generatedType, superType, baseClass);
+        generateConstructorsAndFields(dexMaker, generatedType, superType, constructors,
+                methodHandlers);
+
+        TypeId<?>[] interfaceTypes = getInterfacesAsTypeIds();
+        if (implementsAccessor) {
+            generateAccessorMethods(dexMaker, generatedType);
+            generateFactory(dexMaker, generatedType, generatedName + FACTORY_SUFFIX,
+                    constructors);
+            interfaceTypes = Arrays.copyOf(interfaceTypes, interfaceTypes.length + 1);
+            interfaceTypes[interfaceTypes.length - 1] = TypeId.get(ProxyAccessor.class);
+        }
+
+        generateCodeForAllMethods(dexMaker, generatedType, methodsToProxy, superType,
+                fastDispatch, methodHandlers, compact);
+        dexMaker.declare(generatedType, generatedName + ".generated", PUBLIC, superType,
+                interfaceTypes);
+    }
 
+    private Method[] getSortedMethodsToProxy() {
         Method[] methodsToProxy;
         if (methods == null) {
             methodsToProxy = getMethodsToProxyRecursive();
@@ -303,52 +597,93 @@ public final class ProxyBuilder<T> {
         // We use the same parameters to sort as used in {@link MethodId#hashCode}. This is needed
         // as e.g. making a method "public" instead of "protected" should not change the id's of the
         // methods. If the id's would change the classes loaded from the cache would be incorrect.
-        Arrays.sort(methodsToProxy, new Comparator<Method>() {
-            @Override
-            public int compare(Method method1, Method method2) {
-                String m1Signature = method1.getDeclaringClass() + method1.getName() + Arrays.toString(method1.getParameterTypes()) + method1.getReturnType();
-                String m2Signature = method2.getDeclaringClass() + method2.getName() + Arrays.toString(method2.getParameterTypes()) + method2.getReturnType();
+        ClassMetadataCache.sort(methodsToProxy);
+        return methodsToProxy;
+    }
 
-                return m1Signature.compareTo(m2Signature);
-            }
-        });
+    /**
+     * Declares the proxy class in {@code dexMaker} to be loaded by {@link PrecompiledProxies}
+     * and returns its checksum.
+     */
+    String declarePrecompiledProxyClass(DexMaker dexMaker, String generatedName) {
+        check(!sharedClassLoader, "cannot precompile proxies with a shared class loader");
+        Method[] methodsToProxy = getSortedMethodsToProxy();
+        Constructor<T>[] constructors = getConstructorsToOverwrite(baseClass);
+        declareProxyClass(dexMaker, generatedName, methodsToProxy, constructors, true,
+                fastInvocationHandler, compactLayout);
+        return getPrecompiledChecksum(methodsToProxy, constructors);
+    }
 
-        generateCodeForAllMethods(dexMaker, generatedType, methodsToProxy, superType);
-        dexMaker.declare(generatedType, generatedName + ".generated", PUBLIC, superType, getInterfacesAsTypeIds());
-        if (sharedClassLoader) {
-            dexMaker.setSharedClassLoader(requestedClassloader);
-        }
-        if (markTrusted) {
-            // The proxied class might have blacklisted methods. Blacklisting methods (and fields)
-            // is a new feature of Android P:
-            //
-            // https://android-developers.googleblog.com/2018/02/
-            // improving-stability-by-reducing-usage.html
-            //
-            // The newly generated class might not be allowed to call methods of the proxied class
-            // if it is not trusted. As it is not clear which classes have blacklisted methods, mark
-            // all generated classes as trusted.
-            dexMaker.markAsTrusted();
-        }
-        ClassLoader classLoader;
-        if (sharedClassLoader) {
-            classLoader = dexMaker.generateAndLoad(null, dexCache);
-        } else {
-            classLoader = dexMaker.generateAndLoad(parentClassLoader, dexCache);
+    String getPrecompiledKey() {
+        check(!sharedClassLoader, "cannot precompile proxies with a shared class loader");
+        check(filter == null, "cannot precompile filtered proxies");
+        return getPrecompiledKey(fastInvocationHandler, methodHandlers, compactLayout);
+    }
+
+    Class<T> getBaseClass() {
+        return baseClass;
+    }
+
+    /**
+     * Returns a key that identifies the proxy class across processes. Unlike {@link ProxiedClass}
+     * it cannot contain the class loader.
+     */
+    private String getPrecompiledKey(boolean fastDispatch, boolean methodHandlers,
+            boolean compact) {
+        StringBuilder key = new StringBuilder(baseClass.getName());
+        for (Class<?> implemented : interfaces) {
+            key.append(',').append(implemented.getName());
+        }
+        if (fastDispatch) {
+            key.append(FAST_SUFFIX);
         }
+        if (methodHandlers) {
+            key.append(METHOD_HANDLERS_SUFFIX);
+        }
+        if (compact) {
+            key.append(COMPACT_SUFFIX);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns a checksum of everything a precompiled proxy class depends on. If the proxied
+     * classes changed after the proxy was compiled, the checksum does not match any more.
+     */
+    private static String getPrecompiledChecksum(Method[] methodsToProxy,
+            Constructor<?>[] constructors) {
+        int checksum = VERSION;
+        for (Method method : methodsToProxy) {
+            checksum = 31 * checksum + method.getModifiers();
+            checksum = 31 * checksum + ClassMetadataCache.getSortKey(method).hashCode();
+        }
+        for (Constructor<?> constructor : constructors) {
+            checksum = 31 * checksum + constructor.getModifiers();
+            checksum = 31 * checksum
+                    + Arrays.toString(constructor.getParameterTypes()).hashCode();
+        }
+        return Integer.toHexString(checksum);
+    }
+
+    private static boolean isVisible(Class<?> type, ClassLoader classLoader) {
         try {
-            proxyClass = loadClass(classLoader, generatedName);
-        } catch (IllegalAccessError e) {
-            // Thrown when the base class is not accessible.
-            throw new UnsupportedOperationException(
-                    "cannot proxy inaccessible class " + baseClass, e);
+            return Class.forName(type.getName(), false, classLoader) == type;
         } catch (ClassNotFoundException e) {
-            // Should not be thrown, we're sure to have generated this class.
+            return false;
+        }
+    }
+
+    // The type cast is safe: the generated factory creates instances of the generated type.
+    @SuppressWarnings("unchecked")
+    private ProxyFactory<? extends T> loadFactory(ClassLoader classLoader, String factoryName) {
+        try {
+            return (ProxyFactory<? extends T>) classLoader.loadClass(factoryName)
+                    .getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            // Should not be thrown, we're sure to have generated this class in the same dex file
+            // as the proxy class.
             throw new AssertionError(e);
         }
-        setMethodsStaticField(proxyClass, methodsToProxy);
-        generatedProxyClasses.put(cacheKey, proxyClass);
-        return proxyClass;
     }
 
     // The type cast is safe: the generated type will extend the base class type.
@@ -386,12 +721,115 @@ public final class ProxyBuilder<T> {
         }
     }
 
+    /**
+     * Returns the methods dispatched by a proxy class, indexed by the {@code methodIndex} passed
+     * to {@link FastInvocationHandler}.
+     *
+     * @throws IllegalArgumentException if the class supplied is not a proxy class created by this
+     *     class.
+     */
+    public static Method[] getProxiedMethods(Class<?> proxyClass) {
+        return getMethodsStaticField(proxyClass).clone();
+    }
+
+    private static Method[] getMethodsStaticField(Class<?> proxyClass) {
+        try {
+            Field methodArrayField = proxyClass.getDeclaredField(FIELD_NAME_METHODS);
+            methodArrayField.setAccessible(true);
+            return (Method[]) methodArrayField.get(null);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Not a valid proxy class", e);
+        } catch (IllegalAccessException e) {
+            // Should not be thrown, we just set the field to accessible.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the per-method handlers of a proxy, or {@code null} if none are set.
+     *
+     * @throws IllegalArgumentException if the object supplied is not a proxy created by this
+     *     class with {@link #withMethodHandlers()}.
+     */
+    public static InvocationHandler[] getMethodHandlers(Object instance) {
+        try {
+            return (InvocationHandler[]) getMethodHandlersField(instance.getClass()).field
+                    .get(instance);
+        } catch (IllegalAccessException e) {
+            // Should not be thrown, the field is accessible.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Sets the per-method handlers of a proxy created with {@link #withMethodHandlers()}.
+     * <p>
+     * The handler for a method is at the same index as the method in
+     * {@link #getProxiedMethods(Class)}. While handlers are set, the handler set by
+     * {@link #setInvocationHandler(Object, InvocationHandler)} is not used. A {@code null} entry
+     * calls the super method directly, as if the proxy had no handler. Passing {@code null}
+     * instead of an array goes back to the single handler.
+     * <p>
+     * The array is not copied. Entries can be replaced while the proxy is in use, several proxies
+     * can share an array.
+     *
+     * @throws IllegalArgumentException if the object supplied is not a proxy created by this
+     *     class with {@link #withMethodHandlers()}, or if the array does not have one entry per
+     *     proxied method.
+     */
+    public static void setMethodHandlers(Object instance, InvocationHandler[] handlers) {
+        MethodHandlersField methodHandlersField = getMethodHandlersField(instance.getClass());
+        if (handlers != null) {
+            check(handlers.length == methodHandlersField.methodCount,
+                    "handlers.length != " + methodHandlersField.methodCount + " proxied methods");
+        }
+        try {
+            methodHandlersField.field.set(instance, handlers);
+        } catch (IllegalAccessException e) {
+            // Should not be thrown, the field is accessible.
+            throw new AssertionError(e);
+        }
+    }
+
+    private static MethodHandlersField getMethodHandlersField(Class<?> proxyClass) {
+        MethodHandlersField methodHandlersField = methodHandlersFields.get(proxyClass);
+        if (methodHandlersField == null) {
+            Field field;
+            try {
+                field = proxyClass.getDeclaredField(FIELD_NAME_METHOD_HANDLERS);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("Not a proxy with method handlers", e);
+            }
+            field.setAccessible(true);
+            methodHandlersField = new MethodHandlersField(field,
+                    getMethodsStaticField(proxyClass).length);
+            methodHandlersFields.put(proxyClass, methodHandlersField);
+        }
+        return methodHandlersField;
+    }
+
+    /**
+     * The {@code $__methodHandlers} field of a proxy class and the number of methods it proxies.
+     */
+    private static class MethodHandlersField {
+        final Field field;
+        final int methodCount;
+
+        MethodHandlersField(Field field, int methodCount) {
+            this.field = field;
+            this.methodCount = methodCount;
+        }
+    }
+
     /**
      * Returns the proxy's {@link InvocationHandler}.
      *
      * @throws IllegalArgumentException if the object supplied is not a proxy created by this class.
      */
     public static InvocationHandler getInvocationHandler(Object instance) {
+        if (instance instanceof ProxyAccessor) {
+            return ((ProxyAccessor) instance).$__getInvocationHandler();
+        }
         try {
             Field field = instance.getClass().getDeclaredField(FIELD_NAME_HANDLER);
             field.setAccessible(true);
@@ -417,6 +855,10 @@ public final class ProxyBuilder<T> {
      * @throws IllegalArgumentException if the object supplied is not a proxy created by this class.
      */
     public static void setInvocationHandler(Object instance, InvocationHandler handler) {
+        if (instance instanceof ProxyAccessor) {
+            ((ProxyAccessor) instance).$__setInvocationHandler(handler);
+            return;
+        }
         try {
             Field handlerField = instance.getClass().getDeclaredField(FIELD_NAME_HANDLER);
             handlerField.setAccessible(true);
@@ -429,14 +871,18 @@ public final class ProxyBuilder<T> {
         }
     }
 
-    // TODO: test coverage for isProxyClass
-
     /**
      * Returns true if {@code c} is a proxy class created by this builder.
      */
     @SuppressWarnings("ReturnValueIgnored")
     public static boolean isProxyClass(Class<?> c) {
-        // TODO: use a marker interface instead?
+        if (ProxyAccessor.class.isAssignableFrom(c)) {
+            return true;
+        }
+        // Proxy classes that could not implement ProxyAccessor still carry the handler field.
+        if (!c.getName().endsWith("_Proxy")) {
+            return false;
+        }
         try {
             c.getDeclaredField(FIELD_NAME_HANDLER);
             return true;
@@ -476,8 +922,12 @@ public final class ProxyBuilder<T> {
     }
 
     private static <T, G extends T> void generateCodeForAllMethods(DexMaker dexMaker,
-            TypeId<G> generatedType, Method[] methodsToProxy, TypeId<T> superclassType) {
+            TypeId<G> generatedType, Method[] methodsToProxy, TypeId<T> superclassType,
+            boolean fastDispatch, boolean methodHandlers, boolean compact) {
         TypeId<InvocationHandler> handlerType = TypeId.get(InvocationHandler.class);
+        TypeId<InvocationHandler[]> handlerArrayType = TypeId.get(InvocationHandler[].class);
+        FieldId<G, InvocationHandler[]> handlerArrayField =
+                generatedType.getField(handlerArrayType, FIELD_NAME_METHOD_HANDLERS);
         TypeId<Method[]> methodArrayType = TypeId.get(Method[].class);
         FieldId<G, InvocationHandler> handlerField =
                 generatedType.getField(handlerType, FIELD_NAME_HANDLER);
@@ -487,6 +937,11 @@ public final class ProxyBuilder<T> {
         TypeId<Object[]> objectArrayType = TypeId.get(Object[].class);
         MethodId<InvocationHandler, Object> methodInvoke = handlerType.getMethod(TypeId.OBJECT,
                 "invoke", TypeId.OBJECT, methodType, objectArrayType);
+        MethodId<G, Object> dispatchMethod = generatedType.getMethod(TypeId.OBJECT,
+                METHOD_NAME_DISPATCH, generatedType, TypeId.INT, objectArrayType);
+        if (compact) {
+            generateDispatchMethod(dexMaker, generatedType, dispatchMethod, methodHandlers);
+        }
         for (int m = 0; m < methodsToProxy.length; ++m) {
             /*
              * If the 5th method on the superclass Example that can be overridden were to look like
@@ -508,6 +963,33 @@ public final class ProxyBuilder<T> {
              *                 new Object[] { param0, Integer.valueOf(param1) });
              *     }
              *
+             *     // if doSomething only takes primitives, e.g. doSomething(int param0), and the
+             *     // proxy class is built with withFastInvocationHandler()
+             *     public int doSomething(int param0) {
+             *         if ($__handler == null) {
+             *             return super.doSomething(param0);
+             *         }
+             *         if ($__handler instanceof FastInvocationHandler) {
+             *             return (int) ((FastInvocationHandler) $__handler).invokeJ(this, 4,
+             *                     param0, 0L, 0L);
+             *         }
+             *         return __handler.invoke(this, __methodArray[4],
+             *                 new Object[] { Integer.valueOf(param0) });
+             *     }
+             *
+             *     // if the proxy class is built with withMethodHandlers(), the handler is chosen
+             *     // like this instead
+             *     public int doSomething(Bar param0, int param1) {
+             *         InvocationHandler handler = $__handler;
+             *         if ($__methodHandlers != null) {
+             *             handler = $__methodHandlers[4];
+             *         }
+             *         if (handler == null) {
+             *             return super.doSomething(param0, param1);
+             *         }
+             *         ...
+             *     }
+             *
              *     // if doSomething is abstract
              *     public int doSomething(Bar param0, int param1) {
              *         if ($__handler == null) {
@@ -530,6 +1012,11 @@ public final class ProxyBuilder<T> {
             TypeId<AbstractMethodError> abstractMethodErrorClass =
                     TypeId.get(AbstractMethodError.class);
             Code code = dexMaker.declare(methodId, PUBLIC);
+            if (compact && !(fastDispatch && canDispatchFast(method))) {
+                generateCodeForCompactMethod(code, generatedType, method, m, dispatchMethod);
+                generateCallsSuperMethod(dexMaker, generatedType, superclassType, method);
+                continue;
+            }
             Local<G> localThis = code.getThis(generatedType);
             Local<InvocationHandler> localHandler = code.newLocal(handlerType);
             Local<Object> invokeResult = code.newLocal(TypeId.OBJECT);
@@ -547,6 +1034,14 @@ public final class ProxyBuilder<T> {
                 aBoxedResult = code.newLocal(TypeId.get(aBoxedClass));
             }
             Local<InvocationHandler> nullHandler = code.newLocal(handlerType);
+            Local<InvocationHandler[]> handlerArray = null;
+            if (methodHandlers) {
+                handlerArray = code.newLocal(handlerArrayType);
+            }
+            FastInvokeLocals fastLocals = null;
+            if (fastDispatch && canDispatchFast(method)) {
+                fastLocals = new FastInvokeLocals(code);
+            }
 
             Local<?>[] superArgs2 = null;
             Local<?> superResult2 = null;
@@ -563,19 +1058,32 @@ public final class ProxyBuilder<T> {
             }
 
             code.loadConstant(methodIndex, m);
-            code.sget(allMethods, methodArray);
-            code.aget(thisMethod, methodArray, methodIndex);
-            code.loadConstant(argsLength, argTypes.length);
-            code.newArray(args, argsLength);
             code.iget(handlerField, localHandler, localThis);
+            if (methodHandlers) {
+                // if ($__methodHandlers != null) handler = $__methodHandlers[methodIndex]
+                Label noMethodHandlers = new Label();
+                code.iget(handlerArrayField, handlerArray, localThis);
+                code.compareZ(Comparison.EQ, noMethodHandlers, handlerArray);
+                code.aget(localHandler, handlerArray, methodIndex);
+                code.mark(noMethodHandlers);
+            }
 
             // if (proxy == null)
             code.loadConstant(nullHandler, null);
             Label handlerNullCase = new Label();
             code.compare(Comparison.EQ, handlerNullCase, nullHandler, localHandler);
 
+            if (fastLocals != null) {
+                generateCodeForFastInvoke(code, method, localThis, localHandler, methodIndex,
+                        resultHolder, fastLocals);
+            }
+
             // This code is what we execute when we have a valid proxy: delegate to invocation
             // handler.
+            code.sget(allMethods, methodArray);
+            code.aget(thisMethod, methodArray, methodIndex);
+            code.loadConstant(argsLength, argTypes.length);
+            code.newArray(args, argsLength);
             for (int p = 0; p < argTypes.length; ++p) {
                 code.loadConstant(intValue, p);
                 Local<?> parameter = code.getParameter(p, argTypes[p]);
@@ -608,41 +1116,252 @@ public final class ProxyBuilder<T> {
                         abstractMethodError);
             }
 
-            /*
-             * And to allow calling the original super method, the following is also generated:
-             *
-             *     public String super$doSomething$java_lang_String(Bar param0, int param1) {
-             *          int result = super.doSomething(param0, param1);
-             *          return result;
-             *     }
-             */
-            MethodId<G, ?> callsSuperMethod = generatedType.getMethod(
-                    resultType, superMethodName(method), argTypes);
-            Code superCode = dexMaker.declare(callsSuperMethod, PUBLIC);
-            if ((method.getModifiers() & ABSTRACT) == 0) {
-                Local<G> superThis = superCode.getThis(generatedType);
-                Local<?>[] superArgs = new Local<?>[argClasses.length];
-                for (int i = 0; i < superArgs.length; ++i) {
-                    superArgs[i] = superCode.getParameter(i, argTypes[i]);
-                }
-                if (void.class.equals(returnType)) {
-                    superCode.invokeSuper(superMethod, null, superThis, superArgs);
-                    superCode.returnVoid();
-                } else {
-                    Local<?> superResult = superCode.newLocal(resultType);
-                    invokeSuper(superMethod, superCode, superThis, superArgs, superResult);
-                    superCode.returnValue(superResult);
-                }
+            generateCallsSuperMethod(dexMaker, generatedType, superclassType, method);
+        }
+    }
+
+    /**
+     * Generates the static method the methods of a compact proxy dispatch to:
+     *
+     * <pre>
+     *     private static Object $__dispatch(Example_Proxy proxy, int methodIndex, Object[] args) {
+     *         InvocationHandler handler = proxy.$__handler;
+     *         // if the proxy class is built with withMethodHandlers()
+     *         if (proxy.$__methodHandlers != null) {
+     *             handler = proxy.$__methodHandlers[methodIndex];
+     *         }
+     *         Method method = $__methodArray[methodIndex];
+     *         if (handler == null) {
+     *             return ProxyBuilder.callSuper(proxy, method, args);
+     *         }
+     *         return handler.invoke(proxy, method, args);
+     *     }
+     * </pre>
+     */
+    private static <G> void generateDispatchMethod(DexMaker dexMaker, TypeId<G> generatedType,
+            MethodId<G, Object> dispatchMethod, boolean methodHandlers) {
+        TypeId<InvocationHandler> handlerType = TypeId.get(InvocationHandler.class);
+        TypeId<InvocationHandler[]> handlerArrayType = TypeId.get(InvocationHandler[].class);
+        TypeId<Method> methodType = TypeId.get(Method.class);
+        TypeId<Method[]> methodArrayType = TypeId.get(Method[].class);
+        TypeId<Object[]> objectArrayType = TypeId.get(Object[].class);
+        MethodId<InvocationHandler, Object> methodInvoke = handlerType.getMethod(TypeId.OBJECT,
+                "invoke", TypeId.OBJECT, methodType, objectArrayType);
+        TypeId<ProxyBuilder<?>> proxyBuilderType =
+                TypeId.get("L" + ProxyBuilder.class.getName().replace('.', '/') + ";");
+        MethodId<ProxyBuilder<?>, Object> callSuper = proxyBuilderType.getMethod(TypeId.OBJECT,
+                "callSuper", TypeId.OBJECT, methodType, objectArrayType);
+
+        Code code = dexMaker.declare(dispatchMethod, PRIVATE | STATIC);
+        Local<G> proxy = code.getParameter(0, generatedType);
+        Local<Integer> methodIndex = code.getParameter(1, TypeId.INT);
+        Local<Object[]> args = code.getParameter(2, objectArrayType);
+        Local<InvocationHandler> handler = code.newLocal(handlerType);
+        Local<InvocationHandler[]> handlerArray = code.newLocal(handlerArrayType);
+        Local<Method[]> methodArray = code.newLocal(methodArrayType);
+        Local<Method> method = code.newLocal(methodType);
+        Local<Object> result = code.newLocal(TypeId.OBJECT);
+
+        code.iget(generatedType.getField(handlerType, FIELD_NAME_HANDLER), handler, proxy);
+        if (methodHandlers) {
+            Label noMethodHandlers = new Label();
+            code.iget(generatedType.getField(handlerArrayType, FIELD_NAME_METHOD_HANDLERS),
+                    handlerArray, proxy);
+            code.compareZ(Comparison.EQ, noMethodHandlers, handlerArray);
+            code.aget(handler, handlerArray, methodIndex);
+            code.mark(noMethodHandlers);
+        }
+        code.sget(generatedType.getField(methodArrayType, FIELD_NAME_METHODS), methodArray);
+        code.aget(method, methodArray, methodIndex);
+        Label handlerNullCase = new Label();
+        code.compareZ(Comparison.EQ, handlerNullCase, handler);
+        code.invokeInterface(methodInvoke, result, handler, proxy, method, args);
+        code.returnValue(result);
+
+        code.mark(handlerNullCase);
+        code.invokeStatic(callSuper, result, proxy, method, args);
+        code.returnValue(result);
+    }
+
+    /**
+     * Generates a method of a compact proxy:
+     *
+     * <pre>
+     *     public int doSomething(Bar param0, int param1) {
+     *         return (Integer) $__dispatch(this, 4,
+     *                 new Object[] { param0, Integer.valueOf(param1) });
+     *     }
+     * </pre>
+     */
+    private static <G> void generateCodeForCompactMethod(Code code, TypeId<G> generatedType,
+            Method method, int m, MethodId<G, Object> dispatchMethod) {
+        Class<?>[] argClasses = method.getParameterTypes();
+        Class<?> returnType = method.getReturnType();
+        Local<G> localThis = code.getThis(generatedType);
+        Local<Integer> methodIndex = code.newLocal(TypeId.INT);
+        Local<Integer> intValue = code.newLocal(TypeId.INT);
+        Local<Object[]> args = code.newLocal(TypeId.get(Object[].class));
+        Local<Integer> argsLength = code.newLocal(TypeId.INT);
+        Local<Object> temp = code.newLocal(TypeId.OBJECT);
+        Local<Object> invokeResult = code.newLocal(TypeId.OBJECT);
+        Local<?> resultHolder = code.newLocal(TypeId.get(returnType));
+        Class<?> aBoxedClass = PRIMITIVE_TO_BOXED.get(returnType);
+        Local<?> aBoxedResult = null;
+        if (aBoxedClass != null) {
+            aBoxedResult = code.newLocal(TypeId.get(aBoxedClass));
+        }
+
+        code.loadConstant(methodIndex, m);
+        code.loadConstant(argsLength, argClasses.length);
+        code.newArray(args, argsLength);
+        for (int p = 0; p < argClasses.length; ++p) {
+            code.loadConstant(intValue, p);
+            Local<?> parameter = code.getParameter(p, TypeId.get(argClasses[p]));
+            code.aput(args, intValue, boxIfRequired(code, parameter, temp));
+        }
+        code.invokeStatic(dispatchMethod, invokeResult, localThis, methodIndex, args);
+        generateCodeForReturnStatement(code, returnType, invokeResult, resultHolder,
+                aBoxedResult);
+    }
+
+    /**
+     * Generates a method that allows calling the original super method:
+     *
+     * <pre>
+     *     public String super$doSomething$java_lang_String(Bar param0, int param1) {
+     *          int result = super.doSomething(param0, param1);
+     *          return result;
+     *     }
+     * </pre>
+     */
+    private static <T, G extends T> void generateCallsSuperMethod(DexMaker dexMaker,
+            TypeId<G> generatedType, TypeId<T> superclassType, Method method) {
+        TypeId<?>[] argTypes = classArrayToTypeArray(method.getParameterTypes());
+        Class<?> returnType = method.getReturnType();
+        TypeId<?> resultType = TypeId.get(returnType);
+        MethodId<G, ?> callsSuperMethod = generatedType.getMethod(
+                resultType, superMethodName(method), argTypes);
+        Code superCode = dexMaker.declare(callsSuperMethod, PUBLIC);
+        if ((method.getModifiers() & ABSTRACT) == 0) {
+            MethodId<T, ?> superMethod =
+                    superclassType.getMethod(resultType, method.getName(), argTypes);
+            Local<G> superThis = superCode.getThis(generatedType);
+            Local<?>[] superArgs = new Local<?>[argTypes.length];
+            for (int i = 0; i < superArgs.length; ++i) {
+                superArgs[i] = superCode.getParameter(i, argTypes[i]);
+            }
+            if (void.class.equals(returnType)) {
+                superCode.invokeSuper(superMethod, null, superThis, superArgs);
+                superCode.returnVoid();
             } else {
-                Local<String> superAbstractMethodErrorMessage = superCode.newLocal(TypeId.STRING);
-                Local<AbstractMethodError> superAbstractMethodError = superCode.newLocal
-                        (abstractMethodErrorClass);
-                throwAbstractMethodError(superCode, method, superAbstractMethodErrorMessage,
-                        superAbstractMethodError);
+                Local<?> superResult = superCode.newLocal(resultType);
+                invokeSuper(superMethod, superCode, superThis, superArgs, superResult);
+                superCode.returnValue(superResult);
             }
+        } else {
+            Local<String> superAbstractMethodErrorMessage = superCode.newLocal(TypeId.STRING);
+            Local<AbstractMethodError> superAbstractMethodError =
+                    superCode.newLocal(TypeId.get(AbstractMethodError.class));
+            throwAbstractMethodError(superCode, method, superAbstractMethodErrorMessage,
+                    superAbstractMethodError);
         }
     }
 
+    /**
+     * Returns true if calls of {@code method} can be dispatched to a {@link FastInvocationHandler}.
+     */
+    private static boolean canDispatchFast(Method method) {
+        if (!method.getReturnType().isPrimitive()) {
+            return false;
+        }
+        Class<?>[] argClasses = method.getParameterTypes();
+        if (argClasses.length > FastInvocationHandler.MAX_ARGUMENTS) {
+            return false;
+        }
+        for (Class<?> argClass : argClasses) {
+            if (!argClass.isPrimitive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates the dispatch to a {@link FastInvocationHandler}. If the handler does not implement
+     * it, execution continues after the generated code.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void generateCodeForFastInvoke(Code code, Method method, Local<?> localThis,
+            Local<InvocationHandler> localHandler, Local<Integer> methodIndex,
+            Local resultHolder, FastInvokeLocals locals) {
+        TypeId<FastInvocationHandler> fastHandlerType = TypeId.get(FastInvocationHandler.class);
+        Label notFastHandler = new Label();
+        code.instanceOfType(locals.isFastHandler, localHandler, fastHandlerType);
+        code.compareZ(Comparison.EQ, notFastHandler, locals.isFastHandler);
+        code.cast(locals.fastHandler, localHandler);
+
+        Class<?>[] argClasses = method.getParameterTypes();
+        for (int p = 0; p < locals.args.size(); p++) {
+            Local<Long> arg = locals.args.get(p);
+            if (p >= argClasses.length) {
+                code.loadConstant(arg, 0L);
+            } else if (argClasses[p] == long.class) {
+                code.move(arg, code.getParameter(p, TypeId.LONG));
+            } else if (argClasses[p] == double.class) {
+                code.invokeStatic(DOUBLE_TO_RAW_LONG_BITS, arg,
+                        code.getParameter(p, TypeId.DOUBLE));
+            } else if (argClasses[p] == float.class) {
+                code.invokeStatic(FLOAT_TO_RAW_INT_BITS, locals.intValue,
+                        code.getParameter(p, TypeId.FLOAT));
+                code.cast(arg, locals.intValue);
+            } else {
+                code.cast(arg, code.getParameter(p, TypeId.get(argClasses[p])));
+            }
+        }
+
+        Class<?> returnType = method.getReturnType();
+        if (returnType == float.class || returnType == double.class) {
+            Local<Double> result = returnType == double.class ? resultHolder : locals.doubleResult;
+            code.invokeInterface(fastHandlerType.getMethod(TypeId.DOUBLE, "invokeD",
+                    FAST_INVOKE_PARAMETERS), result, locals.fastHandler, localThis, methodIndex,
+                    locals.args.get(0), locals.args.get(1), locals.args.get(2));
+            if (returnType == float.class) {
+                code.cast(resultHolder, result);
+            }
+            code.returnValue(resultHolder);
+        } else {
+            Local<Long> result = returnType == long.class ? resultHolder : locals.longResult;
+            code.invokeInterface(fastHandlerType.getMethod(TypeId.LONG, "invokeJ",
+                    FAST_INVOKE_PARAMETERS), returnType == void.class ? null : result,
+                    locals.fastHandler, localThis, methodIndex,
+                    locals.args.get(0), locals.args.get(1), locals.args.get(2));
+            if (returnType == void.class) {
+                code.returnVoid();
+            } else if (returnType == boolean.class) {
+                // Converting an int to a boolean is not a valid cast, compare against zero.
+                Label isTrue = new Label();
+                code.loadConstant(locals.zero, 0L);
+                code.compareLongs(locals.intValue, result, locals.zero);
+                code.compareZ(Comparison.NE, isTrue, locals.intValue);
+                code.loadConstant(resultHolder, false);
+                code.returnValue(resultHolder);
+                code.mark(isTrue);
+                code.loadConstant(resultHolder, true);
+                code.returnValue(resultHolder);
+            } else {
+                if (returnType == int.class) {
+                    code.cast(resultHolder, result);
+                } else if (returnType != long.class) {
+                    code.cast(locals.intValue, result);
+                    code.cast(resultHolder, locals.intValue);
+                }
+                code.returnValue(resultHolder);
+            }
+        }
+
+        code.mark(notFastHandler);
+    }
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     private static void invokeSuper(MethodId superMethod, Code superCode,
             Local superThis, Local[] superArgs, Local superResult) {
@@ -685,7 +1404,8 @@ public final class ProxyBuilder<T> {
     }
 
     private static <T, G extends T> void generateConstructorsAndFields(DexMaker dexMaker,
-            TypeId<G> generatedType, TypeId<T> superType, Class<T> superClass) {
+            TypeId<G> generatedType, TypeId<T> superType, Constructor<T>[] constructors,
+            boolean methodHandlers) {
         TypeId<InvocationHandler> handlerType = TypeId.get(InvocationHandler.class);
         TypeId<Method[]> methodArrayType = TypeId.get(Method[].class);
         FieldId<G, InvocationHandler> handlerField = generatedType.getField(
@@ -694,7 +1414,11 @@ public final class ProxyBuilder<T> {
         FieldId<G, Method[]> allMethods = generatedType.getField(
                 methodArrayType, FIELD_NAME_METHODS);
         dexMaker.declare(allMethods, PRIVATE | STATIC, null);
-        for (Constructor<T> constructor : getConstructorsToOverwrite(superClass)) {
+        if (methodHandlers) {
+            dexMaker.declare(generatedType.getField(TypeId.get(InvocationHandler[].class),
+                    FIELD_NAME_METHOD_HANDLERS), PRIVATE, null);
+        }
+        for (Constructor<T> constructor : constructors) {
             if (constructor.getModifiers() == Modifier.FINAL) {
                 continue;
             }
@@ -712,12 +1436,164 @@ public final class ProxyBuilder<T> {
         }
     }
 
+    /**
+     * Generates
+     *
+     * <pre>
+     *     public final InvocationHandler $__getInvocationHandler() {
+     *         return $__handler;
+     *     }
+     *
+     *     public final void $__setInvocationHandler(InvocationHandler handler) {
+     *         $__handler = handler;
+     *     }
+     * </pre>
+     *
+     * to implement {@link ProxyAccessor}.
+     */
+    private static <G> void generateAccessorMethods(DexMaker dexMaker, TypeId<G> generatedType) {
+        TypeId<InvocationHandler> handlerType = TypeId.get(InvocationHandler.class);
+        FieldId<G, InvocationHandler> handlerField =
+                generatedType.getField(handlerType, FIELD_NAME_HANDLER);
+
+        Code getCode = dexMaker.declare(
+                generatedType.getMethod(handlerType, "$__getInvocationHandler"), PUBLIC | FINAL);
+        Local<InvocationHandler> handler = getCode.newLocal(handlerType);
+        getCode.iget(handlerField, handler, getCode.getThis(generatedType));
+        getCode.returnValue(handler);
+
+        Code setCode = dexMaker.declare(generatedType.getMethod(TypeId.VOID,
+                "$__setInvocationHandler", handlerType), PUBLIC | FINAL);
+        setCode.iput(handlerField, setCode.getThis(generatedType),
+                setCode.getParameter(0, handlerType));
+        setCode.returnVoid();
+    }
+
+    /**
+     * Generates a {@link ProxyFactory} for the proxy class. For a proxied class with the
+     * constructors {@code Example()} and {@code Example(int)} this looks like (in idiomatic Java):
+     *
+     * <pre>
+     *     public final class Example_Proxy_Factory implements ProxyFactory {
+     *         public Object newInstance(int constructorIndex, Object[] args,
+     *                 InvocationHandler handler) {
+     *             Example_Proxy result;
+     *             if (constructorIndex == 0) {
+     *                 result = new Example_Proxy();
+     *             } else if (constructorIndex == 1) {
+     *                 result = new Example_Proxy(((Integer) args[0]).intValue());
+     *             } else {
+     *                 throw new IllegalArgumentException("No such constructor");
+     *             }
+     *             result.$__setInvocationHandler(handler);
+     *             return result;
+     *         }
+     *     }
+     * </pre>
+     *
+     * The handler is only installed after the constructor returns, hence calls leaking out of
+     * the constructor still go to the super methods.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T, G extends T> void generateFactory(DexMaker dexMaker,
+            TypeId<G> generatedType, String factoryName, Constructor<T>[] constructors) {
+        TypeId<?> factoryType = TypeId.get("L" + factoryName + ";");
+        TypeId<InvocationHandler> handlerType = TypeId.get(InvocationHandler.class);
+        TypeId<Object[]> objectArrayType = TypeId.get(Object[].class);
+        TypeId<IllegalArgumentException> illegalArgumentExceptionType =
+                TypeId.get(IllegalArgumentException.class);
+        dexMaker.declare(factoryType, factoryName + ".generated", PUBLIC | FINAL, TypeId.OBJECT,
+                TypeId.get(ProxyFactory.class));
+
+        Code constructorCode = dexMaker.declare(factoryType.getConstructor(), PUBLIC);
+        constructorCode.invokeDirect(TypeId.OBJECT.getConstructor(), null,
+                constructorCode.getThis(factoryType));
+        constructorCode.returnVoid();
+
+        MethodId<?, Object> newInstance = factoryType.getMethod(TypeId.OBJECT, "newInstance",
+                TypeId.INT, objectArrayType, handlerType);
+        Code code = dexMaker.declare(newInstance, PUBLIC);
+        Local<Integer> constructorIndex = code.getParameter(0, TypeId.INT);
+        Local<Object[]> args = code.getParameter(1, objectArrayType);
+        Local<InvocationHandler> handler = code.getParameter(2, handlerType);
+        Local<G> result = code.newLocal(generatedType);
+        Local<Object> resultObject = code.newLocal(TypeId.OBJECT);
+        Local<Integer> expectedIndex = code.newLocal(TypeId.INT);
+        Local<Integer> argIndex = code.newLocal(TypeId.INT);
+        Local<Object> arg = code.newLocal(TypeId.OBJECT);
+        Local<String> errorMessage = code.newLocal(TypeId.STRING);
+        Local<IllegalArgumentException> error = code.newLocal(illegalArgumentExceptionType);
+        Local<?>[][] params = new Local<?>[constructors.length][];
+        Local<?>[][] boxedParams = new Local<?>[constructors.length][];
+        for (int c = 0; c < constructors.length; c++) {
+            Class<?>[] paramClasses = constructors[c].getParameterTypes();
+            params[c] = new Local<?>[paramClasses.length];
+            boxedParams[c] = new Local<?>[paramClasses.length];
+            for (int p = 0; p < paramClasses.length; p++) {
+                params[c][p] = code.newLocal(TypeId.get(paramClasses[p]));
+                Class<?> boxedClass = PRIMITIVE_TO_BOXED.get(paramClasses[p]);
+                if (boxedClass != null) {
+                    boxedParams[c][p] = code.newLocal(TypeId.get(boxedClass));
+                }
+            }
+        }
+
+        Label installHandler = new Label();
+        for (int c = 0; c < constructors.length; c++) {
+            if (constructors[c].getModifiers() == Modifier.FINAL) {
+                continue;
+            }
+            Label nextConstructor = new Label();
+            code.loadConstant(expectedIndex, c);
+            code.compare(Comparison.NE, nextConstructor, constructorIndex, expectedIndex);
+
+            Class<?>[] paramClasses = constructors[c].getParameterTypes();
+            for (int p = 0; p < paramClasses.length; p++) {
+                code.loadConstant(argIndex, p);
+                code.aget(arg, args, argIndex);
+                if (boxedParams[c][p] != null) {
+                    code.cast(boxedParams[c][p], arg);
+                    code.invokeVirtual((MethodId) getUnboxMethodForPrimitive(paramClasses[p]),
+                            params[c][p], boxedParams[c][p]);
+                } else {
+                    code.cast(params[c][p], arg);
+                }
+            }
+            code.newInstance(result, generatedType.getConstructor(
+                    classArrayToTypeArray(paramClasses)), params[c]);
+            code.jump(installHandler);
+            code.mark(nextConstructor);
+        }
+
+        code.loadConstant(errorMessage, "No such constructor");
+        code.newInstance(error, illegalArgumentExceptionType.getConstructor(TypeId.STRING),
+                errorMessage);
+        code.throwValue(error);
+
+        code.mark(installHandler);
+        code.invokeVirtual(generatedType.getMethod(TypeId.VOID, "$__setInvocationHandler",
+                handlerType), null, result, handler);
+        code.move((Local) resultObject, (Local) result);
+        code.returnValue(resultObject);
+    }
+
     // The type parameter on Constructor is the class in which the constructor is declared.
     // The getDeclaredConstructors() method gets constructors declared only in the given class,
     // hence this cast is safe.
+    //
+    // The constructors are sorted so that the indices used by the generated ProxyFactory do not
+    // depend on the order the runtime reports them in.
     @SuppressWarnings("unchecked")
     private static <T> Constructor<T>[] getConstructorsToOverwrite(Class<T> clazz) {
-        return (Constructor<T>[]) clazz.getDeclaredConstructors();
+        Constructor<T>[] constructors = (Constructor<T>[]) clazz.getDeclaredConstructors();
+        Arrays.sort(constructors, new Comparator<Constructor<T>>() {
+            @Override
+            public int compare(Constructor<T> constructor1, Constructor<T> constructor2) {
+                return Arrays.toString(constructor1.getParameterTypes()).compareTo(
+                        Arrays.toString(constructor2.getParameterTypes()));
+            }
+        });
+        return constructors;
     }
 
     private TypeId<?>[] getInterfacesAsTypeIds() {
@@ -736,20 +1612,21 @@ public final class ProxyBuilder<T> {
     private Method[] getMethodsToProxyRecursive() {
         Set<MethodSetEntry> methodsToProxy = new HashSet<>();
         Set<MethodSetEntry> seenFinalMethods = new HashSet<>();
+        Set<MethodSetEntry> filteredMethods = new HashSet<>();
         // Traverse the class hierarchy to ensure that all concrete methods (which could be marked
         // as final) are visited before any abstract methods from interfaces.
         for (Class<?> c = baseClass; c != null; c = c.getSuperclass()) {
-            getMethodsToProxy(methodsToProxy, seenFinalMethods, c);
+            getMethodsToProxy(methodsToProxy, seenFinalMethods, filteredMethods, c);
         }
         // Now traverse the interface hierarchy, starting with the ones implemented by the class,
         // followed by any extra interfaces.
         for (Class<?> c = baseClass; c != null; c = c.getSuperclass()) {
             for (Class<?> i : c.getInterfaces()) {
-                getMethodsToProxy(methodsToProxy, seenFinalMethods, i);
+                getMethodsToProxy(methodsToProxy, seenFinalMethods, filteredMethods, i);
             }
         }
         for (Class<?> c : interfaces) {
-            getMethodsToProxy(methodsToProxy, seenFinalMethods, c);
+            getMethodsToProxy(methodsToProxy, seenFinalMethods, filteredMethods, c);
         }
 
         Method[] results = new Method[methodsToProxy.size()];
@@ -762,13 +1639,17 @@ public final class ProxyBuilder<T> {
     }
 
     private void getMethodsToProxy(Set<MethodSetEntry> sink, Set<MethodSetEntry> seenFinalMethods,
-            Class<?> c) {
-        for (Method method : c.getDeclaredMethods()) {
+            Set<MethodSetEntry> filteredMethods, Class<?> c) {
+        ClassMetadataCache metadata = ClassMetadataCache.forClass(c);
+        Method[] declaredMethods = metadata.getDeclaredMethods();
+        MethodSetEntry[] entries = metadata.getDeclaredMethodEntries();
+        for (int m = 0; m < declaredMethods.length; m++) {
+            Method method = declaredMethods[m];
+            MethodSetEntry entry = entries[m];
             if ((method.getModifiers() & Modifier.FINAL) != 0) {
                 // Skip final methods, we can't override them. We
                 // also need to remember them, in case the same
                 // method exists in a parent class.
-                MethodSetEntry entry = new MethodSetEntry(method);
                 seenFinalMethods.add(entry);
                 // We may have seen this method already, from an interface
                 // implemented by a child class. We need to remove it here.
@@ -799,12 +1680,21 @@ public final class ProxyBuilder<T> {
                 // Skip finalize method, it's likely important that it execute as normal.
                 continue;
             }
-            MethodSetEntry entry = new MethodSetEntry(method);
             if (seenFinalMethods.contains(entry)) {
                 // This method is final in a child class.
                 // We can't override it.
                 continue;
             }
+            if (filteredMethods.contains(entry)) {
+                // The filter rejected an override of this method.
+                continue;
+            }
+            if (filter != null && !sink.contains(entry)
+                    && (method.getModifiers() & ABSTRACT) == 0 && !filter.accept(method)) {
+                // Keep the inherited implementation, also of methods declared further up.
+                filteredMethods.add(entry);
+                continue;
+            }
             sink.add(entry);
         }
 
@@ -812,14 +1702,28 @@ public final class ProxyBuilder<T> {
         // visiting interfaces of a class before its super classes.
         if (c.isInterface()) {
             for (Class<?> i : c.getInterfaces()) {
-                getMethodsToProxy(sink, seenFinalMethods, i);
+                getMethodsToProxy(sink, seenFinalMethods, filteredMethods, i);
             }
         }
     }
 
-    private static <T> String getMethodNameForProxyOf(Class<T> clazz, List<Class<?>> interfaces) {
+    private static <T> String getMethodNameForProxyOf(Class<T> clazz, List<Class<?>> interfaces,
+            boolean fastDispatch, boolean methodHandlers, boolean compact, String methodsHash) {
         String interfacesHash = Integer.toHexString(interfaces.hashCode());
-        return clazz.getName().replace(".", "/") + "_" + interfacesHash + "_Proxy";
+        // The variants need different names, otherwise they would share a file in the dex cache.
+        return clazz.getName().replace(".", "/") + "_" + interfacesHash
+                + (fastDispatch ? FAST_SUFFIX : "")
+                + (methodHandlers ? METHOD_HANDLERS_SUFFIX : "")
+                + (compact ? COMPACT_SUFFIX : "")
+                + (methodsHash != null ? "_" + methodsHash : "") + "_Proxy";
+    }
+
+    private static String getMethodsHash(Method[] methods) {
+        int hash = 0;
+        for (Method method : methods) {
+            hash = 31 * hash + ClassMetadataCache.getSortKey(method).hashCode();
+        }
+        return Integer.toHexString(hash);
     }
 
     private static TypeId<?>[] classArrayToTypeArray(Class<?>[] input) {
@@ -881,6 +1785,17 @@ public final class ProxyBuilder<T> {
         }
     }
 
+    private static final MethodId<Float, Integer> FLOAT_TO_RAW_INT_BITS =
+            TypeId.get(Float.class).getMethod(TypeId.INT, "floatToRawIntBits", TypeId.FLOAT);
+    private static final MethodId<Double, Long> DOUBLE_TO_RAW_LONG_BITS =
+            TypeId.get(Double.class).getMethod(TypeId.LONG, "doubleToRawLongBits", TypeId.DOUBLE);
+
+    /**
+     * Parameters of {@link FastInvocationHandler#invokeJ} and {@link FastInvocationHandler#invokeD}.
+     */
+    private static final TypeId<?>[] FAST_INVOKE_PARAMETERS = {
+            TypeId.OBJECT, TypeId.INT, TypeId.LONG, TypeId.LONG, TypeId.LONG };
+
     /**
      * Map from primitive type to method used to unbox a boxed version of the primitive.
      * <p>
@@ -944,6 +1859,63 @@ public final class ProxyBuilder<T> {
         }
     }
 
+    /**
+     * The generated {@link ProxyFactory} of a proxy class together with the parameter types of
+     * the constructors it can call.
+     */
+    private static class GeneratedFactory<U> {
+        final ProxyFactory<U> factory;
+
+        final Class<?>[][] constructorArgTypes;
+
+        private GeneratedFactory(ProxyFactory<U> factory, Constructor<?>[] constructors) {
+            this.factory = factory;
+            constructorArgTypes = new Class<?>[constructors.length][];
+            for (int i = 0; i < constructors.length; i++) {
+                constructorArgTypes[i] = constructors[i].getParameterTypes();
+            }
+        }
+
+        /**
+         * Returns the index of the constructor with the given parameter types, or -1 if there is
+         * no such constructor.
+         */
+        int indexOf(Class<?>[] argTypes) {
+            for (int i = 0; i < constructorArgTypes.length; i++) {
+                if (Arrays.equals(constructorArgTypes[i], argTypes)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The locals needed to dispatch a call to a {@link FastInvocationHandler}.
+     */
+    private static class FastInvokeLocals {
+        final Local<Integer> isFastHandler;
+        final Local<FastInvocationHandler> fastHandler;
+        final Local<Integer> intValue;
+        final Local<Long> longResult;
+        final Local<Double> doubleResult;
+        final Local<Long> zero;
+        final List<Local<Long>> args;
+
+        FastInvokeLocals(Code code) {
+            isFastHandler = code.newLocal(TypeId.INT);
+            fastHandler = code.newLocal(TypeId.get(FastInvocationHandler.class));
+            intValue = code.newLocal(TypeId.INT);
+            longResult = code.newLocal(TypeId.LONG);
+            doubleResult = code.newLocal(TypeId.DOUBLE);
+            zero = code.newLocal(TypeId.LONG);
+            args = new ArrayList<>(FastInvocationHandler.MAX_ARGUMENTS);
+            for (int i = 0; i < FastInvocationHandler.MAX_ARGUMENTS; i++) {
+                args.add(code.newLocal(TypeId.LONG));
+            }
+        }
+    }
+
     /**
      * A class that was already proxied.
      */
@@ -960,8 +1932,23 @@ public final class ProxyBuilder<T> {
          */
         final ClassLoader requestedClassloader;
 
+        /** The {@link #filter(MethodFilter)} of the builder, compared by identity. */
+        final MethodFilter filter;
+
         final boolean sharedClassLoader;
 
+        final boolean fastInvocationHandler;
+
+        final boolean methodHandlers;
+
+        final boolean compactLayout;
+
+        /**
+         * The {@link #loadingSession(DexLoadingSession)} of the builder, compared by identity. A
+         * proxy class loaded through one session is not visible to another.
+         */
+        final DexLoadingSession loadingSession;
+
         @Override
         public boolean equals(Object other) {
             if (this == other) {
@@ -975,21 +1962,37 @@ public final class ProxyBuilder<T> {
             return clazz == that.clazz
                     && interfaces.equals(that.interfaces)
                     && requestedClassloader == that.requestedClassloader
-                    && sharedClassLoader == that.sharedClassLoader;
+                    && filter == that.filter
+                    && sharedClassLoader == that.sharedClassLoader
+                    && fastInvocationHandler == that.fastInvocationHandler
+                    && methodHandlers == that.methodHandlers
+                    && compactLayout == that.compactLayout
+                    && loadingSession == that.loadingSession;
         }
 
         @Override
         public int hashCode() {
             return clazz.hashCode() + interfaces.hashCode() + requestedClassloader.hashCode()
-                    + (sharedClassLoader ? 1 : 0); 
+                    + System.identityHashCode(filter)
+                    + (sharedClassLoader ? 1 : 0) + (fastInvocationHandler ? 2 : 0)
+                    + (methodHandlers ? 4 : 0) + (compactLayout ? 8 : 0)
+                    + System.identityHashCode(loadingSession);
         }
 
         private ProxiedClass(Class<U> clazz, List<Class<?>> interfaces,
-                             ClassLoader requestedClassloader, boolean sharedClassLoader) {
+                             ClassLoader requestedClassloader, MethodFilter filter,
+                             boolean sharedClassLoader,
+                             boolean fastInvocationHandler, boolean methodHandlers,
+                             boolean compactLayout, DexLoadingSession loadingSession) {
             this.clazz = clazz;
             this.interfaces = new ArrayList<>(interfaces);
             this.requestedClassloader = requestedClassloader;
+            this.filter = filter;
             this.sharedClassLoader = sharedClassLoader;
+            this.fastInvocationHandler = fastInvocationHandler;
+            this.methodHandlers = methodHandlers;
+            this.compactLayout = compactLayout;
+            this.loadingSession = loadingSession;
         }
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.stock;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * Creates instances of a proxy class without going through reflection. An implementation is
+ * generated by {@link ProxyBuilder} alongside each proxy class that implements
+ * {@link ProxyAccessor}.
+ *
+ * @param <T> the proxied type
+ */
+public interface ProxyFactory<T> {
+    /**
+     * Creates a new proxy instance and installs {@code handler} on it once the constructor has
+     * returned.
+     *
+     * @param constructorIndex index of the proxy constructor to call, as assigned by
+     *     {@link ProxyBuilder}
+     * @param args arguments to the constructor, boxed if primitive
+     * @param handler handler to install on the new instance
+     */
+    T newInstance(int constructorIndex, Object[] args, InvocationHandler handler);
+}